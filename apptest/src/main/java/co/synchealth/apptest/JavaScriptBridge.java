@@ -8,6 +8,7 @@ import java.util.List;
 
 import io.nodekit.nkscripting.NKScriptExport;
 import io.nodekit.nkscripting.NKScriptValue;
+import io.nodekit.nkscripting.NKThread;
 
 public class JavaScriptBridge implements NKScriptExport {
 
@@ -18,33 +19,24 @@ public class JavaScriptBridge implements NKScriptExport {
     }
 
     @JavascriptInterface
-    public void factorial(final int start, final NKScriptValue callback) {
+    @NKThread(NKThread.Mode.BACKGROUND)
+    public void factorial(int start, NKScriptValue callback) {
 
-        mainActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                int x = start;
-                int factorial = 1;
-                for (; x > 1; x--) {
-                    factorial *= x;
-                }
-                callback.callWithArguments(new Object[] { factorial }, null);
-
-            }
-        });
+        int x = start;
+        int factorial = 1;
+        for (; x > 1; x--) {
+            factorial *= x;
+        }
+        callback.callWithArguments(new Object[] { factorial }, null);
 
     }
 
     @JavascriptInterface
-    public void updateTitle(final int result) {
-
-        mainActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                TextView textView = mainActivity.findViewById(R.id.textView);
-                textView.setText( Integer.toString(result));
-            }
-        });
+    @NKThread(NKThread.Mode.MAIN)
+    public void updateTitle(int result) {
+
+        TextView textView = mainActivity.findViewById(R.id.textView);
+        textView.setText( Integer.toString(result));
 
     }
 
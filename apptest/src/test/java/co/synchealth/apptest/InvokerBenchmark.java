@@ -0,0 +1,120 @@
+package co.synchealth.apptest;
+
+import android.webkit.JavascriptInterface;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import io.nodekit.nkscripting.NKScriptExport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the switch-based invoker that nkscripting-processor generates for NKScriptExport classes
+ * against reflective dispatch.  Timing is only reported, by main(), never asserted: wall-clock
+ * comparisons are too noisy on a shared CI machine to fail a build on.
+ */
+public class InvokerBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 50000;
+    private static final int ROUNDS = 5;
+
+    public static class BenchmarkPlugin implements NKScriptExport {
+        long total;
+
+        @JavascriptInterface
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        @JavascriptInterface
+        public void accumulate(long value) {
+            total += value;
+        }
+    }
+
+    @Test
+    public void invoker_matchesReflection() throws Exception {
+        NKScriptExport.Invoker invoker = generatedInvoker();
+        assertNotNull("nkscripting-processor did not generate an invoker for BenchmarkPlugin", invoker);
+
+        BenchmarkPlugin plugin = new BenchmarkPlugin();
+        Method method = BenchmarkPlugin.class.getMethod("add", int.class, int.class);
+        int index = invoker.indexOf("add:int:int");
+        assertTrue(index >= 0);
+
+        Object[] args = new Object[] { 20, 22 };
+        assertEquals(42, method.invoke(plugin, args));
+        assertEquals(42, invoker.invoke(plugin, index, args));
+    }
+
+    @Test
+    public void invoker_coversVoidMethods() throws Exception {
+        NKScriptExport.Invoker invoker = generatedInvoker();
+        assertNotNull("nkscripting-processor did not generate an invoker for BenchmarkPlugin", invoker);
+
+        BenchmarkPlugin plugin = new BenchmarkPlugin();
+        assertNull(invoker.invoke(plugin, invoker.indexOf("accumulate:long"), new Object[] { 5L }));
+        assertEquals(5L, plugin.total);
+        assertEquals(-1, invoker.indexOf("missing"));
+    }
+
+    // Times both paths over a few rounds and prints the best of each
+    public static void main(String[] arguments) throws Exception {
+        NKScriptExport.Invoker invoker = generatedInvoker();
+        if (invoker == null) {
+            System.out.println("no generated invoker for BenchmarkPlugin");
+            return;
+        }
+
+        BenchmarkPlugin plugin = new BenchmarkPlugin();
+        Method method = BenchmarkPlugin.class.getMethod("add", int.class, int.class);
+        int index = invoker.indexOf("add:int:int");
+        Object[] args = new Object[] { 20, 22 };
+
+        reflect(method, plugin, args, WARMUP);
+        generated(invoker, index, plugin, args, WARMUP);
+
+        long reflected = Long.MAX_VALUE;
+        long switched = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            reflected = Math.min(reflected, reflect(method, plugin, args, ITERATIONS));
+            switched = Math.min(switched, generated(invoker, index, plugin, args, ITERATIONS));
+        }
+
+        System.out.println(String.format("NKInvoker %d ns vs Method.invoke %d ns for %d calls", switched, reflected, ITERATIONS));
+    }
+
+    private static long reflect(Method method, Object target, Object[] args, int count) throws Exception {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int i = 0; i < count; i++)
+            sink += (Integer) method.invoke(target, args);
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0)
+            throw new IllegalStateException();
+        return elapsed;
+    }
+
+    private static long generated(NKScriptExport.Invoker invoker, int index, Object target, Object[] args, int count) throws Exception {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int i = 0; i < count; i++)
+            sink += (Integer) invoker.invoke(target, index, args);
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0)
+            throw new IllegalStateException();
+        return elapsed;
+    }
+
+    private static NKScriptExport.Invoker generatedInvoker() throws Exception {
+        try {
+            return (NKScriptExport.Invoker) Class.forName(BenchmarkPlugin.class.getName().replace('$', '_') + "_NKInvoker")
+                    .newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
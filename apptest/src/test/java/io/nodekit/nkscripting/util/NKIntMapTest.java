@@ -0,0 +1,140 @@
+package io.nodekit.nkscripting.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * NKIntMap basics, tombstones left by removal and reused by later puts, and rebuilds under churn,
+ * including lock-free readers running while the table is replaced.
+ */
+public class NKIntMapTest {
+
+    @Test
+    public void put_getAndRemove() {
+        NKIntMap<String> map = new NKIntMap<String>();
+
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-1, "minus one"));
+        assertNull(map.put(Integer.MAX_VALUE, "max"));
+        assertEquals("zero", map.put(0, "0"));
+        assertEquals(3, map.size());
+
+        assertEquals("0", map.get(0));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("max", map.get(Integer.MAX_VALUE));
+        assertNull(map.get(1));
+
+        assertEquals("0", map.putIfAbsent(0, "other"));
+        assertFalse(map.remove(-1, "other"));
+        assertTrue(map.remove(-1, "minus one"));
+        assertNull(map.remove(-1));
+        assertFalse(map.containsKey(-1));
+        assertEquals(2, map.size());
+
+        // null values are removals
+        assertEquals("max", map.put(Integer.MAX_VALUE, null));
+        assertEquals(1, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+    }
+
+    @Test
+    public void remove_leavesTombstonesThatLaterPutsReuse() {
+        NKIntMap<Integer> map = new NKIntMap<Integer>();
+
+        for (int i = 0; i < 10; i++)
+            map.put(i, i);
+        for (int i = 0; i < 10; i += 2)
+            map.remove(i);
+
+        // keys probing past a removed slot are still found
+        for (int i = 1; i < 10; i += 2)
+            assertEquals(Integer.valueOf(i), map.get(i));
+
+        for (int i = 0; i < 10; i += 2) {
+            assertNull(map.get(i));
+            assertNull(map.put(i, -i));
+        }
+        assertEquals(10, map.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(Integer.valueOf((i % 2 == 0) ? -i : i), map.get(i));
+    }
+
+    @Test(timeout = 10000)
+    public void put_rebuildsAwayTombstonesUnderChurn() {
+        NKIntMap<Integer> map = new NKIntMap<Integer>();
+
+        // sequential ids, each removed shortly after; without rebuilds the table would fill with
+        // tombstones and the next probe for a free slot would never end
+        for (int id = 1; id <= 200000; id++) {
+            map.put(id, id);
+            if (id > 8)
+                assertEquals(Integer.valueOf(id - 8), map.remove(id - 8));
+        }
+
+        assertEquals(8, map.size());
+        Set<Integer> live = new HashSet<Integer>(map.values());
+        for (int id = 200000 - 7; id <= 200000; id++)
+            assertTrue(live.contains(id));
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void rebuild_keepsLiveEntriesBetweenTombstones() {
+        NKIntMap<Integer> map = new NKIntMap<Integer>(4);
+
+        for (int i = 0; i < 1000; i++)
+            map.put(i, i);
+        for (int i = 0; i < 1000; i += 2)
+            map.remove(i);
+        for (int i = 1000; i < 3000; i++)
+            map.put(i, i);
+
+        assertEquals(2500, map.size());
+        assertEquals(2500, map.values().size());
+        for (int i = 0; i < 3000; i++)
+            assertEquals((i < 1000 && i % 2 == 0) ? null : Integer.valueOf(i), map.get(i));
+    }
+
+    @Test(timeout = 30000)
+    public void get_seesStableKeysWhileTheTableChurns() throws Exception {
+        final NKIntMap<Integer> map = new NKIntMap<Integer>();
+        for (int i = 0; i < 64; i++)
+            map.put(-1 - i, i);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    for (int i = 0; i < 64; i++) {
+                        Integer value = map.get(-1 - i);
+                        if (value == null || value != i)
+                            misses.incrementAndGet();
+                    }
+                }
+            }
+        };
+        reader.start();
+
+        for (int id = 0; id < 500000; id++) {
+            map.put(id, id);
+            if (id >= 16)
+                map.remove(id - 16);
+        }
+
+        done.set(true);
+        reader.join();
+        assertEquals(0, misses.get());
+        assertEquals(64 + 16, map.size());
+    }
+}
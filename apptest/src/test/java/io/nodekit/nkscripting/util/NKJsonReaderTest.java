@@ -0,0 +1,114 @@
+package io.nodekit.nkscripting.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bridge message parsing with NKJsonReader: boxing of decoded values, and malformed or truncated
+ * input failing with a ParseException rather than a runtime exception or a partial value.
+ */
+public class NKJsonReaderTest {
+
+    private static final String MESSAGE =
+            "{\"$opcode\":\"add:int:int\",\"$op\":3,\"$target\":0,\"$operand\":[20,22.5,\"a\\\"b\\u0041\"]," +
+            "\"nested\":{\"list\":[true,false,null,{}],\"empty\":[]},\"big\":3000000000,\"neg\":-7}";
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void parse_boxesLikeOrgJson() throws Exception {
+        Map<String, Object> map = (Map<String, Object>) NKJsonReader.parse(MESSAGE);
+
+        assertEquals("add:int:int", map.get("$opcode"));
+        assertEquals(3, map.get("$op"));
+        assertEquals(3000000000L, map.get("big"));
+        assertEquals(-7, map.get("neg"));
+        assertEquals(Arrays.<Object>asList(20, 22.5, "a\"bA"), map.get("$operand"));
+
+        Map<String, Object> nested = (Map<String, Object>) map.get("nested");
+        List<Object> list = (List<Object>) nested.get("list");
+        assertEquals(4, list.size());
+        assertEquals(Boolean.TRUE, list.get(0));
+        assertNull(list.get(2));
+        assertTrue(((Map) list.get(3)).isEmpty());
+
+        assertEquals(12345678901234567890.0, (Double) NKJsonReader.parse("12345678901234567890"), 1.0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void parseLazy_materializesNestedValuesOnRead() throws Exception {
+        Map<String, Object> map = (Map<String, Object>) NKJsonReader.parseLazy(MESSAGE);
+
+        assertEquals(3, map.get("$op"));
+        assertEquals(Arrays.<Object>asList(20, 22.5, "a\"bA"), map.get("$operand"));
+        List<Object> list = (List<Object>) ((Map<String, Object>) map.get("nested")).get("list");
+        assertEquals(4, list.size());
+        assertEquals(Boolean.FALSE, list.get(1));
+        assertTrue(((Map) list.get(3)).isEmpty());
+
+        List<Object> batch = NKJsonReader.parseLazyArray("[" + MESSAGE + ", " + MESSAGE + "]");
+        assertEquals(2, batch.size());
+        assertEquals(-7, ((Map<String, Object>) batch.get(1)).get("neg"));
+    }
+
+    @Test
+    public void parse_rejectsMalformedInput() {
+        String[] malformed = {
+                "", "   ", "{", "}", "[1 2]", "[1,]", "{\"a\":1,}", "{\"a\" 1}", "{a:1}", "{\"a\":1}}",
+                "tru", "nul", "falsey", "-", "1.2.3", "1e", "\"abc", "\"\\u12\"", "\"\\uzzzz\"", "[1] x"
+        };
+        for (String json : malformed) {
+            assertParseFails(json);
+            assertLazyParseFails(json);
+        }
+    }
+
+    @Test
+    public void parse_rejectsEveryTruncation() {
+        for (int end = 0; end < MESSAGE.length(); end++) {
+            String prefix = MESSAGE.substring(0, end);
+            assertParseFails(prefix);
+            assertLazyParseFails(prefix);
+            assertLazyArrayFails("[" + prefix);
+        }
+    }
+
+    @Test
+    public void parseLazy_checksSlicesBeforeTheyAreRead() {
+        assertLazyParseFails("{\"$op\":1,\"$operand\":[1,}");
+        assertLazyParseFails("{\"$op\":1,\"$operand\":{\"a\" 1}}");
+        assertLazyParseFails("{\"$op\":1,\"$operand\":[\"\\u12\"]}");
+    }
+
+    private static void assertParseFails(String json) {
+        try {
+            NKJsonReader.parse(json);
+            fail("parsed " + json);
+        } catch (NKJsonReader.ParseException expected) {
+            // expected
+        }
+    }
+
+    private static void assertLazyParseFails(String json) {
+        try {
+            NKJsonReader.parseLazy(json);
+            fail("parsed lazily " + json);
+        } catch (NKJsonReader.ParseException expected) {
+            // expected
+        }
+    }
+
+    private static void assertLazyArrayFails(String json) {
+        try {
+            NKJsonReader.parseLazyArray(json);
+            fail("parsed batch " + json);
+        } catch (NKJsonReader.ParseException expected) {
+            // expected
+        }
+    }
+}
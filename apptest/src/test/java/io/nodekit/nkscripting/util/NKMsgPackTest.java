@@ -0,0 +1,158 @@
+package io.nodekit.nkscripting.util;
+
+import org.junit.Test;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * NKMsgPack round trips, the key-index extension (including taking back the keys of a value that
+ * failed to encode), and malformed or truncated payloads failing with a ParseException.
+ */
+public class NKMsgPackTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void encode_roundTripsBridgeValues() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("int", 42);
+        map.put("negative", -100000);
+        map.put("long", 5000000000L);
+        map.put("double", 2.5);
+        map.put("bool", true);
+        map.put("string", "caf\u00e9");
+        map.put("long string", new String(new char[300]).replace('\0', 'x'));
+        map.put("list", Arrays.<Object>asList(1, "two", null, false));
+        map.put("bytes", new byte[] { 1, 2, 3 });
+        map.put("date", new Date(1234567890123L));
+        map.put("skipped", null);
+
+        Map<String, Object> decoded = (Map<String, Object>) NKMsgPack.decode(NKMsgPack.encode(map));
+
+        assertEquals(10, decoded.size());
+        assertEquals(42, decoded.get("int"));
+        assertEquals(-100000, decoded.get("negative"));
+        assertEquals(5000000000L, decoded.get("long"));
+        assertEquals(2.5, (Double) decoded.get("double"), 0);
+        assertEquals(Boolean.TRUE, decoded.get("bool"));
+        assertEquals("caf\u00e9", decoded.get("string"));
+        assertEquals(300, ((String) decoded.get("long string")).length());
+        assertEquals(Arrays.<Object>asList(1, "two", null, false), decoded.get("list"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) decoded.get("bytes"));
+        assertEquals(new Date(1234567890123L), decoded.get("date"));
+        assertFalse(decoded.containsKey("skipped"));
+    }
+
+    @Test
+    public void encode_writesRepeatedKeysAsIndexes() throws Exception {
+        List<Object> rows = Arrays.<Object>asList(row(1), row(2), row(3));
+
+        byte[] packed = NKMsgPack.encode(rows);
+        assertEquals(rows, NKMsgPack.decode(packed));
+
+        // names are written once; a later row is its map header, two one byte key indexes, the
+        // id and a two letter name
+        byte[] single = NKMsgPack.encode(Collections.singletonList(row(1)));
+        assertEquals(single.length + 2 * (1 + 1 + 1 + 1 + 3), packed.length);
+    }
+
+    @Test
+    public void encode_takesBackKeysOfAFailedValue() throws Exception {
+        Map<String, Object> fresh = row(1);
+
+        // fails after writing a map that introduced new keys
+        final Map<String, Object> inner = new LinkedHashMap<String, Object>();
+        inner.put("introduced", 1);
+        inner.put("id", 0);
+        AbstractCollection<Object> failing = new AbstractCollection<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                return new Iterator<Object>() {
+                    int next;
+
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    public Object next() {
+                        if (next++ == 0)
+                            return inner;
+                        throw new IllegalStateException("failing collection");
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return 2;
+            }
+
+            @Override
+            public String toString() {
+                return "failing";
+            }
+        };
+
+        Map<String, Object> after = new HashMap<String, Object>();
+        after.put("introduced", 2);
+
+        Object decoded = NKMsgPack.decode(NKMsgPack.encode(Arrays.<Object>asList(failing, after, fresh)));
+
+        assertEquals(Arrays.<Object>asList("failing", after, fresh), decoded);
+    }
+
+    @Test
+    public void decode_rejectsEveryTruncation() throws Exception {
+        Map<String, Object> map = row(7);
+        map.put("list", Arrays.<Object>asList(row(8), "text", 3000000000L, 1.5, new Date(0)));
+        byte[] packed = NKMsgPack.encode(map);
+
+        for (int length = 0; length < packed.length; length++)
+            assertDecodeFails(Arrays.copyOf(packed, length));
+    }
+
+    @Test
+    public void decode_rejectsMalformedInput() {
+        // reserved type byte
+        assertDecodeFails(new byte[] { (byte) 0xc1 });
+        // key index before any key was seen
+        assertDecodeFails(new byte[] { (byte) 0x81, 0x00, 0x01 });
+        // key index past the keys seen so far
+        assertDecodeFails(new byte[] { (byte) 0x92, (byte) 0x81, (byte) 0xa1, 'a', 0x01, (byte) 0x81, 0x05, 0x02 });
+        // non string, non index key
+        assertDecodeFails(new byte[] { (byte) 0x81, (byte) 0xc3, 0x01 });
+        // negative str32 length
+        assertDecodeFails(new byte[] { (byte) 0xdb, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff });
+        // array header promising more elements than there are
+        assertDecodeFails(new byte[] { (byte) 0xdc, 0x7f, (byte) 0xff, 0x01 });
+    }
+
+    private static Map<String, Object> row(int id) {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("id", id);
+        row.put("name", "n" + id);
+        return row;
+    }
+
+    private static void assertDecodeFails(byte[] data) {
+        try {
+            NKMsgPack.decode(data);
+            fail("decoded " + Arrays.toString(data));
+        } catch (NKJsonReader.ParseException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.nodekit.nkscripting.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.nodekit.nkscripting.NKScriptValue;
+
+import static org.junit.Assert.*;
+
+/**
+ * NKTimerWheel driven by its own daemon thread, running expired tasks straight on it: deadline
+ * order, tasks more than a turn ahead counting down their rounds, cancellation, and repeating
+ * tasks put back after each tick.  Timing is only checked in the safe direction, never early,
+ * with generous limits on lateness.
+ */
+public class NKTimerWheelTest {
+
+    private static final long TURN_MILLIS = NKTimerWheel.TICK_MILLIS * NKTimerWheel.WHEEL_SIZE;
+
+    // Stands in for the script callback, which needs a live context
+    private static final class NoScript extends NKScriptValue {
+        @Override
+        public void callWithArguments(Object[] arguments, android.webkit.ValueCallback<String> completionHandler) {
+        }
+    }
+
+    // Records when each task ran, in wheel time
+    private static final class Recorder implements Executor {
+        final List<Integer> ids = new ArrayList<Integer>();
+        final List<Long> times = new ArrayList<Long>();
+        NKTimerWheel wheel;
+        CountDownLatch latch;
+
+        Recorder(int expected) {
+            latch = new CountDownLatch(expected);
+            wheel = new NKTimerWheel(this);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            NKTimerTask timerTask = (NKTimerTask) task;
+            synchronized (this) {
+                ids.add(timerTask.getId());
+                times.add(wheel.deadlineAfter(0));
+            }
+            task.run();
+            latch.countDown();
+        }
+
+        NKTimerTask schedule(int id, long delayMillis, long periodMillis) {
+            NKTimerTask task = new NKTimerTask(wheel, new NKTimer(), id, new NoScript(),
+                    wheel.deadlineAfter(delayMillis), TimeUnit.MILLISECONDS.toNanos(periodMillis));
+            wheel.schedule(task);
+            return task;
+        }
+
+        synchronized List<Integer> ids() {
+            return new ArrayList<Integer>(ids);
+        }
+
+        synchronized long timeOf(int id) {
+            return times.get(ids.indexOf(id));
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return latch.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void schedule_expiresInDeadlineOrderAndNeverEarly() throws Exception {
+        Recorder recorder = new Recorder(3);
+
+        // the later task parks the driver; the earlier ones have to wake it
+        NKTimerTask late = recorder.schedule(1, 120, 0);
+        NKTimerTask early = recorder.schedule(2, 20, 0);
+        NKTimerTask middle = recorder.schedule(3, 60, 0);
+
+        assertTrue(recorder.await(5000));
+        assertEquals(Arrays.asList(2, 3, 1), recorder.ids());
+        assertTrue(recorder.timeOf(1) >= late.deadline);
+        assertTrue(recorder.timeOf(2) >= early.deadline);
+        assertTrue(recorder.timeOf(3) >= middle.deadline);
+    }
+
+    @Test
+    public void schedule_countsDownRoundsPastOneTurn() throws Exception {
+        Recorder recorder = new Recorder(2);
+
+        // both land in the same bucket, the second a full turn later
+        long delay = 100;
+        NKTimerTask distant = recorder.schedule(1, delay + TURN_MILLIS, 0);
+        NKTimerTask near = recorder.schedule(2, delay, 0);
+
+        assertTrue(recorder.await(TURN_MILLIS + 5000));
+        assertEquals(Arrays.asList(2, 1), recorder.ids());
+        assertTrue(recorder.timeOf(2) >= near.deadline);
+        assertTrue(recorder.timeOf(1) >= distant.deadline);
+    }
+
+    @Test
+    public void cancel_unlinksFromTheMiddleOfABucket() throws Exception {
+        Recorder recorder = new Recorder(3);
+
+        recorder.schedule(1, 50, 0);
+        NKTimerTask cancelled = recorder.schedule(2, 50, 0);
+        recorder.schedule(3, 50, 0);
+        NKTimerTask cancelledEarly = recorder.schedule(4, 30, 0);
+        // let the driver move them into their buckets first
+        Thread.sleep(10);
+        cancelled.cancel();
+        cancelledEarly.cancel();
+        // a later task, so the cancelled ones had their chance to run
+        recorder.schedule(5, 150, 0);
+
+        assertTrue(recorder.await(5000));
+        assertEquals(Arrays.asList(1, 3, 5), recorder.ids());
+    }
+
+    @Test
+    public void repeating_isReinsertedUntilCancelled() throws Exception {
+        Recorder recorder = new Recorder(5);
+
+        long period = 20;
+        NKTimerTask interval = recorder.schedule(1, period, period);
+
+        assertTrue(recorder.await(5000));
+        interval.cancel();
+
+        List<Long> times;
+        synchronized (recorder) {
+            times = new ArrayList<Long>(recorder.times);
+        }
+        // fixed rate: no two runs closer than a period, give or take the tick they landed in
+        for (int i = 1; i < times.size(); i++)
+            assertTrue(times.get(i) - times.get(i - 1) >= TimeUnit.MILLISECONDS.toNanos(period - NKTimerWheel.TICK_MILLIS));
+
+        // at most one run was already under way when it was cancelled
+        Thread.sleep(5 * period);
+        int runs = recorder.ids().size();
+        Thread.sleep(10 * period);
+        assertEquals(runs, recorder.ids().size());
+    }
+}
@@ -18,7 +18,6 @@
 
 package io.nodekit.nkelectro;
 
-import android.util.SparseArray;
 import android.webkit.JavascriptInterface;
 
 import java.util.HashMap;
@@ -27,6 +26,7 @@ import java.util.Map;
 import io.nodekit.nkscripting.NKScriptValue;
 import io.nodekit.nkscripting.util.NKEventEmitter;
 import io.nodekit.nkscripting.util.NKEventHandler;
+import io.nodekit.nkscripting.util.NKIntMap;
 import io.nodekit.nkscripting.util.NKLogging;
 import io.nodekit.nkscripting.NKScriptContext;
 import io.nodekit.nkscripting.NKScriptContextFactory;
@@ -54,7 +54,7 @@ class NKE_BrowserWindow  implements NKScriptExport
     private NKE_BrowserWindow.Type browserType ;
 
     // Private fields
-    private static SparseArray<NKE_BrowserWindow> windowArray = new SparseArray<NKE_BrowserWindow>();
+    private static final NKIntMap<NKE_BrowserWindow> windowArray = new NKIntMap<NKE_BrowserWindow>();
     private int _id = 0;
 
     private NKE_WebContents _webContents;
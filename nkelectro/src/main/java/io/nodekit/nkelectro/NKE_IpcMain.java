@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import io.nodekit.nkscripting.NKScriptValue;
+import io.nodekit.nkscripting.util.NKEventDelivery;
 import io.nodekit.nkscripting.util.NKEventEmitter;
 import io.nodekit.nkscripting.NKScriptContext;
 import io.nodekit.nkscripting.util.NKEventHandler;
@@ -45,6 +46,9 @@ final class NKE_IpcMain
 
     private static NKEventEmitter globalEvents = NKEventEmitter.global;
 
+    // IPC in both directions is delivered off the emitting thread and never dropped
+    static final NKEventDelivery ipcDelivery = NKEventDelivery.background(NKEventDelivery.Overflow.BLOCK);
+
     private NKScriptValue jsValue;
 
     private void initWithJSValue(NKScriptValue jsv) {
@@ -55,7 +59,7 @@ final class NKE_IpcMain
             protected void call(String event, NKE_Event item) {
                 jsValue.invokeMethod("emit", new Object[]{"NKE.IPCtoMain", item.getsender(), item.getchannel(), item.getreplyId(), item.getarg() });
             }
-        });
+        }, ipcDelivery);
     }
 
     // Forward replies to renderer to the events queue for that renderer, using global queue since we may be cross process
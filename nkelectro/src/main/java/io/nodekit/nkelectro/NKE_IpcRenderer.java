@@ -46,6 +46,7 @@ final class NKE_IpcRenderer
 
 
     private static NKEventEmitter globalEvents = NKEventEmitter.global;
+
     NKE_BrowserWindow _window;
     int _id;
 
@@ -71,13 +72,13 @@ final class NKE_IpcRenderer
             protected void call(String event, NKE_Event item) {
                 jsValue.invokeMethod("emit", new Object[]{"NKE.IPCtoRenderer", item.getsender(), item.getchannel(), item.getreplyId(), item.getarg() });
             }
-        });
+        }, NKE_IpcMain.ipcDelivery);
 
         globalEvents.on("NKE.IPCReplytoRenderer." + ids, new NKEventHandler<NKE_Event>() {
             protected void call(String event, NKE_Event item) {
                 jsValue.invokeMethod("emit", new Object[]{"NKE.IPCtoRenderer", item.getsender(), item.getchannel(), item.getreplyId(), item.getarg() });
             }
-        });
+        }, NKE_IpcMain.ipcDelivery);
 
     }
 
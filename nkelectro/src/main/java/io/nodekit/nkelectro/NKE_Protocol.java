@@ -19,7 +19,6 @@
 package io.nodekit.nkelectro;
 
 import android.util.Base64;
-import android.util.SparseArray;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebResourceResponse;
 import java.util.HashMap;
@@ -30,6 +29,7 @@ import java.io.PipedOutputStream;
 import io.nodekit.nkscripting.NKScriptExport;
 import io.nodekit.nkscripting.NKScriptContext;
 import io.nodekit.nkscripting.NKScriptValue;
+import io.nodekit.nkscripting.util.NKIntMap;
 import io.nodekit.nkscripting.util.NKLogging;
 import io.nodekit.nkscripting.util.NKStorage;
 
@@ -46,7 +46,7 @@ final class NKE_Protocol implements NKScriptExport
     }
 
     private static HashMap<String, NKScriptValue> registeredSchemes  = new HashMap<>();
-    private static SparseArray<NKE_ProtocolCustomRequest> activeRequests  = new SparseArray<>();
+    private static final NKIntMap<NKE_ProtocolCustomRequest> activeRequests  = new NKIntMap<>();
 
     @JavascriptInterface
     public void registerCustomProtocol(String scheme, NKScriptValue handler) {
@@ -83,17 +83,15 @@ final class NKE_Protocol implements NKScriptExport
 
     @JavascriptInterface
     public void callbackEnd(int id, Map<String, Object> res) {
-        NKE_ProtocolCustomRequest nativeRequest = activeRequests.get(id);
+        NKE_ProtocolCustomRequest nativeRequest = activeRequests.remove(id);
         if (nativeRequest == null) { return; }
-        activeRequests.delete(id);
         nativeRequest.callbackEnd(res);
     }
 
     @JavascriptInterface
     public void callbackWriteFile(int id, String filename) {
-        NKE_ProtocolCustomRequest nativeRequest = activeRequests.get(id);
+        NKE_ProtocolCustomRequest nativeRequest = activeRequests.remove(id);
         if (nativeRequest == null) { return; }
-        activeRequests.delete(id);
         nativeRequest.callbackFile(filename);
     }
 
@@ -107,7 +105,7 @@ final class NKE_Protocol implements NKScriptExport
         int id = nativeRequest.id;
 
         NKScriptValue handler = registeredSchemes.get(scheme);
-        activeRequests.append(id, nativeRequest);
+        activeRequests.put(id, nativeRequest);
 
         handler.callWithArguments(new Object[] { req }, null);
     }
@@ -0,0 +1,250 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+// Generates an NKScriptExport.Invoker named <Class>_NKInvoker for every NKScriptExport plugin
+// with @JavascriptInterface methods.  The invoker maps the member keys built by NKScriptTypeInfo
+// to a dense index and calls each method directly from a switch, so plugin calls no longer go
+// through Method.invoke.  Members the invoker does not cover keep using reflection.
+@SupportedAnnotationTypes({
+        NKInvokerProcessor.JAVASCRIPT_INTERFACE
+})
+public class NKInvokerProcessor extends AbstractProcessor {
+
+    static final String JAVASCRIPT_INTERFACE = "android.webkit.JavascriptInterface";
+    static final String SCRIPT_EXPORT = "io.nodekit.nkscripting.NKScriptExport";
+
+    // must match NKScriptTypeInfo.GENERATED_INVOKER_SUFFIX
+    static final String INVOKER_SUFFIX = "_NKInvoker";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+        TypeElement export = processingEnv.getElementUtils().getTypeElement(SCRIPT_EXPORT);
+        if (export == null)
+            return false;
+        TypeMirror exportType = processingEnv.getTypeUtils().erasure(export.asType());
+
+        Map<TypeElement, List<ExecutableElement>> plugins = new LinkedHashMap<TypeElement, List<ExecutableElement>>();
+
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.METHOD || !element.getModifiers().contains(Modifier.PUBLIC))
+                    continue;
+                TypeElement plugin = (TypeElement) element.getEnclosingElement();
+                if (plugin.getKind() != ElementKind.CLASS
+                        || !processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(plugin.asType()), exportType))
+                    continue;
+                List<ExecutableElement> methods = plugins.get(plugin);
+                if (methods == null) {
+                    methods = new ArrayList<ExecutableElement>();
+                    plugins.put(plugin, methods);
+                }
+                methods.add((ExecutableElement) element);
+            }
+        }
+
+        for (Map.Entry<TypeElement, List<ExecutableElement>> entry : plugins.entrySet()) {
+            try {
+                generate(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "NKScriptExport invoker generation failed: " + e, entry.getKey());
+            }
+        }
+
+        return false;
+    }
+
+    private void generate(TypeElement plugin, List<ExecutableElement> methods) throws IOException {
+
+        String reason = unsupportedReason(plugin);
+        if (reason != null) {
+            note(plugin, reason);
+            return;
+        }
+
+        // Overloads whose parameter types share a simple name collapse onto one member key at
+        // runtime; leave those to reflection rather than guess which one NKScriptTypeInfo kept
+        Map<String, ExecutableElement> members = new LinkedHashMap<String, ExecutableElement>();
+        Set<String> ambiguous = new HashSet<String>();
+        for (ExecutableElement method : methods) {
+            String key = memberKey(method);
+            if (members.containsKey(key))
+                ambiguous.add(key);
+            else
+                members.put(key, method);
+        }
+        for (String key : ambiguous) {
+            members.remove(key);
+            note(plugin, "member " + key + " is ambiguous");
+        }
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(plugin).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(plugin).toString();
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_') + INVOKER_SUFFIX;
+        String pluginType = erasure(plugin.asType());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by nkscripting-processor, do not edit\n");
+        if (!packageName.isEmpty())
+            sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import io.nodekit.nkscripting.NKScriptExport;\n\n");
+        sb.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        sb.append("public final class ").append(simpleName).append(" implements NKScriptExport.Invoker {\n\n");
+
+        sb.append("    public ").append(simpleName).append("() {}\n\n");
+
+        sb.append("    public int indexOf(String key) {\n");
+        sb.append("        switch (key) {\n");
+        int index = 0;
+        for (String key : members.keySet()) {
+            sb.append("            case \"").append(key).append("\": return ").append(index++).append(";\n");
+        }
+        sb.append("            default: return -1;\n");
+        sb.append("        }\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public Object invoke(Object target, int index, Object[] args) throws Exception {\n");
+        sb.append("        switch (index) {\n");
+        index = 0;
+        for (ExecutableElement method : members.values()) {
+            sb.append("            case ").append(index++).append(":\n");
+            String call = callExpression(pluginType, method);
+            if (method.getReturnType().getKind() == TypeKind.VOID) {
+                sb.append("                ").append(call).append(";\n");
+                sb.append("                return null;\n");
+            } else {
+                sb.append("                return ").append(call).append(";\n");
+            }
+        }
+        sb.append("            default:\n");
+        sb.append("                throw new IllegalArgumentException(\"No member \" + index + \" in ").append(simpleName).append("\");\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, plugin).openWriter();
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String unsupportedReason(TypeElement plugin) {
+        Element element = plugin;
+        while (element.getKind().isClass() || element.getKind().isInterface()) {
+            TypeElement type = (TypeElement) element;
+            if (type.getModifiers().contains(Modifier.PRIVATE))
+                return "class is private";
+            if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS)
+                return "class is local";
+            element = type.getEnclosingElement();
+        }
+        return null;
+    }
+
+    // Same key as NKScriptTypeInfoMemberInfo: name followed by ":" and the lower case simple
+    // name of each erased parameter type
+    private String memberKey(ExecutableElement method) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method.getSimpleName());
+        for (VariableElement param : method.getParameters()) {
+            sb.append(":");
+            sb.append(simpleName(processingEnv.getTypeUtils().erasure(param.asType())).toLowerCase());
+        }
+        return sb.toString();
+    }
+
+    private String simpleName(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY)
+            return simpleName(((ArrayType) type).getComponentType()) + "[]";
+        if (type.getKind() == TypeKind.DECLARED)
+            return ((DeclaredType) type).asElement().getSimpleName().toString();
+        return type.toString();
+    }
+
+    private String callExpression(String pluginType, ExecutableElement method) {
+        StringBuilder sb = new StringBuilder();
+        if (method.getModifiers().contains(Modifier.STATIC))
+            sb.append(pluginType);
+        else
+            sb.append("((").append(pluginType).append(") target)");
+        sb.append(".").append(method.getSimpleName()).append("(");
+        List<? extends VariableElement> params = method.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(argumentExpression(params.get(i).asType(), i));
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    // Arguments arrive already converted by NKScriptArgumentBinder, primitives boxed and never null
+    private String argumentExpression(TypeMirror type, int i) {
+        if (type.getKind().isPrimitive()) {
+            String boxed = erasure(processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).asType());
+            return "((" + boxed + ") args[" + i + "])." + type.toString() + "Value()";
+        }
+        return "(" + erasure(type) + ") args[" + i + "]";
+    }
+
+    private String erasure(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private void note(Element element, String reason) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "NKScriptExport invoker not generated, using reflection instead: " + reason, element);
+    }
+}
@@ -0,0 +1,391 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+// Generates an NKSerialize.Codec named <Class>_NKCodec for every model class that is marked
+// @NKSerializable or uses one of the NKSerialize field annotations.  The codec reads and writes
+// fields directly, so it mirrors the reflection codec in NKSerialize field for field.  Classes
+// whose fields or constructor are not reachable from the same package, or with a field type only
+// the reflection codec handles, are skipped with a note and keep using reflection, so a class is
+// always encoded the same way whichever codec it gets.
+@SupportedAnnotationTypes({
+        NKSerializeProcessor.SERIALIZABLE,
+        NKSerializeProcessor.SERIALIZE_IGNORE,
+        NKSerializeProcessor.SERIALIZE_BY,
+        NKSerializeProcessor.SERIALIZE_COLLECTION_INIT_BY
+})
+public class NKSerializeProcessor extends AbstractProcessor {
+
+    static final String SERIALIZE = "io.nodekit.nkscripting.util.NKSerialize";
+    static final String SERIALIZABLE = "io.nodekit.nkscripting.util.NKSerializable";
+    static final String SERIALIZE_IGNORE = SERIALIZE + ".SerializeIgnore";
+    static final String SERIALIZE_BY = SERIALIZE + ".SerializeBy";
+    static final String SERIALIZE_COLLECTION_INIT_BY = SERIALIZE + ".SerializeCollectionInitBy";
+
+    // must match NKSerialize.GENERATED_CODEC_SUFFIX
+    static final String CODEC_SUFFIX = "_NKCodec";
+
+    private static final String SUPPORT = "NKSerialize.CodecSupport";
+
+    private enum FieldKind {
+        SERIALIZER, BASIC, CUSTOM, COLLECTION, ARRAY
+    }
+
+    private static final class FieldInfo {
+        String name;
+        FieldKind kind;
+        String converter;
+        String typeName;
+        String elementType;
+        String initType;
+        String serializerType;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+        Set<TypeElement> models = new LinkedHashSet<TypeElement>();
+
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS)
+                    models.add((TypeElement) element);
+                else if (element.getKind() == ElementKind.FIELD)
+                    models.add((TypeElement) element.getEnclosingElement());
+            }
+        }
+
+        for (TypeElement model : models) {
+            try {
+                generate(model);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "NKSerialize codec generation failed: " + e, model);
+            }
+        }
+
+        return false;
+    }
+
+    private void generate(TypeElement model) throws IOException {
+
+        String reason = unsupportedReason(model);
+        if (reason != null) {
+            note(model, reason);
+            return;
+        }
+
+        List<FieldInfo> fields = new ArrayList<FieldInfo>();
+        for (VariableElement field : ElementFilter.fieldsIn(model.getEnclosedElements())) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || annotation(field, SERIALIZE_IGNORE) != null)
+                continue;
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+                note(model, "field " + field.getSimpleName() + " is private or final");
+                return;
+            }
+            FieldInfo info = fieldInfo(field);
+            if (info == null) {
+                note(model, "field " + field.getSimpleName() + " has a type only the reflection codec handles");
+                return;
+            }
+            fields.add(info);
+        }
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(model).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(model).toString();
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_') + CODEC_SUFFIX;
+        String modelType = erasure(model.asType());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by nkscripting-processor, do not edit\n");
+        if (!packageName.isEmpty())
+            sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import io.nodekit.nkscripting.util.NKSerialize;\n\n");
+        sb.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        sb.append("public final class ").append(simpleName).append(" implements NKSerialize.Codec<").append(modelType).append("> {\n\n");
+
+        for (FieldInfo field : fields) {
+            if (field.kind == FieldKind.SERIALIZER)
+                sb.append("    private final NKSerialize.Serializer ").append(serializerName(field))
+                        .append(" = new ").append(field.serializerType).append("();\n");
+        }
+
+        sb.append("\n    public ").append(simpleName).append("() {}\n\n");
+
+        sb.append("    public ").append(modelType).append(" newInstance() {\n");
+        sb.append("        return new ").append(modelType).append("();\n");
+        sb.append("    }\n\n");
+
+        sb.append("    public void decode(java.util.Map<String, Object> jsonObject, ").append(modelType).append(" t) {\n");
+        sb.append("        Object value;\n");
+        for (FieldInfo field : fields) {
+            sb.append("        value = jsonObject.get(\"").append(field.name).append("\");\n");
+            switch (field.kind) {
+                case CUSTOM:
+                    sb.append("        if (value instanceof java.util.Map) {\n");
+                    break;
+                case COLLECTION:
+                case ARRAY:
+                    sb.append("        if (value instanceof java.util.List) {\n");
+                    break;
+                default:
+                    sb.append("        if (value != null) {\n");
+                    break;
+            }
+            sb.append("            try {\n");
+            sb.append("                t.").append(field.name).append(" = ").append(decodeExpression(field)).append(";\n");
+            sb.append("            } catch (Exception e) {\n");
+            sb.append("                // ignore\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+        }
+        sb.append("    }\n\n");
+
+        sb.append("    public org.json.JSONObject encode(").append(modelType).append(" t) {\n");
+        sb.append("        org.json.JSONObject jsonObject = new org.json.JSONObject();\n");
+        for (FieldInfo field : fields) {
+            sb.append("        try {\n");
+            sb.append("            ").append(SUPPORT).append(".put(jsonObject, \"").append(field.name).append("\", ")
+                    .append(encodeExpression(field)).append(");\n");
+            sb.append("        } catch (Exception e) {\n");
+            sb.append("            // ignore\n");
+            sb.append("        }\n");
+        }
+        sb.append("        return jsonObject;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, model).openWriter();
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String unsupportedReason(TypeElement model) {
+        Set<Modifier> modifiers = model.getModifiers();
+        if (modifiers.contains(Modifier.ABSTRACT))
+            return "class is abstract";
+        if (modifiers.contains(Modifier.PRIVATE))
+            return "class is private";
+        if (model.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC))
+            return "inner class is not static";
+        if (model.getNestingKind() == NestingKind.LOCAL || model.getNestingKind() == NestingKind.ANONYMOUS)
+            return "class is local";
+
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(model.getEnclosedElements());
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+                return null;
+        }
+        return "no non-private default constructor";
+    }
+
+    private FieldInfo fieldInfo(VariableElement field) {
+        FieldInfo info = new FieldInfo();
+        info.name = field.getSimpleName().toString();
+
+        TypeMirror type = field.asType();
+        info.typeName = boxedName(type);
+
+        AnnotationMirror serializeBy = annotation(field, SERIALIZE_BY);
+        if (serializeBy != null) {
+            info.kind = FieldKind.SERIALIZER;
+            info.serializerType = annotationClassValue(serializeBy);
+            return info;
+        }
+
+        String converter = converter(type);
+        if (converter != null) {
+            info.kind = FieldKind.BASIC;
+            info.converter = converter;
+            return info;
+        }
+
+        if (type.getKind() == TypeKind.ARRAY) {
+            // mirrors NKSerialize.isSupportedArrayType
+            TypeMirror component = ((ArrayType) type).getComponentType();
+            if (converter(component) == null && !(component.getKind() == TypeKind.DECLARED
+                    && ((DeclaredType) component).getTypeArguments().isEmpty()))
+                return null;
+            info.kind = FieldKind.ARRAY;
+            info.elementType = erasure(component);
+            return info;
+        }
+
+        if (type.getKind() != TypeKind.DECLARED)
+            return null;
+
+        DeclaredType declared = (DeclaredType) type;
+        if (declared.getTypeArguments().isEmpty()) {
+            info.kind = FieldKind.CUSTOM;
+            return info;
+        }
+
+        TypeMirror collection = processingEnv.getTypeUtils().erasure(
+                processingEnv.getElementUtils().getTypeElement("java.util.Collection").asType());
+        if (!processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type), collection))
+            return null;
+
+        TypeMirror element = declared.getTypeArguments().get(0);
+        if (element.getKind() != TypeKind.DECLARED)
+            return null;
+
+        info.kind = FieldKind.COLLECTION;
+        info.elementType = erasure(element);
+
+        AnnotationMirror initBy = annotation(field, SERIALIZE_COLLECTION_INIT_BY);
+        info.initType = initBy != null ? annotationClassValue(initBy) : "java.util.ArrayList";
+        return info;
+    }
+
+    private String decodeExpression(FieldInfo field) {
+        switch (field.kind) {
+            case SERIALIZER:
+                return "(" + field.typeName + ") " + serializerName(field) + ".deserialization(String.valueOf(value))";
+            case BASIC:
+                return SUPPORT + "." + field.converter + "(value)";
+            case CUSTOM:
+                return SUPPORT + ".decodeObject(value, " + field.typeName + ".class)";
+            case ARRAY:
+                return "(" + field.typeName + ") " + SUPPORT + ".decodeArray(value, " + field.elementType + ".class)";
+            default:
+                return "(" + field.typeName + ") " + SUPPORT + ".decodeCollection(new " + field.initType + "(), value, "
+                        + field.elementType + ".class)";
+        }
+    }
+
+    private String encodeExpression(FieldInfo field) {
+        switch (field.kind) {
+            case SERIALIZER:
+                return serializerName(field) + ".serialization(t." + field.name + ")";
+            case BASIC:
+                return "t." + field.name;
+            case CUSTOM:
+                return SUPPORT + ".encodeObject(t." + field.name + ")";
+            case ARRAY:
+                return SUPPORT + ".encodeArray(t." + field.name + ")";
+            default:
+                return SUPPORT + ".encodeCollection(t." + field.name + ", " + field.elementType + ".class)";
+        }
+    }
+
+    private static String serializerName(FieldInfo field) {
+        return field.name + "Serializer";
+    }
+
+    // Mirrors NKSerialize.isBasicType
+    private String converter(TypeMirror type) {
+        switch (type.getKind()) {
+            case INT:
+                return "toInt";
+            case LONG:
+                return "toLong";
+            case BOOLEAN:
+                return "toBoolean";
+            case DOUBLE:
+                return "toDouble";
+            case FLOAT:
+                return "toFloat";
+            case DECLARED:
+                String name = erasure(type);
+                if (name.equals("java.lang.Integer"))
+                    return "toInt";
+                if (name.equals("java.lang.Long"))
+                    return "toLong";
+                if (name.equals("java.lang.Boolean"))
+                    return "toBoolean";
+                if (name.equals("java.lang.Double"))
+                    return "toDouble";
+                if (name.equals("java.lang.Float"))
+                    return "toFloat";
+                if (name.equals("java.lang.String"))
+                    return "toString";
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private String boxedName(TypeMirror type) {
+        if (type.getKind().isPrimitive())
+            return erasure(processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) type).asType());
+        return erasure(type);
+    }
+
+    private String erasure(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private static AnnotationMirror annotation(Element element, String qualifiedName) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(qualifiedName))
+                return mirror;
+        }
+        return null;
+    }
+
+    private String annotationClassValue(AnnotationMirror mirror) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals("value"))
+                return erasure((TypeMirror) entry.getValue().getValue());
+        }
+        return null;
+    }
+
+    private void note(Element element, String reason) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "NKSerialize codec not generated, using reflection instead: " + reason, element);
+    }
+}
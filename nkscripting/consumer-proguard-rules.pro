@@ -0,0 +1,24 @@
+# Keep rules applied to apps that depend on nkscripting.
+
+# Generated codecs and invokers are looked up by name: <Class>_NKCodec, <Class>_NKInvoker
+-keep class * implements io.nodekit.nkscripting.util.NKSerialize$Codec {
+    public <init>();
+}
+-keep class * implements io.nodekit.nkscripting.NKScriptExport$Invoker {
+    public <init>();
+}
+
+# The lookup starts from the model or plugin class name, so those keep their names too
+-keepnames @io.nodekit.nkscripting.util.NKSerializable class *
+-keepnames class * implements io.nodekit.nkscripting.NKScriptExport
+-if class **_NKCodec
+-keepnames class <1>
+
+# Field and method names are the keys seen by script
+-keepclassmembers @io.nodekit.nkscripting.util.NKSerializable class * {
+    <fields>;
+}
+-keepclassmembers class * implements io.nodekit.nkscripting.NKScriptExport {
+    @android.webkit.JavascriptInterface <methods>;
+}
+-keepattributes *Annotation*,Signature
@@ -80,11 +80,90 @@ console.dir = console.log.debug;
 
 NKScripting.serialize = true;
 
+// Async messages are queued and sent once per microtask, one didReceiveScriptMessageBatch
+// call per run of consecutive messages on the same channel.  Each message is encoded when it
+// is posted so later changes to its arguments are not seen; sync calls and direct sends flush
+// the queue first to keep ordering across channels.  Channels loaded with { batch: false } post
+// every message directly.  A batch the bridge rejects is logged and the rest still go out.
+var batchPromise = (typeof Promise !== 'undefined') ? Promise : null;
+var batchTimeout = (typeof window !== 'undefined') ? window.setTimeout : null;
+var batchQueue = [];
+var batchScheduled = false;
+
+NKScripting.flushMessages = function () {
+    var queue = batchQueue;
+    batchQueue = [];
+    batchScheduled = false;
+
+    var i = 0;
+    while (i < queue.length) {
+        var name = queue[i].name;
+        var join = queue[i].join;
+        var run = [];
+        while (i < queue.length && queue[i].name == name)
+            run.push(queue[i++].payload);
+        try {
+            NKScriptingBridge.didReceiveScriptMessageBatch(name, join(run));
+        } catch (e) {
+            console.error("NKScripting: could not post messages to " + name + ": " + e);
+        }
+    }
+}
+
+function sendMessage(name, payload) {
+    if (batchQueue.length) NKScripting.flushMessages();
+    NKScriptingBridge.didReceiveScriptMessage(name, payload);
+}
+
+function enqueueMessage(name, payload, join) {
+    batchQueue.push({ 'name': name, 'payload': payload, 'join': join });
+    if (batchScheduled)
+        return;
+    batchScheduled = true;
+    if (batchPromise)
+        batchPromise.resolve().then(NKScripting.flushMessages);
+    else
+        batchTimeout(NKScripting.flushMessages, 0);
+}
+
+function joinJson(run) { return '[' + run.join(',') + ']'; }
+
+function joinEncoded(run) { return JSON.stringify(run); }
+
 NKScripting.getMessageHandlers = function (name) {
 
+    var batch = !NKScripting.unbatchedChannels[name];
+
+    if (NKScripting.channelFormats[name] == 'msgpack') {
+        var codec = NKScripting.msgpack;
+        // must match NKMsgPack.MESSAGE_MARKER
+        var encode = function (message) { return '@' + codec.encode(message); };
+        return {
+            'postMessage': function (message) {
+                if (batch)
+                    enqueueMessage(name, encode(message), joinEncoded);
+                else
+                    sendMessage(name, encode(message));
+            },
+            'postMessageSync': function (message) {
+                if (batchQueue.length) NKScripting.flushMessages();
+                return NKScriptingBridge.didReceiveScriptMessageSync(name, encode(message))
+            },
+            'decode': function (result) { return (result == null) ? null : codec.decode(result); }
+        };
+    }
+
     return {
-        'postMessage': function (message) { NKScriptingBridge.didReceiveScriptMessage(name, JSON.stringify(message)); },
-        'postMessageSync': function (message) { return NKScriptingBridge.didReceiveScriptMessageSync(name, JSON.stringify(message)) }
+        'postMessage': function (message) {
+            if (batch)
+                enqueueMessage(name, JSON.stringify(message), joinJson);
+            else
+                sendMessage(name, JSON.stringify(message));
+        },
+        'postMessageSync': function (message) {
+            if (batchQueue.length) NKScripting.flushMessages();
+            return NKScriptingBridge.didReceiveScriptMessageSync(name, JSON.stringify(message))
+        }
     };
 }
 
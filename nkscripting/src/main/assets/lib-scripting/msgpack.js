@@ -0,0 +1,353 @@
+/*
+ * nodekit.io
+ *
+ * Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * MessagePack codec for NKScripting channels opened with { format: 'msgpack' }, matching
+ * io.nodekit.nkscripting.util.NKMsgPack.  Payloads cross the bridge as base64 text.
+ *
+ * Map keys are written as a string the first time they appear in a message and afterwards
+ * as an unsigned int index into the keys seen so far.  Values are encoded with the same
+ * rules as JSON.stringify (toJSON, undefined members skipped) except that typed arrays and
+ * ArrayBuffers are sent as binary and arrive in Java as byte[].
+ */
+NKScripting.msgpack = (function () {
+
+    var POW32 = 4294967296;
+
+    function Encoder() {
+        this.buf = new Uint8Array(256);
+        this.view = new DataView(this.buf.buffer);
+        this.pos = 0;
+        this.keys = Object.create(null);
+        this.keyCount = 0;
+    }
+
+    Encoder.prototype = {
+        ensure: function (n) {
+            if (this.pos + n <= this.buf.length) return;
+            var size = this.buf.length * 2;
+            while (size < this.pos + n) size *= 2;
+            var buf = new Uint8Array(size);
+            buf.set(this.buf);
+            this.buf = buf;
+            this.view = new DataView(buf.buffer);
+        },
+        u8: function (v) {
+            this.ensure(1);
+            this.buf[this.pos++] = v;
+        },
+        u16: function (v) {
+            this.ensure(2);
+            this.view.setUint16(this.pos, v);
+            this.pos += 2;
+        },
+        u32: function (v) {
+            this.ensure(4);
+            this.view.setUint32(this.pos, v);
+            this.pos += 4;
+        },
+        bytes: function (b) {
+            this.ensure(b.length);
+            this.buf.set(b, this.pos);
+            this.pos += b.length;
+        },
+        header: function (size, fix, limit, t16, t32) {
+            if (size < limit) this.u8(fix | size);
+            else if (size < 0x10000) { this.u8(t16); this.u16(size); }
+            else { this.u8(t32); this.u32(size); }
+        },
+        number: function (v) {
+            if (v !== v || v === Infinity || v === -Infinity) {
+                // JSON.stringify turns these into null
+                this.u8(0xc0);
+            } else if (Math.floor(v) === v && Math.abs(v) <= 9007199254740991) {
+                if (v >= 0) {
+                    if (v < 0x80) this.u8(v);
+                    else if (v < 0x100) { this.u8(0xcc); this.u8(v); }
+                    else if (v < 0x10000) { this.u8(0xcd); this.u16(v); }
+                    else if (v < POW32) { this.u8(0xce); this.u32(v); }
+                    else { this.u8(0xcf); this.u32(Math.floor(v / POW32)); this.u32(v >>> 0); }
+                } else {
+                    if (v >= -32) this.u8(v & 0xff);
+                    else if (v >= -128) { this.u8(0xd0); this.u8(v & 0xff); }
+                    else if (v >= -32768) { this.u8(0xd1); this.u16(v & 0xffff); }
+                    else if (v >= -2147483648) { this.u8(0xd2); this.u32(v >>> 0); }
+                    else { this.u8(0xd3); this.u32(Math.floor(v / POW32) >>> 0); this.u32(v >>> 0); }
+                }
+            } else {
+                this.u8(0xcb);
+                this.ensure(8);
+                this.view.setFloat64(this.pos, v);
+                this.pos += 8;
+            }
+        },
+        string: function (s) {
+            var utf8 = encodeUTF8(s);
+            if (utf8.length < 32) this.u8(0xa0 | utf8.length);
+            else if (utf8.length < 0x100) { this.u8(0xd9); this.u8(utf8.length); }
+            else if (utf8.length < 0x10000) { this.u8(0xda); this.u16(utf8.length); }
+            else { this.u8(0xdb); this.u32(utf8.length); }
+            this.bytes(utf8);
+        },
+        key: function (k) {
+            var index = this.keys[k];
+            if (index !== undefined) {
+                this.number(index);
+            } else {
+                this.keys[k] = this.keyCount++;
+                this.string(k);
+            }
+        },
+        value: function (v) {
+            if (v && typeof v.toJSON === 'function')
+                v = v.toJSON();
+
+            switch (typeof v) {
+                case 'string':
+                    return this.string(v);
+                case 'number':
+                    return this.number(v);
+                case 'boolean':
+                    return this.u8(v ? 0xc3 : 0xc2);
+                case 'object':
+                    break;
+                default:
+                    // undefined and functions, same as JSON.stringify inside an array
+                    return this.u8(0xc0);
+            }
+
+            if (v === null)
+                return this.u8(0xc0);
+
+            if (v instanceof ArrayBuffer || ArrayBuffer.isView(v)) {
+                var b = (v instanceof ArrayBuffer) ? new Uint8Array(v) : new Uint8Array(v.buffer, v.byteOffset, v.byteLength);
+                if (b.length < 0x100) { this.u8(0xc4); this.u8(b.length); }
+                else if (b.length < 0x10000) { this.u8(0xc5); this.u16(b.length); }
+                else { this.u8(0xc6); this.u32(b.length); }
+                return this.bytes(b);
+            }
+
+            var i;
+            if (Array.isArray(v)) {
+                this.header(v.length, 0x90, 16, 0xdc, 0xdd);
+                for (i = 0; i < v.length; i++)
+                    this.value(v[i]);
+                return;
+            }
+
+            var names = Object.keys(v).filter(function (k) {
+                var t = typeof v[k];
+                return t !== 'undefined' && t !== 'function';
+            });
+            this.header(names.length, 0x80, 16, 0xde, 0xdf);
+            for (i = 0; i < names.length; i++) {
+                this.key(names[i]);
+                this.value(v[names[i]]);
+            }
+        }
+    };
+
+    function Decoder(bytes) {
+        this.buf = bytes;
+        this.view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength);
+        this.pos = 0;
+        this.keys = [];
+    }
+
+    Decoder.prototype = {
+        u8: function () { return this.buf[this.pos++]; },
+        u16: function () { var v = this.view.getUint16(this.pos); this.pos += 2; return v; },
+        u32: function () { var v = this.view.getUint32(this.pos); this.pos += 4; return v; },
+        i64: function (signed) {
+            var hi = signed ? this.view.getInt32(this.pos) : this.view.getUint32(this.pos);
+            var lo = this.view.getUint32(this.pos + 4);
+            this.pos += 8;
+            return hi * POW32 + lo;
+        },
+        string: function (n) {
+            var s = decodeUTF8(this.buf, this.pos, n);
+            this.pos += n;
+            return s;
+        },
+        binary: function (n) {
+            var b = new Uint8Array(this.buf.subarray(this.pos, this.pos + n));
+            this.pos += n;
+            return b;
+        },
+        array: function (n) {
+            var a = new Array(n);
+            for (var i = 0; i < n; i++)
+                a[i] = this.value();
+            return a;
+        },
+        map: function (n) {
+            var o = {};
+            for (var i = 0; i < n; i++) {
+                var k = this.value();
+                if (typeof k === 'number')
+                    k = this.keys[k];
+                else
+                    this.keys.push(k);
+                o[k] = this.value();
+            }
+            return o;
+        },
+        ext: function (n) {
+            var type = this.view.getInt8(this.pos++);
+            var end = this.pos + n;
+            var result;
+            if (type === -1 && n === 4) {
+                result = new Date(this.u32() * 1000);
+            } else if (type === -1 && n === 8) {
+                var hi = this.u32(), lo = this.u32();
+                result = new Date(((hi & 0x3) * POW32 + lo) * 1000 + Math.floor((hi >>> 2) / 1000000));
+            } else if (type === -1 && n === 12) {
+                var nanos = this.u32();
+                result = new Date(this.i64(true) * 1000 + Math.floor(nanos / 1000000));
+            } else {
+                result = this.binary(n);
+            }
+            this.pos = end;
+            return result;
+        },
+        value: function () {
+            var b = this.u8();
+            if (b < 0x80) return b;
+            if (b >= 0xe0) return b - 0x100;
+            if ((b & 0xe0) === 0xa0) return this.string(b & 0x1f);
+            if ((b & 0xf0) === 0x90) return this.array(b & 0x0f);
+            if ((b & 0xf0) === 0x80) return this.map(b & 0x0f);
+            var v;
+            switch (b) {
+                case 0xc0: return null;
+                case 0xc2: return false;
+                case 0xc3: return true;
+                case 0xc4: return this.binary(this.u8());
+                case 0xc5: return this.binary(this.u16());
+                case 0xc6: return this.binary(this.u32());
+                case 0xc7: return this.ext(this.u8());
+                case 0xc8: return this.ext(this.u16());
+                case 0xc9: return this.ext(this.u32());
+                case 0xca: v = this.view.getFloat32(this.pos); this.pos += 4; return v;
+                case 0xcb: v = this.view.getFloat64(this.pos); this.pos += 8; return v;
+                case 0xcc: return this.u8();
+                case 0xcd: return this.u16();
+                case 0xce: return this.u32();
+                case 0xcf: return this.i64(false);
+                case 0xd0: v = this.view.getInt8(this.pos); this.pos += 1; return v;
+                case 0xd1: v = this.view.getInt16(this.pos); this.pos += 2; return v;
+                case 0xd2: v = this.view.getInt32(this.pos); this.pos += 4; return v;
+                case 0xd3: return this.i64(true);
+                case 0xd4: return this.ext(1);
+                case 0xd5: return this.ext(2);
+                case 0xd6: return this.ext(4);
+                case 0xd7: return this.ext(8);
+                case 0xd8: return this.ext(16);
+                case 0xd9: return this.string(this.u8());
+                case 0xda: return this.string(this.u16());
+                case 0xdb: return this.string(this.u32());
+                case 0xdc: return this.array(this.u16());
+                case 0xdd: return this.array(this.u32());
+                case 0xde: return this.map(this.u16());
+                case 0xdf: return this.map(this.u32());
+            }
+            throw new Error("NKScripting.msgpack: unexpected type 0x" + b.toString(16));
+        }
+    };
+
+    function encodeUTF8(s) {
+        var out = new Uint8Array(s.length * 3), n = 0;
+        for (var i = 0; i < s.length; i++) {
+            var c = s.charCodeAt(i);
+            if (c >= 0xd800 && c < 0xdc00 && i + 1 < s.length) {
+                var d = s.charCodeAt(i + 1);
+                if (d >= 0xdc00 && d < 0xe000) {
+                    c = 0x10000 + ((c - 0xd800) << 10) + (d - 0xdc00);
+                    i++;
+                }
+            }
+            if (c < 0x80) {
+                out[n++] = c;
+            } else if (c < 0x800) {
+                out[n++] = 0xc0 | (c >> 6);
+                out[n++] = 0x80 | (c & 0x3f);
+            } else if (c < 0x10000) {
+                out[n++] = 0xe0 | (c >> 12);
+                out[n++] = 0x80 | ((c >> 6) & 0x3f);
+                out[n++] = 0x80 | (c & 0x3f);
+            } else {
+                out[n++] = 0xf0 | (c >> 18);
+                out[n++] = 0x80 | ((c >> 12) & 0x3f);
+                out[n++] = 0x80 | ((c >> 6) & 0x3f);
+                out[n++] = 0x80 | (c & 0x3f);
+            }
+        }
+        return out.subarray(0, n);
+    }
+
+    function decodeUTF8(b, start, length) {
+        var end = start + length, units = [], s = '';
+        for (var i = start; i < end;) {
+            var c = b[i++];
+            if (c >= 0xf0) {
+                c = ((c & 0x07) << 18) | ((b[i++] & 0x3f) << 12) | ((b[i++] & 0x3f) << 6) | (b[i++] & 0x3f);
+                c -= 0x10000;
+                units.push(0xd800 + (c >> 10), 0xdc00 + (c & 0x3ff));
+            } else if (c >= 0xe0) {
+                units.push(((c & 0x0f) << 12) | ((b[i++] & 0x3f) << 6) | (b[i++] & 0x3f));
+            } else if (c >= 0xc0) {
+                units.push(((c & 0x1f) << 6) | (b[i++] & 0x3f));
+            } else {
+                units.push(c);
+            }
+            if (units.length >= 4096) {
+                s += String.fromCharCode.apply(null, units);
+                units.length = 0;
+            }
+        }
+        return s + String.fromCharCode.apply(null, units);
+    }
+
+    function toBase64(bytes) {
+        var s = '';
+        for (var i = 0; i < bytes.length; i += 8192)
+            s += String.fromCharCode.apply(null, bytes.subarray(i, i + 8192));
+        return btoa(s);
+    }
+
+    function fromBase64(text) {
+        var s = atob(text);
+        var bytes = new Uint8Array(s.length);
+        for (var i = 0; i < s.length; i++)
+            bytes[i] = s.charCodeAt(i);
+        return bytes;
+    }
+
+    return {
+        encode: function (value) {
+            var encoder = new Encoder();
+            encoder.value(value);
+            return toBase64(encoder.buf.subarray(0, encoder.pos));
+        },
+        decode: function (text) {
+            return new Decoder(fromBase64(text)).value();
+        },
+        toBase64: toBase64,
+        fromBase64: fromBase64
+    };
+})();
@@ -85,6 +85,58 @@
 
     NKScripting.messageHandlers = {};
 
+    // Wire format per channel name, set by the plugin stubs before the plugin is created
+    NKScripting.channelFormats = {};
+
+    NKScripting.setChannelFormat = function (channelName, format) {
+        NKScripting.channelFormats[channelName] = format;
+    }
+
+    // Pending promises returned by plugin stubs, by correlation id
+    var nextPromiseID = 1;
+    NKScripting.promises = {};
+
+    NKScripting.settlePromise = function (id, fulfilled, value) {
+        var promise = NKScripting.promises[id];
+        if (!promise)
+            return;
+        delete NKScripting.promises[id];
+        if (fulfilled)
+            promise.resolve(value);
+        else
+            promise.reject(new Error(value));
+    }
+
+    // Channels whose async messages are posted one by one instead of batched, see init_androidwebview.js
+    NKScripting.unbatchedChannels = {};
+
+    NKScripting.setChannelBatching = function (channelName, enabled) {
+        if (enabled)
+            delete NKScripting.unbatchedChannels[channelName];
+        else
+            NKScripting.unbatchedChannels[channelName] = true;
+    }
+
+    var typedArrayTypes = {
+        'u8': Uint8Array, 'i16': Int16Array, 'i32': Int32Array, 'f32': Float32Array, 'f64': Float64Array
+    };
+
+    // Typed array view over the little-endian element bytes sent base64 encoded by plugins loaded with typedArrays
+    NKScripting.typedArray = function (type, data) {
+        var s = atob(data);
+        var bytes = new Uint8Array(s.length);
+        for (var i = 0; i < s.length; i++)
+            bytes[i] = s.charCodeAt(i);
+        var ctor = typedArrayTypes[type] || Uint8Array;
+        return new ctor(bytes.buffer, 0, bytes.length / ctor.BYTES_PER_ELEMENT);
+    }
+
+    NKScripting.reviver = function (key, value) {
+        if (value && typeof value === 'object' && value.$nkta)
+            return NKScripting.typedArray(value.$nkta, value.$data);
+        return JSON.dateParser ? JSON.dateParser(key, value) : value;
+    }
+
     NKScripting.createNamespace = function (namespace, object) {
         function callback(p, c, i, a) {
             if (i < a.length - 1)
@@ -184,26 +236,28 @@
             throw 'Invalid invocation';
 
         var args = Array.prototype.slice.call(arguments, 1);
+
+        // Integer opcode assigned by the native channel, sent as $op next to the member name
+        var op;
+        var at = name.lastIndexOf('@');
+        if (at >= 0) {
+            op = parseInt(name.slice(at + 1), 10);
+            name = name.slice(0, at);
+        }
+
+        // Promise members are settled by the native side through NKScripting.settlePromise
+        // with the correlation id sent as $promise
+        var promised = false;
         if (name.lastIndexOf('#') >= 0) {
             // Parse type coding
             var t = name.split('#');
             name = t[0];
             args.length = parseInt(t[1], 10) || args.length;
-            if (t[1].slice(-1) == 'p') {
-                // Return a Promise object for async operation
-                args.unshift(name);
-                return Promise((function (args, resolve, reject) {
-                    args[args.length - 1] = {
-                        'resolve': resolve,
-                        'reject': reject
-                    };
-                    NKScripting.invokeNative.apply(this, args);
-                }).bind(this, args));
-            }
+            promised = t[1].slice(-1) == 'p' && name != '+';
         }
 
         var operand = [];
-        if (this.$properties && this.$properties.hasOwnProperty(name)) {
+        if (!promised && this.$properties && this.$properties.hasOwnProperty(name)) {
             // Update property
             operand = this.$retainObject(args[0]);
             this.$properties[name] = args[0];
@@ -216,23 +270,37 @@
             if (operand.length < args.length)
                 operand.fill(null, operand.length, args.length);
         }
-        if ((name == "+") || (name.indexOf("Sync", operand.length - "Sync".length) !== -1)) {
-            var result = this.$channel.postMessageSync({
-                '$opcode': name,
-                '$operand': operand,
-                '$target': this.$instanceID || 0
+        var message = {
+            '$opcode': name,
+            '$op': op,
+            '$operand': operand,
+            '$target': this.$instanceID || 0
+        };
+
+        if (promised) {
+            // Return a Promise object for async operation
+            var channel = this.$channel;
+            return new Promise(function (resolve, reject) {
+                var id = nextPromiseID++;
+                NKScripting.promises[id] = {
+                    'resolve': resolve,
+                    'reject': reject
+                };
+                message.$promise = id;
+                channel.postMessage(message);
             });
+        }
+        if ((name == "+") || (name.indexOf("Sync", operand.length - "Sync".length) !== -1)) {
+            var result = this.$channel.postMessageSync(message);
 
             if (result != 'undefined') {
-                return JSON.parse(result, JSON.dateParser);
+                if (this.$channel.decode)
+                    return this.$channel.decode(result);
+                return JSON.parse(result, NKScripting.reviver);
             }
         }
         else
-            this.$channel.postMessage({
-                '$opcode': name,
-                '$operand': operand,
-                '$target': this.$instanceID || 0
-            });
+            this.$channel.postMessage(message);
     }
 
     NKScripting.shouldPassByValue = function (obj) {
@@ -281,6 +349,14 @@
             delete this.$references[refid];
             this.$lastRefID = refid;
         },
+        // Sent in batches by the native side once it no longer holds stubs for these references
+        $releaseObjects: function (refids) {
+            refids.forEach(function (refid) {
+                delete this.$references[refid];
+                if (refid < this.$lastRefID)
+                    this.$lastRefID = refid;
+            }, this);
+        },
         dispose: function () {
             this.$channel.postMessage({
                 '$opcode': '-',
@@ -12,4 +12,8 @@ function setInterval(callback, ms) {
 function clearTimeout(indentifier) {
     
     NodeKitTimer.clearTimeoutSync(indentifier)
-}
\ No newline at end of file
+}
+function clearInterval(indentifier) {
+
+    NodeKitTimer.clearTimeoutSync(indentifier)
+}
@@ -51,6 +51,14 @@ public interface NKScriptExport
 
     }
 
+    // Implemented by the <Class>_NKInvoker classes that nkscripting-processor generates for
+    // plugins; calls @JavascriptInterface methods from a switch instead of Method.invoke
+    public interface Invoker
+    {
+        int indexOf(String key);
+        Object invoke(Object target, int index, Object[] args) throws Exception;
+    }
+
     public enum NKScriptExportType
     {
         NKScriptExport,
@@ -0,0 +1,88 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.nodekit.nkscripting.util.NKLogging;
+
+// Completion object for plugin methods whose script stub returns a Promise.  Declare it as the
+// last parameter of an @JavascriptInterface method (it is not passed from script) and settle it
+// once, from any thread; methods returning a java.util.concurrent.Future get one implicitly.
+// Settlements are queued as NKScripting.settlePromise calls, so all promises settled within one
+// frame reach the page in a single evaluation.  A promise member called from Java instead gets
+// one that settles into the caller's callback.
+public final class NKScriptPromise {
+
+    private final NKScriptValue scripting;
+    private final int id;
+    private final android.webkit.ValueCallback<Object> callback;
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    // scripting is the NKScripting global of the calling channel; id the correlation id sent as $promise
+    public NKScriptPromise(NKScriptValue scripting, int id) {
+        this.scripting = scripting;
+        this.id = id;
+        this.callback = null;
+    }
+
+    // Settles into callback, which may be null: the value when fulfilled, {"name", "message"} when
+    // rejected, the rejection being logged as well
+    public NKScriptPromise(android.webkit.ValueCallback<Object> callback) {
+        this.scripting = null;
+        this.id = 0;
+        this.callback = callback;
+    }
+
+    public void resolve(Object value) {
+        settle(true, value);
+    }
+
+    public void reject(Object reason) {
+        if (reason instanceof Throwable) {
+            Throwable t = (Throwable) reason;
+            reason = (t.getMessage() != null) ? t.getMessage() : t.toString();
+        }
+        settle(false, reason);
+    }
+
+    public boolean isSettled() {
+        return settled.get();
+    }
+
+    private void settle(boolean fulfilled, Object value) {
+        if (!settled.compareAndSet(false, true))
+            return;
+        if (scripting == null) {
+            if (!fulfilled) {
+                NKLogging.log("NKScriptPromise rejected: " + value, NKLogging.Level.Error);
+                Map<String, Object> error = new HashMap<String, Object>();
+                error.put("name", "Error");
+                error.put("message", String.valueOf(value));
+                value = error;
+            }
+            if (callback != null)
+                callback.onReceiveValue(value);
+            return;
+        }
+        scripting.invokeMethod("settlePromise", new Object[] { id, fulfilled, value });
+    }
+}
@@ -0,0 +1,27 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting;
+
+// Optional for NKScriptContext implementations that can coalesce evaluations: expressions are
+// queued and evaluated together later, in order, each completion handler getting its own result
+public interface NKScriptQueueingContext
+{
+    void queueJavaScript(String expression, android.webkit.ValueCallback<String> callback) throws Exception ;
+
+}
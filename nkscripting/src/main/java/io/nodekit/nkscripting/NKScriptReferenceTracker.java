@@ -0,0 +1,205 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.nodekit.nkscripting.util.NKLogging;
+import io.nodekit.nkscripting.util.NKWeakRegistry;
+
+// Releases $references entries retained by $retainObject in nkscripting.js once the
+// NKScriptValue stubs wrapping them are no longer reachable from Java.  A low priority daemon
+// thread collects the stubs from a ReferenceQueue and, at most once per RELEASE_INTERVAL_MS,
+// sends one $releaseObjects call per script object that owns released references.  A reference
+// wrapped by several stubs is released when the last of them goes.
+final class NKScriptReferenceTracker {
+
+    private NKScriptReferenceTracker() {}
+
+    static final long RELEASE_INTERVAL_MS = 1000;
+
+    // Reference bookkeeping of one context, kept alive by its tracked stubs
+    private static final class ContextState {
+        final AtomicInteger live = new AtomicInteger();
+        final ConcurrentHashMap<String, AtomicInteger> holders = new ConcurrentHashMap<String, AtomicInteger>();
+    }
+
+    private static final class Tracked extends PhantomReference<NKScriptValue> {
+        final WeakReference<NKScriptContext> context;
+        final ContextState state;
+        final String origin;
+        final int reference;
+        final String key;
+
+        Tracked(NKScriptValue value, NKScriptContext context, ContextState state, String origin, int reference, String key) {
+            super(value, queue);
+            this.context = new WeakReference<NKScriptContext>(context);
+            this.state = state;
+            this.origin = origin;
+            this.reference = reference;
+            this.key = key;
+        }
+    }
+
+    private static final ReferenceQueue<NKScriptValue> queue = new ReferenceQueue<NKScriptValue>();
+
+    // Phantom references must stay reachable themselves until they are enqueued
+    private static final Set<Tracked> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Tracked, Boolean>());
+
+    private static final NKWeakRegistry<NKScriptContext, ContextState> states = NKWeakRegistry.identityKeys();
+
+    private static Thread reaper;
+
+    static void track(NKScriptValue value, NKScriptContext context, String origin, int reference) {
+        if (context == null || origin == null)
+            return;
+
+        ContextState state = stateFor(context);
+        String key = origin + "#" + reference;
+
+        AtomicInteger holders = state.holders.get(key);
+        if (holders == null) {
+            holders = new AtomicInteger();
+            AtomicInteger existing = state.holders.putIfAbsent(key, holders);
+            if (existing != null)
+                holders = existing;
+        }
+        if (holders.getAndIncrement() == 0)
+            state.live.incrementAndGet();
+
+        tracked.add(new Tracked(value, context, state, origin, reference, key));
+        ensureStarted();
+    }
+
+    static int liveReferences(NKScriptContext context) {
+        ContextState state = states.get(context);
+        return (state != null) ? state.live.get() : 0;
+    }
+
+    private static synchronized ContextState stateFor(NKScriptContext context) {
+        ContextState state = states.get(context);
+        if (state == null) {
+            state = new ContextState();
+            states.put(context, state);
+        }
+        return state;
+    }
+
+    private static synchronized void ensureStarted() {
+        if (reaper != null)
+            return;
+
+        reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        reap();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        NKLogging.log(e);
+                    }
+                }
+            }
+        }, "NKScriptReferenceTracker");
+        reaper.setDaemon(true);
+        reaper.setPriority(Thread.MIN_PRIORITY);
+        reaper.start();
+    }
+
+    // Waits for the first released stub, then gathers everything released within the interval
+    private static void reap() throws InterruptedException {
+        Map<NKScriptContext, Map<String, List<Integer>>> batch = new HashMap<NKScriptContext, Map<String, List<Integer>>>();
+
+        collect(queue.remove(), batch);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RELEASE_INTERVAL_MS);
+        long remaining;
+        while ((remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+            Reference<? extends NKScriptValue> ref = queue.remove(remaining);
+            if (ref == null)
+                break;
+            collect(ref, batch);
+        }
+
+        for (Map.Entry<NKScriptContext, Map<String, List<Integer>>> entry : batch.entrySet())
+            release(entry.getKey(), entry.getValue());
+    }
+
+    private static void collect(Reference<? extends NKScriptValue> ref, Map<NKScriptContext, Map<String, List<Integer>>> batch) {
+        Tracked t = (Tracked) ref;
+        tracked.remove(t);
+        t.clear();
+
+        AtomicInteger holders = t.state.holders.get(t.key);
+        if (holders == null || holders.decrementAndGet() > 0)
+            return;
+        t.state.holders.remove(t.key, holders);
+        t.state.live.decrementAndGet();
+
+        NKScriptContext context = t.context.get();
+        if (context == null)
+            return;
+
+        Map<String, List<Integer>> origins = batch.get(context);
+        if (origins == null) {
+            origins = new HashMap<String, List<Integer>>();
+            batch.put(context, origins);
+        }
+        List<Integer> refs = origins.get(t.origin);
+        if (refs == null) {
+            refs = new ArrayList<Integer>();
+            origins.put(t.origin, refs);
+        }
+        refs.add(t.reference);
+    }
+
+    private static void release(NKScriptContext context, Map<String, List<Integer>> origins) {
+        for (Map.Entry<String, List<Integer>> entry : origins.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("(function(){try{").append(entry.getKey()).append(".$releaseObjects([");
+            List<Integer> refs = entry.getValue();
+            for (int i = 0; i < refs.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(refs.get(i));
+            }
+            sb.append("])}catch(e){}})()");
+
+            try {
+                NKScriptValue.queueJavaScript(context, sb.toString(), null);
+            } catch (Exception e) {
+                NKLogging.log(e);
+            }
+        }
+    }
+}
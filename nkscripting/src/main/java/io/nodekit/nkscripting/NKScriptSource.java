@@ -23,6 +23,8 @@ import io.nodekit.nkscripting.util.NKLogging;
 public class NKScriptSource   
 {
     public String source;
+    // source without the sourceURL comment, for bundling with other sources
+    public String code;
     public String cleanup;
     public String filename;
     public String ns;
@@ -46,6 +48,7 @@ public class NKScriptSource
             this.ns = null;
             this.cleanup = null;
         }
+        this.code = source;
        if (this.filename.equals(""))
         {
             this.source = source;
@@ -65,12 +68,17 @@ public class NKScriptSource
     }
 
     public void inject(NKScriptContext context) throws Exception {
-        this.injected = true;
-        this._context = context;
+        markInjected(context);
         context.evaluateJavaScript(source, null);
         NKLogging.log(String.format("+E%s Injected %s ", context.id(), filename));
     }
 
+    // For sources evaluated by the context as part of a larger script
+    public void markInjected(NKScriptContext context) {
+        this.injected = true;
+        this._context = context;
+    }
+
     public void eject() {
         if (!injected)
             return ;
@@ -85,6 +93,7 @@ public class NKScriptSource
         }
 
         source = null;
+        code = null;
         cleanup = null;
         filename = null;
         _context = null;
@@ -20,10 +20,11 @@ package io.nodekit.nkscripting;
 
 import android.support.annotation.Nullable;
 
-import java.util.HashMap;
-
+import io.nodekit.nkscripting.util.NKJsonWriter;
 import io.nodekit.nkscripting.util.NKLogging;
+import io.nodekit.nkscripting.util.NKMsgPack;
 import io.nodekit.nkscripting.util.NKSerialize;
+import io.nodekit.nkscripting.util.NKWeakRegistry;
 
 public class NKScriptValue {
 
@@ -33,6 +34,10 @@ public class NKScriptValue {
 
     protected NKScriptValue _origin = null;
 
+    // Encoding for arguments passed to script, follows the channel this value came from
+    protected NKSerialize.WireFormat wireFormat = NKSerialize.WireFormat.JSON;
+    protected boolean typedArrays = false;
+
     private static final ThreadLocal<NKScriptContext> contextThreadLocal = new ThreadLocal<NKScriptContext>();
 
     public static void setCurrentContext(NKScriptContext context) {
@@ -59,8 +64,11 @@ public class NKScriptValue {
     {
         this.namespace = namespace;
         this.context = context;
-        if (origin != null)
+        if (origin != null) {
             this._origin = origin;
+            this.wireFormat = origin.wireFormat;
+            this.typedArrays = origin.typedArrays;
+        }
         else
             this._origin = this;
     }
@@ -72,6 +80,9 @@ public class NKScriptValue {
         this.namespace = String.format("%s.$references[%s]", origin.namespace, reference);
         this.reference = reference;
         this.context = context;
+        this.wireFormat = origin.wireFormat;
+        this.typedArrays = origin.typedArrays;
+        NKScriptReferenceTracker.track(this, context, origin.namespace, reference);
     }
 
     public void callWithArguments(Object[] arguments, android.webkit.ValueCallback<String> completionHandler) {
@@ -161,9 +172,28 @@ public class NKScriptValue {
 
     private String scriptForCallingMethod(String name, Object[] arguments)   {
 
-        String script = scriptForFetchingProperty(name) + "(" + NKSerialize.serializeArgs(arguments) + ")";
+        NKJsonWriter script = NKJsonWriter.obtain();
+        if (typedArrays)
+            script.typedArrays(NKJsonWriter.TYPED_ARRAYS_SCRIPT);
+
+        script.raw("(function line_eval(){ try { return ")
+                .raw(scriptForFetchingProperty(name));
+
+        if (wireFormat == NKSerialize.WireFormat.MSGPACK && arguments != null && arguments.length > 0) {
+            script.raw(".apply(")
+                    .raw((name == null) ? "null" : this.namespace)
+                    .raw(", NKScripting.msgpack.decode(\"")
+                    .raw(NKMsgPack.encodeToString(arguments))
+                    .raw("\"))");
+        } else {
+            script.append('(')
+                    .args(arguments)
+                    .append(')');
+        }
 
-        return "(function line_eval(){ try { return " + script + "} catch(ex) { console.log(ex.toString()); return ex} })()";
+        script.raw("} catch(ex) { console.log(ex.toString()); return ex} })()");
+
+        return script.toStringAndRecycle();
 
     }
 
@@ -171,14 +201,33 @@ public class NKScriptValue {
     private String scriptForUpdatingProperty(String name, Object value)
     {
 
-        return scriptForFetchingProperty(name) + " = " + NKSerialize.serialize(value);
+        NKJsonWriter script = NKJsonWriter.obtain();
+        if (typedArrays)
+            script.typedArrays(NKJsonWriter.TYPED_ARRAYS_SCRIPT);
+
+        script.raw(scriptForFetchingProperty(name)).raw(" = ");
+
+        if (wireFormat == NKSerialize.WireFormat.MSGPACK && value != null)
+            script.raw("NKScripting.msgpack.decode(\"").raw(NKMsgPack.encodeToString(value)).raw("\")");
+        else
+            script.value(value);
+
+        return script.toStringAndRecycle();
+
+    }
 
+    // Coalesced per frame on contexts that queue evaluations, evaluated straight away on others
+    static void queueJavaScript(NKScriptContext context, String expression, android.webkit.ValueCallback<String> completionHandler) throws Exception {
+        if (context instanceof NKScriptQueueingContext)
+            ((NKScriptQueueingContext) context).queueJavaScript(expression, completionHandler);
+        else
+            context.evaluateJavaScript(expression, completionHandler);
     }
 
     private void evaluateExpression(String expression, android.webkit.ValueCallback<String> completionHandler )
     {
         try {
-            this.context.evaluateJavaScript(expression, completionHandler);
+            queueJavaScript(this.context, expression, completionHandler);
         } catch (Exception e) {
              NKLogging.log(e);
              if (null != completionHandler)
@@ -192,30 +241,43 @@ public class NKScriptValue {
         return (_origin != null) ? String.format("%s.$retainObject(%s)", _origin.namespace, script) : script;
     }
 
+    // $references entries of the context still wrapped by reachable NKScriptValue stubs
+    public static int liveReferenceCount(NKScriptContext context)
+    {
+        return NKScriptReferenceTracker.liveReferences(context);
+    }
+
     // STATIC METHODS FOR ANY OBJECT
-    private static HashMap<Object, NKScriptValue> objScriptValue = new HashMap<Object, NKScriptValue>();
+    // Weak on both sides: the channel that bound the object keeps its NKScriptValue alive
+    private static final NKWeakRegistry<Object, NKScriptValue> objScriptValue = NKWeakRegistry.identityKeys();
 
     public static NKScriptValue getForObject(Object obj)
     {
-
-        return objScriptValue.containsKey(obj) ? objScriptValue.get(obj) : null;
+        return objScriptValue.get(obj);
     }
 
     public static void invokeMethodForObject(Object obj, String method, Object[] arguments)
     {
-
-       if (objScriptValue.containsKey(obj))
+        NKScriptValue value = objScriptValue.get(obj);
+        if (value != null)
         {
-            objScriptValue.get(obj).invokeMethod(method, arguments);
+            value.invokeMethod(method, arguments);
         }
     }
 
-    public static void setForObject(Object obj, NKScriptValue value)
+    // Returns the generation of the registration, for removeForObject
+    public static long setForObject(Object obj, NKScriptValue value)
     {
         if (value != null)
-            objScriptValue.put(obj, value);
-        else
-            objScriptValue.remove(obj);
+            return objScriptValue.put(obj, value);
+
+        objScriptValue.remove(obj);
+        return 0;
+    }
+
+    public static void removeForObject(Object obj, long generation)
+    {
+        objScriptValue.remove(obj, generation);
     }
 
 }
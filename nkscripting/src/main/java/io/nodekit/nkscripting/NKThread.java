@@ -0,0 +1,52 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Thread a plugin method runs on when called from script, on a method or as the default for
+// every method of an NKScriptExport class.  Without it methods run on the calling thread,
+// which for WebView contexts is the single JavaBridge thread shared by all plugins.
+//
+//   @NKThread(NKThread.Mode.MAIN)                        main looper
+//   @NKThread(NKThread.Mode.BACKGROUND)                  shared work-stealing pool
+//   @NKThread(value = NKThread.Mode.SERIAL, queue = "db") one at a time, in order, per queue name;
+//                                                        the plugin namespace when queue is empty
+//
+// Async calls return to script straight away and hand their result to the completion callback;
+// sync calls wait for the method to finish on its thread.  MAIN methods must be called async, a
+// sync call to one from off the main looper is refused.
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface NKThread {
+
+    enum Mode {
+        CALLER,
+        MAIN,
+        BACKGROUND,
+        SERIAL
+    }
+
+    Mode value() default Mode.CALLER;
+
+    String queue() default "";
+}
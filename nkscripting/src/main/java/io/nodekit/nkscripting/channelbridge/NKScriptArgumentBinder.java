@@ -0,0 +1,288 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.channelbridge;
+
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.Map;
+
+import io.nodekit.nkscripting.NKScriptPromise;
+import io.nodekit.nkscripting.NKScriptValue;
+import io.nodekit.nkscripting.util.NKLogging;
+import io.nodekit.nkscripting.util.NKSerialize;
+
+// Converts the decoded $operand list of a call straight into the typed argument array of one
+// plugin method or constructor.  The conversion for each parameter is chosen once, when the
+// member is reflected, so a call only walks the operand list and switches on the parameter kind.
+@SuppressWarnings("unchecked")
+final class NKScriptArgumentBinder {
+
+    private static final int KIND_INT = 0;
+    private static final int KIND_LONG = 1;
+    private static final int KIND_SHORT = 2;
+    private static final int KIND_BYTE = 3;
+    private static final int KIND_DOUBLE = 4;
+    private static final int KIND_FLOAT = 5;
+    private static final int KIND_BOOLEAN = 6;
+    private static final int KIND_CHAR = 7;
+    private static final int KIND_STRING = 8;
+    private static final int KIND_SCRIPT_VALUE = 9;
+    private static final int KIND_CALLBACK = 10;
+    private static final int KIND_MAP = 11;
+    private static final int KIND_LIST = 12;
+    private static final int KIND_ARRAY = 13;
+    private static final int KIND_OBJECT = 14;
+    private static final int KIND_CODEC = 15;
+    private static final int KIND_PROMISE = 16;
+
+    // $sig of a JavaScript object retained by reference, see $retainObject in nkscripting.js
+    private static final int REFERENCE_SIGNATURE = 0x5857574F;
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final Class[] types;
+    private final int[] kinds;
+    private final NKScriptArgumentBinder[] elements;
+    private final boolean lastIsScriptValue;
+    private final int promiseIndex;
+
+    NKScriptArgumentBinder(Class[] parameterTypes) {
+        this.types = parameterTypes;
+        this.kinds = new int[parameterTypes.length];
+        this.elements = new NKScriptArgumentBinder[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            kinds[i] = kindOf(parameterTypes[i]);
+            if (kinds[i] == KIND_ARRAY)
+                elements[i] = new NKScriptArgumentBinder(new Class[] { parameterTypes[i].getComponentType() });
+        }
+        this.lastIsScriptValue = parameterTypes.length > 0 && kinds[parameterTypes.length - 1] == KIND_SCRIPT_VALUE;
+
+        int promise = -1;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (kinds[i] == KIND_PROMISE)
+                promise = i;
+        }
+        this.promiseIndex = promise;
+    }
+
+    int arity() {
+        return types.length;
+    }
+
+    // Number of arguments passed from script; an NKScriptPromise parameter is not one of them
+    int scriptArity() {
+        return (promiseIndex >= 0) ? types.length - 1 : types.length;
+    }
+
+    boolean takesPromise() {
+        return promiseIndex >= 0;
+    }
+
+    Object[] bind(List<Object> operand, NKScriptValueNative self) {
+        return bind(operand, self, null);
+    }
+
+    Object[] bind(List<Object> operand, NKScriptValueNative self, NKScriptPromise promise) {
+        final int arity = types.length;
+        if (arity == 0)
+            return NO_ARGS;
+
+        final int count = (operand == null) ? 0 : operand.size();
+        Object[] args = new Object[arity];
+
+        // j walks the operand, skipping the promise parameter
+        for (int i = 0, j = 0; i < arity; i++) {
+            if (i == promiseIndex) {
+                args[i] = promise;
+            } else if (j < count) {
+                args[i] = convert(i, operand.get(j++), self);
+            } else if (j++ == count && i == arity - 1 && lastIsScriptValue) {
+                // omitted trailing NKScriptValue receives the calling script object itself
+                args[i] = self;
+            } else {
+                args[i] = defaultValue(types[i]);
+            }
+        }
+
+        return args;
+    }
+
+    private Object convert(int index, Object value, NKScriptValueNative self) {
+        final Class type = types[index];
+
+        if (value == null)
+            return defaultValue(type);
+
+        try {
+            switch (kinds[index]) {
+                case KIND_INT:
+                    return (value instanceof Number) ? ((Number) value).intValue() : (int) parseNumber(value);
+                case KIND_LONG:
+                    return (value instanceof Number) ? ((Number) value).longValue() : (long) parseNumber(value);
+                case KIND_SHORT:
+                    return (value instanceof Number) ? ((Number) value).shortValue() : (short) parseNumber(value);
+                case KIND_BYTE:
+                    return (value instanceof Number) ? ((Number) value).byteValue() : (byte) parseNumber(value);
+                case KIND_DOUBLE:
+                    return (value instanceof Number) ? ((Number) value).doubleValue() : parseNumber(value);
+                case KIND_FLOAT:
+                    return (value instanceof Number) ? ((Number) value).floatValue() : (float) parseNumber(value);
+                case KIND_BOOLEAN:
+                    if (value instanceof Boolean)
+                        return value;
+                    if (value instanceof Number)
+                        return ((Number) value).doubleValue() != 0;
+                    return "true".equalsIgnoreCase(value.toString());
+                case KIND_CHAR: {
+                    String s = value.toString();
+                    return s.isEmpty() ? defaultValue(type) : s.charAt(0);
+                }
+                case KIND_STRING:
+                    if ((value instanceof Map<?, ?>) || (value instanceof List<?>))
+                        return NKSerialize.serialize(value);
+                    return value.toString();
+                case KIND_SCRIPT_VALUE: {
+                    Object wrapped = wrapScriptObject(value, self);
+                    return (wrapped instanceof NKScriptValue) ? wrapped : null;
+                }
+                case KIND_CALLBACK: {
+                    Object wrapped = wrapScriptObject(value, self);
+                    return (wrapped instanceof NKScriptValue) ? callbackFor((NKScriptValue) wrapped) : null;
+                }
+                case KIND_MAP:
+                    return (value instanceof Map<?, ?>) ? value : null;
+                case KIND_LIST:
+                    return (value instanceof List<?>) ? value : null;
+                case KIND_ARRAY:
+                    if (type.isInstance(value))
+                        return value;
+                    return (value instanceof List<?>) ? elements[index].toArray((List<Object>) value, self) : null;
+                case KIND_CODEC:
+                    if (type.isInstance(value))
+                        return value;
+                    return NKSerialize.CodecSupport.decodeObject(value, type);
+                case KIND_PROMISE:
+                    return null;
+                default:
+                    return wrapScriptObject(value, self);
+            }
+        } catch (RuntimeException e) {
+            NKLogging.log(String.format("NKNodeKit Cannot convert argument %d (%s) to %s", index, value, type.getSimpleName()), NKLogging.Level.Warning);
+            return defaultValue(type);
+        }
+    }
+
+    // Used on the single parameter binder of an array component type
+    private Object toArray(List<Object> list, NKScriptValueNative self) {
+        Object array = Array.newInstance(types[0], list.size());
+        for (int i = 0; i < list.size(); i++)
+            Array.set(array, i, convert(0, list.get(i), self));
+        return array;
+    }
+
+    // JavaScript objects passed by reference or by namespace become NKScriptValue stubs
+    static Object wrapScriptObject(Object obj, NKScriptValueNative self) {
+        if (!(obj instanceof Map<?, ?>))
+            return obj;
+
+        Map<String, Object> dict = (Map<String, Object>) obj;
+
+        Object sig = dict.get("$sig");
+        if ((sig instanceof Number) && ((Number) sig).intValue() == REFERENCE_SIGNATURE) {
+            int num = ((Number) dict.get("$ref")).intValue();
+            return new NKScriptValue(num, self.context, self);
+        }
+
+        Object ns = dict.get("$ns");
+        if (ns instanceof String)
+            return new NKScriptValue((String) ns, self.context, self);
+
+        return obj;
+    }
+
+    private static android.webkit.ValueCallback callbackFor(final NKScriptValue function) {
+        return new android.webkit.ValueCallback<Object>() {
+            @Override
+            public void onReceiveValue(Object value) {
+                function.callWithArguments(new Object[] { value }, null);
+            }
+        };
+    }
+
+    private static double parseNumber(Object value) {
+        return Double.parseDouble(value.toString());
+    }
+
+    private static Object defaultValue(Class type) {
+        if (!type.isPrimitive())
+            return null;
+        if (type == boolean.class)
+            return false;
+        if (type == char.class)
+            return '\0';
+        if (type == long.class)
+            return 0L;
+        if (type == double.class)
+            return 0d;
+        if (type == float.class)
+            return 0f;
+        if (type == short.class)
+            return (short) 0;
+        if (type == byte.class)
+            return (byte) 0;
+        return 0;
+    }
+
+    private static int kindOf(Class type) {
+        if (type == int.class || type == Integer.class)
+            return KIND_INT;
+        if (type == long.class || type == Long.class)
+            return KIND_LONG;
+        if (type == short.class || type == Short.class)
+            return KIND_SHORT;
+        if (type == byte.class || type == Byte.class)
+            return KIND_BYTE;
+        if (type == double.class || type == Double.class)
+            return KIND_DOUBLE;
+        if (type == float.class || type == Float.class)
+            return KIND_FLOAT;
+        if (type == boolean.class || type == Boolean.class)
+            return KIND_BOOLEAN;
+        if (type == char.class || type == Character.class)
+            return KIND_CHAR;
+        if (type == String.class || type == CharSequence.class)
+            return KIND_STRING;
+        if (type == NKScriptPromise.class)
+            return KIND_PROMISE;
+        if (NKScriptValue.class.isAssignableFrom(type))
+            return KIND_SCRIPT_VALUE;
+        if (type == android.webkit.ValueCallback.class)
+            return KIND_CALLBACK;
+        if (type.isAssignableFrom(Map.class) && type != Object.class)
+            return KIND_MAP;
+        if (type.isAssignableFrom(List.class) && type != Object.class)
+            return KIND_LIST;
+        if (type.isArray())
+            return KIND_ARRAY;
+        if (type == Object.class || type.isInterface() || type.isEnum()
+                || type.getName().startsWith("java.") || type.getName().startsWith("android."))
+            return KIND_OBJECT;
+        return KIND_CODEC;
+    }
+}
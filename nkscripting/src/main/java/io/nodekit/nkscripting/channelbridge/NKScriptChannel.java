@@ -21,8 +21,8 @@ package io.nodekit.nkscripting.channelbridge;
 import io.nodekit.nkscripting.*;
 import io.nodekit.nkscripting.util.*;
 import io.nodekit.nkscripting.channelbridge.NKScriptTypeInfo.NKScriptTypeInfoMemberInfo;
+import java.lang.ref.WeakReference;
 import java.util.*;
-import android.util.SparseArray;
 
 public class NKScriptChannel implements NKScriptMessage.Handler {
 
@@ -30,11 +30,15 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
     private Boolean isFactory = false;
     private Boolean isRemote = false;
     private NKScriptValueNative _principal;
+    private NKScriptValue _scripting;
 
-    private static HashMap<String, NKScriptChannel> _channels = new HashMap<String, NKScriptChannel>();
+    // Registries hold channels weakly; a channel lives as long as its context's message handler
+    private static final NKWeakRegistry<String, NKScriptChannel> _channels = NKWeakRegistry.equalityKeys();
+    private long _channelRegistration;
 
-    private SparseArray<NKScriptValueNative> _instances = new SparseArray<NKScriptValueNative>();
-    private static SparseArray<NKScriptChannel> _instanceChannels = new SparseArray<NKScriptChannel>();
+    // Instances are created and disposed on the bridge thread while native code calls into them
+    private NKIntMap<NKScriptValueNative> _instances = new NKIntMap<NKScriptValueNative>();
+    private static final NKIntMap<WeakReference<NKScriptChannel>> _instanceChannels = new NKIntMap<WeakReference<NKScriptChannel>>();
 
     // Internal variables and helpers
     private static int nativeFirstSequence = java.lang.Integer.MAX_VALUE;
@@ -44,6 +48,9 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
     public NKScriptContext context;
     public String ns;
     public NKScriptTypeInfo typeInfo;
+    public NKSerialize.WireFormat format = NKSerialize.WireFormat.JSON;
+    public boolean typedArrays = false;
+    public boolean batching = true;
 
 
     // Public constructors
@@ -62,13 +69,16 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
         this.ns = namespace;
         this.id = Integer.toString(NKScriptChannel.sequenceNumber++);
         this.isFactory = true;
+        this.format = NKSerialize.WireFormat.fromOption(options.get("format"));
+        this.typedArrays = Boolean.TRUE.equals(options.get("typedArrays"));
+        this.batching = !Boolean.FALSE.equals(options.get("batch"));
 
-        ((NKScriptMessage.Controller)context).addScriptMessageHandler(this, id);
+        ((NKScriptMessage.Controller)context).addScriptMessageHandler(this, id, format, typedArrays);
 
         // Class, not instance, passed to bindPlugin -- to be used in Factory constructor/instance pattern in js
         String name = pluginType.getSimpleName().toLowerCase();
 
-        typeInfo = new NKScriptTypeInfo<T>(pluginType);
+        typeInfo = NKScriptTypeInfo.forClass(pluginType);
 
 
         // Need to store the channel on the class itself so it can be found when native construct requests come in from other plugins
@@ -77,12 +87,10 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
         _principal = new NKScriptValueNative(this.ns, this, 0, pluginType);
 
         this._instances.put(0, _principal);
-        _channels.put(this.ns, this);
+        _channelRegistration = _channels.put(this.ns, this);
         NKScriptValue.setForObject(pluginType, _principal);
 
-        NKScriptExport.Proxy export = new NKScriptExport.Proxy(pluginType);
-
-        NKScriptSource script = new NKScriptSource(_generateStubs(export, name, options), ns + "/plugin/" + name + ".js");
+        NKScriptSource script = new NKScriptSource(_stubsFor(pluginType, name, options), ns + "/plugin/" + name + ".js");
         context.injectJavaScript(script);
          return _principal;
     }
@@ -99,24 +107,25 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
         this.id = Integer.toString(NKScriptChannel.sequenceNumber++);
         this.ns = namespace;
         this.isFactory = false;
+        this.format = NKSerialize.WireFormat.fromOption(options.get("format"));
+        this.typedArrays = Boolean.TRUE.equals(options.get("typedArrays"));
+        this.batching = !Boolean.FALSE.equals(options.get("batch"));
 
-        ((NKScriptMessage.Controller)context).addScriptMessageHandler(this, id);
+        ((NKScriptMessage.Controller)context).addScriptMessageHandler(this, id, format, typedArrays);
 
         // Instance of Princpal passed to bindPlugin -- to be used in singleton/static pattern in js
         Class<T> pluginType = (Class<T>)plugin.getClass();
         String name = pluginType.getSimpleName().toLowerCase();
 
-         typeInfo = new NKScriptTypeInfo<T>(plugin, pluginType);
+        typeInfo = NKScriptTypeInfo.forClass(pluginType);
 
         _principal = new NKScriptValueNative(this.ns, this, 0, plugin);
 
         this._instances.put(0, _principal);
-        _channels.put(this.ns, this);
+        _channelRegistration = _channels.put(this.ns, this);
         NKScriptValue.setForObject(plugin, _principal);
 
-        NKScriptExport.Proxy export = new NKScriptExport.Proxy(pluginType);
-
-        NKScriptSource script = new NKScriptSource(_generateStubs(export, name, options), ns + "/plugin/" + name + ".js");
+        NKScriptSource script = new NKScriptSource(_stubsFor(pluginType, name, options), ns + "/plugin/" + name + ".js");
         context.injectJavaScript(script);
         return _principal;
     }
@@ -129,13 +138,19 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
     public int getNativeSeq()
     {
         int id = NKScriptChannel.nativeFirstSequence--;
-        _instanceChannels.put(id, this);
+        _instanceChannels.put(id, new WeakReference<NKScriptChannel>(this));
         return id;
     }
 
     public static NKScriptChannel getNative(int id)
     {
-       return _instanceChannels.get(id);
+        WeakReference<NKScriptChannel> ref = _instanceChannels.get(id);
+        if (ref == null)
+            return null;
+        NKScriptChannel channel = ref.get();
+        if (channel == null)
+            _instanceChannels.remove(id, ref);
+        return channel;
     }
 
     public void addInstance(int id, NKScriptValueNative instance) {
@@ -143,9 +158,9 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
     }
 
     public void removeInstance(int id) {
-        _instances.delete(id);
+        _instances.remove(id);
 
-      _instanceChannels.delete(id);
+        _instanceChannels.remove(id);
 
         if (!isFactory)
             NKEventEmitter.global.emit("NKS.SingleInstanceComplete", this.ns);
@@ -154,8 +169,8 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
 
     private void unbind()
     {
-        if (_channels.containsKey(ns))
-            _channels.remove(ns);
+        if (ns != null)
+            _channels.remove(ns, _channelRegistration);
 
         if (id == null) return;
 
@@ -193,10 +208,24 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
             if (body.containsKey("$opcode")) {
                 String opcode = (String) body.get("$opcode");
 
-                int target = Integer.parseInt(body.get("$target").toString());
-                if (_instances.indexOfKey(target) >= 0) {
-                    NKScriptValueNative obj = _instances.get(target);
-                    if (opcode.equals("-")) {
+                int target = targetOf(body.get("$target"));
+                NKScriptValueNative obj = _instances.get(target);
+                if (obj != null) {
+                    NKScriptTypeInfoMemberInfo member = typeInfo.item(body.get("$op"), opcode);
+                    if (member != null && member.isMethod()) {
+                        List<Object> operand = (List<Object>)body.get("$operand");
+
+                        // Invoke method; results of promise members go back by correlation id
+                        Object promise = body.get("$promise");
+                        if (member.isPromise && promise instanceof Number) {
+                            obj.invokeNativePromise(member, operand, new NKScriptPromise(scripting(), ((Number) promise).intValue()));
+                        } else {
+                            if (member.isPromise)
+                                NKLogging.log(String.format("NKNodeKit Promise member called without $promise: %s", opcode), NKLogging.Level.Warning);
+                            obj.invokeNativeMethod(member, operand, null);
+                        }
+
+                    } else if (opcode.equals("-")) {
                         if (target == 0) {
                             // Dispose plugin
                             this.unbind();
@@ -204,29 +233,21 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
                     //        setObjectNKScriptValue(obj, null);
                             _instances.remove(target);
                         }
-                    } else if (typeInfo.containsMethod(opcode)) {
-                        ArrayList<Object> al = (ArrayList<Object>)body.get("$operand");
-
-                        // Invoke method
-                        // TODO:  SYNC RESULT
-                        obj.invokeNativeMethod(opcode, al.toArray(), null);
-
                     } else {
                         NKLogging.log(String.format("NKNodeKit Invalid member name: %s", opcode), NKLogging.Level.Error);
                     }
                 } else if (opcode.equals("+")) {
                     // Create instance
-                    ArrayList<Object> al = (ArrayList<Object>)body.get("$operand");
-                    Object[] args = al.toArray();
+                    List<Object> operand = (List<Object>)body.get("$operand");
 
                     // Create instance
                       String nsInstance = String.format(Locale.US, "%s[%d]", this.ns, target);
-                    _instances.put(target, new NKScriptValueNative(nsInstance, this, target, args, true));
+                    _instances.put(target, new NKScriptValueNative(nsInstance, this, target, operand, true));
                 } else {
                     // else Unknown opcode
                     if (NKScriptMessage.Handler.class.isAssignableFrom(_principal.nativeObject.getClass())) {
-                        NKScriptMessage.Handler obj = (NKScriptMessage.Handler) _principal.nativeObject;
-                        obj.didReceiveScriptMessage(message);
+                        NKScriptMessage.Handler handler = (NKScriptMessage.Handler) _principal.nativeObject;
+                        handler.didReceiveScriptMessage(message);
                     } else {
                         // discard unknown message
                         NKLogging.log(String.format("NKNodeKit Unknown message: %s", message.body.toString()), NKLogging.Level.Error);
@@ -255,11 +276,18 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
             if (body.containsKey("$opcode"))
             {
                 String opcode = (String) body.get("$opcode");
-                int target = Integer.parseInt(body.get("$target").toString());
-                if (_instances.indexOfKey(target) >= 0)
+                int target = targetOf(body.get("$target"));
+                NKScriptValueNative obj = _instances.get(target);
+                if (obj != null)
                 {
-                    NKScriptValueNative obj = _instances.get(target);
-                    if (opcode.equals("-"))
+                    NKScriptTypeInfoMemberInfo member = typeInfo.item(body.get("$op"), opcode);
+                    if (member != null && member.isMethod())
+                    {
+                        List<Object> operand = (List<Object>)body.get("$operand");
+                        // Invoke method
+                        result = obj.invokeNativeMethodSync(member, operand);
+                    }
+                    else if (opcode.equals("-"))
                     {
                         if (target == 0)
                         {
@@ -267,9 +295,8 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
                             this.unbind();
                             result = true;
                         }
-                        else if (_instances.indexOfKey(target) >=0 )
+                        else if (_instances.remove(target) != null)
                         {
-                            setObjectNKScriptChannel(obj, null);
                             result = true;
                         }
                         else
@@ -278,12 +305,6 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
                             result = false;
                         }
                     }
-                    else if (typeInfo.containsMethod(opcode))
-                    {
-                        ArrayList<Object> al = (ArrayList<Object>)body.get("$operand");
-                        // Invoke method
-                        result = obj.invokeNativeMethodSync(opcode, al.toArray());
-                    }
                     else {
                         NKLogging.log(String.format("NKNodeKit Invalid member name: %s", opcode), NKLogging.Level.Error);
                         result = false;
@@ -291,19 +312,18 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
                 }
                 else if (opcode.equals("+"))
                 {
-                    ArrayList<Object> al = (ArrayList<Object>)body.get("$operand");
+                    List<Object> operand = (List<Object>)body.get("$operand");
                     // Create instance
-                    Object[] args = al.toArray();
                     String nsInstance = String.format(Locale.US, "%s[%d]", this.ns, target);
-                    _instances.put(target, new NKScriptValueNative(nsInstance, this, target, args, true));
+                    _instances.put(target, new NKScriptValueNative(nsInstance, this, target, operand, true));
                     result = true;
                 }
                 else
                 {
                     // else Unknown opcode
                     if (NKScriptMessage.Handler.class.isAssignableFrom(_principal.nativeObject.getClass())) {
-                        NKScriptMessage.Handler obj = (NKScriptMessage.Handler) _principal.nativeObject;
-                        result = obj.didReceiveScriptMessageSync(message);
+                        NKScriptMessage.Handler handler = (NKScriptMessage.Handler) _principal.nativeObject;
+                        result = handler.didReceiveScriptMessageSync(message);
                     }
                     else
                     {
@@ -322,12 +342,44 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
     }
 
 
+    // NKScripting global of the page, with this channel's wire format, for settling promises
+    private NKScriptValue scripting() {
+        NKScriptValue value = _scripting;
+        if (value == null) {
+            value = new NKScriptValue("NKScripting", context, _principal);
+            _scripting = value;
+        }
+        return value;
+    }
+
+    private static int targetOf(Object target)
+    {
+        if (target instanceof Number)
+            return ((Number) target).intValue();
+        return Integer.parseInt(target.toString());
+    }
+
+    // key carries the js type code and the integer opcode, e.g. 'factorial:int:nkscriptvalue#2a@3'
     private String _generateMethod(String key, String item, Boolean prebind)
     {
         String stub = String.format("NKScripting.invokeNative.bind(%s, '%s')", item, key);
         return prebind ? String.format("%s;", stub) : "function(){return " + stub + ".apply(null, arguments);}";
     }
 
+    // Stub source from NKScriptStubCache, generated only the first time this plugin is bound
+    private String _stubsFor(Class pluginType, final String name, final HashMap<String, Object> options)
+    {
+        final NKScriptExport.Proxy export = new NKScriptExport.Proxy(pluginType);
+
+        return NKScriptStubCache.stubFor(pluginType, ns, isFactory, (String) options.get("js"), format, batching, id, new NKScriptStubCache.Generator() {
+            @Override
+            public String generate() {
+                return _generateStubs(export, name, options);
+            }
+        });
+    }
+
+    // Channel id is left as NKScriptStubCache.CHANNEL_ID so the result can be shared
     private String _generateStubs(NKScriptExport.Proxy export, String name, HashMap<String, Object> options)
     {
         Boolean prebind = !this.isFactory;
@@ -340,7 +392,7 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
             String stub;
             if ((member.isMethod()) && (!member.name.equals("")))
             {
-                String methodStr = _generateMethod(String.format("%s%s", member.key, member.getNKScriptingjsType()), prebind ? "exports" : "this", prebind);
+                String methodStr = _generateMethod(String.format(Locale.US, "%s%s@%d", member.key, member.getNKScriptingjsType(), member.id), prebind ? "exports" : "this", prebind);
                 if (member.isAsyncCallback)
                 {
                     stub = String.format("exports.%s = %s", member.name + "Sync", methodStr);
@@ -369,7 +421,14 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
         }
 
         String localstub = export.rewriteGeneratedStub(stubs.toString(), ".local");
-        String globalstubber = "(function(exports) {\n" + localstub + "})(NKScripting.createPlugin('" + id + "', '" + this.ns + "', " + basestub + "));\n";
+        String globalstubber = "(function(exports) {\n" + localstub + "})(NKScripting.createPlugin('" + NKScriptStubCache.CHANNEL_ID + "', '" + this.ns + "', " + basestub + "));\n";
+
+        if (format != NKSerialize.WireFormat.JSON)
+            globalstubber = "NKScripting.setChannelFormat('" + NKScriptStubCache.CHANNEL_ID + "', '" + format.name().toLowerCase(Locale.US) + "');\n" + globalstubber;
+
+        // Latency sensitive plugins opt out of async message batching with { batch: false }
+        if (!batching)
+            globalstubber = "NKScripting.setChannelBatching('" + NKScriptStubCache.CHANNEL_ID + "', false);\n" + globalstubber;
 
         if (options.containsKey("js"))
         {
@@ -382,12 +441,11 @@ public class NKScriptChannel implements NKScriptMessage.Handler {
     }
 
     // STATIC METHODS FOR ANY OBJECT
-    private static HashMap<Object, NKScriptChannel> objScriptChannel = new HashMap<Object, NKScriptChannel>();
-    private static HashMap<Object, NKScriptValue> objScriptValue = new HashMap<Object, NKScriptValue>();
+    private static final NKWeakRegistry<Object, NKScriptChannel> objScriptChannel = NKWeakRegistry.identityKeys();
 
     public static NKScriptChannel getObjectNKScriptChannel(Object obj)
     {
-        return objScriptChannel.containsKey(obj) ? objScriptChannel.get(obj) : null;
+        return objScriptChannel.get(obj);
     }
 
     static void setObjectNKScriptChannel(Object obj, NKScriptChannel value)
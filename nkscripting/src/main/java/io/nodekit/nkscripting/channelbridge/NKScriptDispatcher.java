@@ -0,0 +1,262 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.channelbridge;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.nodekit.nkscripting.NKScriptPromise;
+import io.nodekit.nkscripting.NKThread;
+import io.nodekit.nkscripting.util.NKLogging;
+
+// Executors behind @NKThread, shared by every context in the process
+final class NKScriptDispatcher {
+
+    private NKScriptDispatcher() {}
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private static final Executor MAIN = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mainHandler.post(command);
+        }
+    };
+
+    private static volatile ForkJoinPool background;
+    private static volatile FutureWatcher watching;
+
+    private static final ConcurrentHashMap<String, Executor> serialQueues = new ConcurrentHashMap<String, Executor>();
+
+    // null for CALLER, so the method runs inline, and for SERIAL without a queue name, whose queue
+    // is the plugin namespace and so is only known once the class is bound
+    static Executor executorFor(NKThread thread) {
+        if (thread == null)
+            return null;
+
+        switch (thread.value()) {
+            case MAIN:
+                return MAIN;
+            case BACKGROUND:
+                return background();
+            case SERIAL:
+                return thread.queue().length() == 0 ? null : serialQueue(thread.queue());
+            default:
+                return null;
+        }
+    }
+
+    static boolean isSerialByNamespace(NKThread thread) {
+        return thread != null && thread.value() == NKThread.Mode.SERIAL && thread.queue().length() == 0;
+    }
+
+    static Executor serialQueue(String name) {
+        Executor queue = serialQueues.get(name);
+        if (queue == null) {
+            queue = new SerialExecutor();
+            Executor existing = serialQueues.putIfAbsent(name, queue);
+            if (existing != null)
+                queue = existing;
+        }
+        return queue;
+    }
+
+    // Runs a sync call on its executor and waits for the result; inline when already on the main looper.
+    // Waiting on the main looper from elsewhere is refused: the main thread may itself be blocked on
+    // the script that made the call, and neither would ever return.
+    static Object callAndWait(Executor executor, Callable<Object> call) throws Exception {
+        if (executor == MAIN) {
+            if (Looper.myLooper() == Looper.getMainLooper())
+                return call.call();
+            throw new IllegalStateException("@NKThread(MAIN) methods cannot be called synchronously from script");
+        }
+
+        FutureTask<Object> task = new FutureTask<Object>(call);
+        executor.execute(task);
+        return task.get();
+    }
+
+    // java.util.concurrent.Future has no completion callback before CompletableFuture (API 24), so a
+    // Future that is not yet done is handed to a single watcher thread that polls every pending one;
+    // a Future that never completes costs a list entry rather than a blocked thread
+    static void settleWhenDone(Future<?> future, NKScriptPromise promise) {
+        if (future.isDone()) {
+            settle(future, promise);
+            return;
+        }
+
+        watcher().add(future, promise);
+    }
+
+    private static void settle(Future<?> future, NKScriptPromise promise) {
+        try {
+            promise.resolve(future.get());
+        } catch (ExecutionException e) {
+            promise.reject(e.getCause());
+        } catch (CancellationException e) {
+            promise.reject("cancelled");
+        } catch (InterruptedException e) {
+            promise.reject(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static FutureWatcher watcher() {
+        FutureWatcher watcher = watching;
+        if (watcher == null) {
+            synchronized (NKScriptDispatcher.class) {
+                watcher = watching;
+                if (watcher == null) {
+                    watcher = new FutureWatcher();
+                    watching = watcher;
+                }
+            }
+        }
+        return watcher;
+    }
+
+    private static ForkJoinPool background() {
+        ForkJoinPool pool = background;
+        if (pool == null) {
+            synchronized (NKScriptDispatcher.class) {
+                pool = background;
+                if (pool == null) {
+                    // async mode: FIFO for submitted tasks, like Executors.newWorkStealingPool
+                    pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+                    background = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    // Runs its tasks one at a time, in submission order, on the background pool
+    private static final class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private Runnable active;
+
+        @Override
+        public synchronized void execute(final Runnable command) {
+            tasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } catch (RuntimeException e) {
+                        NKLogging.log(e);
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (active == null)
+                scheduleNext();
+        }
+
+        private synchronized void scheduleNext() {
+            active = tasks.poll();
+            if (active != null)
+                background().execute(active);
+        }
+    }
+
+    // Polls pending Futures from one daemon thread, backing off while none completes and parking
+    // while none is pending
+    private static final class FutureWatcher implements Runnable {
+        private static final long MIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+        private final ConcurrentLinkedQueue<Pending> added = new ConcurrentLinkedQueue<Pending>();
+        private final Thread thread;
+
+        // owned by the watcher thread
+        private final ArrayList<Pending> pending = new ArrayList<Pending>();
+
+        FutureWatcher() {
+            thread = new Thread(this, "NKScriptPromise");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void add(Future<?> future, NKScriptPromise promise) {
+            added.add(new Pending(future, promise));
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            long poll = MIN_POLL_NANOS;
+            while (true) {
+                for (Pending entry = added.poll(); entry != null; entry = added.poll()) {
+                    pending.add(entry);
+                    poll = MIN_POLL_NANOS;
+                }
+
+                boolean settled = false;
+                for (int i = pending.size() - 1; i >= 0; i--) {
+                    Pending entry = pending.get(i);
+                    if (entry.future.isDone()) {
+                        pending.remove(i);
+                        settled = true;
+                        try {
+                            settle(entry.future, entry.promise);
+                        } catch (RuntimeException e) {
+                            NKLogging.log(e);
+                        }
+                    }
+                }
+
+                if (pending.isEmpty()) {
+                    // an add after the check unparks us, so the park returns straight away
+                    if (added.isEmpty())
+                        LockSupport.park(this);
+                    poll = MIN_POLL_NANOS;
+                } else {
+                    LockSupport.parkNanos(this, poll);
+                    poll = settled ? MIN_POLL_NANOS : Math.min(poll * 2, MAX_POLL_NANOS);
+                }
+            }
+        }
+
+        private static final class Pending {
+            final Future<?> future;
+            final NKScriptPromise promise;
+
+            Pending(Future<?> future, NKScriptPromise promise) {
+                this.future = future;
+                this.promise = promise;
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ package io.nodekit.nkscripting.channelbridge;
 
 import java.lang.reflect.*;
 import java.util.Locale;
+import java.util.concurrent.Future;
+
+import io.nodekit.nkscripting.NKScriptPromise;
 import io.nodekit.nkscripting.util.NKLogging;
 
 class NKScriptInvocation
@@ -53,10 +56,9 @@ class NKScriptInvocation
 
     }
 
-    Object call(Method method, Object[] args)  {
+    Object call(NKScriptTypeInfo.NKScriptTypeInfoMemberInfo member, Object[] args)  {
         try {
-           return method.invoke(target, args);
-            // return method.invoke(target, unwrapArgs(method, args));
+            return invoke(member, args);
         } catch (Exception e)
         {
             NKLogging.log(e);
@@ -64,18 +66,43 @@ class NKScriptInvocation
         }
     }
 
-    void callAsync(Method method, Object[] args, android.webkit.ValueCallback callback)  {
+    void callAsync(NKScriptTypeInfo.NKScriptTypeInfoMemberInfo member, Object[] args, android.webkit.ValueCallback<Object> callback)  {
         try {
+            Object result = invoke(member, args);
             if (callback != null)
-                method.invoke(target, args, callback);
-            else
-                method.invoke(target, args);
+                callback.onReceiveValue(result);
         } catch (Exception e)
         {
             NKLogging.log(e);
         }
     }
 
+    // Settles the promise with the result, once the returned Future completes, or with the failure;
+    // methods taking the NKScriptPromise themselves settle it
+    void callPromise(NKScriptTypeInfo.NKScriptTypeInfoMemberInfo member, Object[] args, NKScriptPromise promise)  {
+        try {
+            Object result = invoke(member, args);
+            if (member.returnsFuture && result != null)
+                NKScriptDispatcher.settleWhenDone((Future) result, promise);
+            else if (!member.binder.takesPromise())
+                promise.resolve(result);
+        } catch (InvocationTargetException e)
+        {
+            promise.reject(e.getCause());
+        } catch (Exception e)
+        {
+            NKLogging.log(e);
+            promise.reject(e);
+        }
+    }
+
+    // Generated invokers call the method from a switch; anything they do not cover is reflected
+    private Object invoke(NKScriptTypeInfo.NKScriptTypeInfoMemberInfo member, Object[] args) throws Exception {
+        if (member.invoker != null)
+            return member.invoker.invoke(target, member.invokerIndex, args);
+        return member.getmethod().invoke(target, args);
+    }
+
     @SuppressWarnings("ConstantConditions")
     protected Object[] unwrapArgs(Method m, Object[] args) {
 
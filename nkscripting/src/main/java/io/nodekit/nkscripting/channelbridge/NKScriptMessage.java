@@ -18,6 +18,8 @@
 
 package io.nodekit.nkscripting.channelbridge;
 
+import io.nodekit.nkscripting.util.NKSerialize;
+
 import java.util.Map;
 
 public class NKScriptMessage
@@ -32,9 +34,12 @@ public class NKScriptMessage
     public interface Controller
     {
         void addScriptMessageHandler(Handler scriptMessageHandler, String name) throws Exception;
+        void addScriptMessageHandler(Handler scriptMessageHandler, String name, NKSerialize.WireFormat format, boolean typedArrays) throws Exception;
         void removeScriptMessageHandlerForName(String name) throws Exception;
     }
 
+    // Messages from the engine carry an NKJsonLazyObject here, so nested members such as
+    // $operand are only decoded when a handler actually reads them
     public Object body;
     public String name;
 
@@ -0,0 +1,201 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.channelbridge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.nodekit.nkscripting.NKApplication;
+import io.nodekit.nkscripting.util.NKLogging;
+import io.nodekit.nkscripting.util.NKSerialize;
+import io.nodekit.nkscripting.util.NKStorage;
+
+// Generated plugin stub scripts, keyed by plugin class, namespace, binding kind, the js, format
+// and batch options and the APK install timestamp.  A stub is generated, helper script included, the
+// first time a plugin is bound and every later context or BrowserWindow binding the same plugin
+// reuses the source.  The channel id differs per binding, so the cached source carries
+// CHANNEL_ID where it goes.  With setPersistent(true) stubs are also written under the cache
+// dir and survive restarts until the APK is updated.
+public final class NKScriptStubCache {
+
+    private NKScriptStubCache() {}
+
+    static final String CHANNEL_ID = "\u0001NKScriptChannel.id\u0001";
+
+    private static final String CACHE_DIR = "nkscripting-stubs";
+
+    interface Generator {
+        String generate();
+    }
+
+    private static final ConcurrentHashMap<String, String> _stubs = new ConcurrentHashMap<String, String>();
+    private static volatile boolean _persistent = false;
+    private static boolean _pruned = false;
+
+    public static void setPersistent(boolean persistent) {
+        _persistent = persistent;
+    }
+
+    public static void clear() {
+        _stubs.clear();
+        File dir = baseDir();
+        if (dir != null)
+            delete(dir);
+    }
+
+    // js, format and batching are the plugin options that change the generated source
+    static String stubFor(Class pluginType, String ns, boolean isFactory, String js, NKSerialize.WireFormat format,
+                          boolean batching, String channelId, Generator generator) {
+        String key = pluginType.getName() + "|" + ns + "|" + (isFactory ? "class" : "instance") + "|"
+                + js + "|" + format + "|" + (batching ? "batch" : "nobatch") + "|" + NKStorage.getInstalledTimeStamp();
+
+        String stub = _stubs.get(key);
+
+        if (stub == null && _persistent)
+            stub = read(key);
+
+        if (stub == null) {
+            stub = generator.generate();
+            if (_persistent)
+                write(key, stub);
+        }
+
+        _stubs.putIfAbsent(key, stub);
+        return stub.replace(CHANNEL_ID, channelId);
+    }
+
+    // Files start with their full key, so a digest collision reads as a miss
+    private static String read(String key) {
+        File file = fileFor(key);
+        if (file == null || !file.exists())
+            return null;
+
+        try {
+            InputStream is = new FileInputStream(file);
+            byte[] data;
+            try {
+                data = new byte[(int) file.length()];
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = is.read(data, offset, data.length - offset);
+                    if (read < 0)
+                        return null;
+                    offset += read;
+                }
+            } finally {
+                is.close();
+            }
+
+            String content = new String(data, StandardCharsets.UTF_8);
+            int newline = content.indexOf('\n');
+            if (newline < 0 || !content.substring(0, newline).equals(key))
+                return null;
+            return content.substring(newline + 1);
+        } catch (Exception e) {
+            NKLogging.log(e);
+            return null;
+        }
+    }
+
+    private static void write(String key, String stub) {
+        File file = fileFor(key);
+        if (file == null)
+            return;
+
+        try {
+            File dir = file.getParentFile();
+            if (!dir.exists() && !dir.mkdirs())
+                return;
+
+            // written aside and renamed, so a concurrent reader never sees half a stub
+            File temp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+            OutputStream os = new FileOutputStream(temp);
+            try {
+                os.write((key + "\n" + stub).getBytes(StandardCharsets.UTF_8));
+            } finally {
+                os.close();
+            }
+            if (!temp.renameTo(file))
+                temp.delete();
+        } catch (Exception e) {
+            NKLogging.log(e);
+        }
+    }
+
+    private static File fileFor(String key) {
+        File base = baseDir();
+        if (base == null)
+            return null;
+
+        String installed = Long.toString(NKStorage.getInstalledTimeStamp());
+        pruneOnce(base, installed);
+        return new File(new File(base, installed), digest(key) + ".js");
+    }
+
+    // Stubs of earlier installs are never read again
+    private static synchronized void pruneOnce(File base, String installed) {
+        if (_pruned)
+            return;
+        _pruned = true;
+
+        File[] dirs = base.listFiles();
+        if (dirs == null)
+            return;
+        for (File dir : dirs) {
+            if (!dir.getName().equals(installed))
+                delete(dir);
+        }
+    }
+
+    private static File baseDir() {
+        try {
+            return new File(NKApplication.getAppContext().getCacheDir(), CACHE_DIR);
+        } catch (Exception e) {
+            NKLogging.log(e);
+            return null;
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash)
+                sb.append(String.format("%02x", b & 0xff));
+            return sb.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+}
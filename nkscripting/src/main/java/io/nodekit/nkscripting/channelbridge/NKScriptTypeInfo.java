@@ -20,46 +20,47 @@ package io.nodekit.nkscripting.channelbridge;
 
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import android.webkit.JavascriptInterface;
+import io.nodekit.nkscripting.NKScriptExport;
+import io.nodekit.nkscripting.NKThread;
 import io.nodekit.nkscripting.util.NKLogging;
 
 @SuppressWarnings("unchecked")
 class NKScriptTypeInfo<T> {
 
-    private Class<T> _pluginType;
-    private T _instance;
-    private Map<String, NKScriptTypeInfoMemberInfo> _members;
-    private NKScriptTypeInfoMemberInfo _defaultConstructor;
-
-    NKScriptTypeInfo(Class<T> pluginType)  {
+    static final String GENERATED_INVOKER_SUFFIX = "_NKInvoker";
 
-        _pluginType = pluginType;
-        _defaultConstructor = null;
+    // One per plugin class for the whole process, shared by every context that binds it.  Built
+    // once on first bind and never changed after it is published here.
+    private static final ConcurrentHashMap<Class, NKScriptTypeInfo> _types = new ConcurrentHashMap<Class, NKScriptTypeInfo>();
 
+    private final Class<T> _pluginType;
+    private Map<String, NKScriptTypeInfoMemberInfo> _members;
+    private NKScriptTypeInfoMemberInfo[] _memberTable;
+    private NKScriptTypeInfoMemberInfo _defaultConstructor;
 
-        try {
-            Constructor ctor= _pluginType.getDeclaredConstructors()[0];
-            ctor.setAccessible(true);
-         _instance= (T)(ctor.newInstance());
-        } catch (Exception e) {
-            NKLogging.log(e);
-            _instance = null;
+    static <T> NKScriptTypeInfo<T> forClass(Class<T> pluginType) {
+        NKScriptTypeInfo<T> typeInfo = _types.get(pluginType);
+        if (typeInfo == null) {
+            // a race only reflects twice, the first one published wins
+            NKScriptTypeInfo<T> created = new NKScriptTypeInfo<T>(pluginType);
+            NKScriptTypeInfo<T> existing = _types.putIfAbsent(pluginType, created);
+            typeInfo = (existing != null) ? existing : created;
         }
-
-        this.reflectMethods();
-
+        return typeInfo;
     }
 
-    NKScriptTypeInfo(T instance, Class<T> pluginType)  {
+    private NKScriptTypeInfo(Class<T> pluginType)  {
 
         _pluginType = pluginType;
-        _instance = instance;
+        _defaultConstructor = null;
 
         this.reflectMethods();
 
     }
 
-
     private void reflectMethods() {
 
         _members = new HashMap<String, NKScriptTypeInfoMemberInfo>();
@@ -80,6 +81,8 @@ class NKScriptTypeInfo<T> {
             }
         }
 
+        NKScriptExport.Invoker invoker = generatedInvoker(_pluginType);
+
         for (Method m : _pluginType.getDeclaredMethods()) {
             int modifiers = m.getModifiers();
             if (m.isAnnotationPresent(JavascriptInterface.class) && Modifier.isPublic(modifiers)) {
@@ -87,9 +90,46 @@ class NKScriptTypeInfo<T> {
                 {
                     NKScriptTypeInfoMemberInfo member = new NKScriptTypeInfoMemberInfo(m);
                     _members.put(member.key, member);
+
+                    if (invoker != null)
+                    {
+                        int index = invoker.indexOf(member.key);
+                        if (index >= 0) {
+                            member.invoker = invoker;
+                            member.invokerIndex = index;
+                        }
+                    }
                 }
             }
         }
+
+        // Integer opcodes emitted into the stubs index straight into this table; numbered in key
+        // order so that stubs cached by NKScriptStubCache stay valid in a later process
+        _memberTable = _members.values().toArray(new NKScriptTypeInfo.NKScriptTypeInfoMemberInfo[_members.size()]);
+        Arrays.sort(_memberTable, new Comparator<NKScriptTypeInfoMemberInfo>() {
+            @Override
+            public int compare(NKScriptTypeInfoMemberInfo a, NKScriptTypeInfoMemberInfo b) {
+                return a.key.compareTo(b.key);
+            }
+        });
+        for (int i = 0; i < _memberTable.length; i++)
+            _memberTable[i].id = i;
+
+        _members = Collections.unmodifiableMap(_members);
+    }
+
+    private static NKScriptExport.Invoker generatedInvoker(Class type) {
+        try {
+            Class invokerClass = Class.forName(type.getName().replace('$', '_') + GENERATED_INVOKER_SUFFIX, true, type.getClassLoader());
+            Constructor ctor = invokerClass.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            return (NKScriptExport.Invoker) ctor.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            NKLogging.log(e);
+            return null;
+        }
     }
 
     Class getType()  {
@@ -100,6 +140,21 @@ class NKScriptTypeInfo<T> {
         return _members.get(item);
     }
 
+    NKScriptTypeInfoMemberInfo item(int id) {
+        return (id >= 0 && id < _memberTable.length) ? _memberTable[id] : null;
+    }
+
+    // Resolves the $op integer opcode of a message, falling back to the $opcode member key;
+    // an opcode naming a different member than the key (a stale stub) is not trusted
+    NKScriptTypeInfoMemberInfo item(Object id, String key) {
+        if (id instanceof Integer) {
+            NKScriptTypeInfoMemberInfo member = item(((Integer) id).intValue());
+            if (member != null && (key == null || key.equals(member.key)))
+                return member;
+        }
+        return (key != null) ? _members.get(key) : null;
+    }
+
     Collection<NKScriptTypeInfoMemberInfo> getitems() {
         return _members.values();
     }
@@ -149,6 +204,7 @@ class NKScriptTypeInfo<T> {
 
             Class[] params = constructor.getParameterTypes();
             arity = params.length;
+            binder = new NKScriptArgumentBinder(params);
 
             StringBuilder sb = new StringBuilder();
             for (Class param : params) {
@@ -171,7 +227,16 @@ class NKScriptTypeInfo<T> {
             Class[] params = method.getParameterTypes();
 
             arity = params.length;
+            binder = new NKScriptArgumentBinder(params);
             isVoid = (_method.getReturnType().equals(Void.TYPE));
+            returnsFuture = java.util.concurrent.Future.class.isAssignableFrom(_method.getReturnType());
+            isPromise = returnsFuture || binder.takesPromise();
+
+            NKThread thread = method.getAnnotation(NKThread.class);
+            if (thread == null)
+                thread = (NKThread) method.getDeclaringClass().getAnnotation(NKThread.class);
+            executor = NKScriptDispatcher.executorFor(thread);
+            serialByNamespace = NKScriptDispatcher.isSerialByNamespace(thread);
 
             StringBuilder sb = new StringBuilder();
             sb.append(_method.getName());
@@ -191,8 +256,19 @@ class NKScriptTypeInfo<T> {
         int arity;
         boolean isVoid;
         boolean isAsyncCallback;
+        // stub returns a Promise settled by an NKScriptPromise parameter or by the returned Future
+        boolean isPromise;
+        boolean returnsFuture;
         String name;
         String key;
+        int id = -1;
+        NKScriptArgumentBinder binder;
+        NKScriptExport.Invoker invoker;
+        int invokerIndex = -1;
+        // from @NKThread; null runs the method on the calling thread
+        Executor executor;
+        // SERIAL without a queue name, queued per plugin namespace
+        boolean serialByNamespace;
 
         private MemberType _memberType;
         private Method _method;
@@ -227,6 +303,8 @@ class NKScriptTypeInfo<T> {
                     break;
 
             }
+            if (isPromise)
+                return "#" + Integer.toString(binder.scriptArity()) + "p";
             if (isVoid && (_arity < 0))
                 return "";
             else
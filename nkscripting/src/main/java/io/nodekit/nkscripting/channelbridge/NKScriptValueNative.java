@@ -18,12 +18,16 @@
 
 package io.nodekit.nkscripting.channelbridge;
 
+import io.nodekit.nkscripting.NKScriptPromise;
 import io.nodekit.nkscripting.NKScriptValue;
 import io.nodekit.nkscripting.channelbridge.NKScriptTypeInfo.NKScriptTypeInfoMemberInfo;
 import java.lang.reflect.*;
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import io.nodekit.nkscripting.util.NKLogging;
+import io.nodekit.nkscripting.util.NKSerialize;
 
 class NKScriptValueNative extends NKScriptValue {
 
@@ -33,29 +37,31 @@ class NKScriptValueNative extends NKScriptValue {
 
     private NKScriptChannel _channel;
     private int _instanceid = 0;
+    private long _registration;
 
     NKScriptValueNative(String ns, NKScriptChannel channel, int instanceid, Object obj) {
         super(ns, channel.context, null);
         this._channel = channel;
         this._instanceid = instanceid;
+        this.wireFormat = channel.format;
+        this.typedArrays = channel.typedArrays;
         this.proxy = bindObject(obj);
     }
 
     // Create new instance of plugin for given channel
-    NKScriptValueNative(String ns, NKScriptChannel channel, int instanceid, Object[] args, boolean create)  {
+    NKScriptValueNative(String ns, NKScriptChannel channel, int instanceid, List<Object> args, boolean create)  {
         super(ns, channel.context, null);
         if (!create)
             throw new IllegalArgumentException();
 
         this._channel = channel;
         this._instanceid = instanceid;
+        this.wireFormat = channel.format;
+        this.typedArrays = channel.typedArrays;
         Class cls = channel.typeInfo.getType();
         NKScriptTypeInfoMemberInfo constructor = channel.typeInfo.defaultConstructor();
-        int arity = constructor.arity;
-
-        Object[] argsWrapped = wrapArgs(args, arity);
-        NKScriptValue promise = null;
 
+        Object[] argsWrapped = constructor.binder.bind(args, this);
 
         Object instance = NKScriptInvocation.construct(cls, constructor.getconstructor(), argsWrapped);
 
@@ -102,100 +108,126 @@ class NKScriptValueNative extends NKScriptValue {
         }
         nativeObject = obj;
         NKScriptInvocation proxy = new NKScriptInvocation(obj);
-        NKScriptValue.setForObject(obj, this);
+        _registration = NKScriptValue.setForObject(obj, this);
         return proxy;
     }
 
     private void unbindObject(Object obj) throws Exception {
         _channel.removeInstance(_instanceid);
         nativeObject = null;
-        NKScriptValue.setForObject(obj, null);
+        NKScriptValue.removeForObject(obj, _registration);
         proxy = null;
     }
 
-    void invokeNativeMethod(String method, Object[] args, android.webkit.ValueCallback<Object> callback) {
+    void invokeNativeMethod(String method, List<Object> args, android.webkit.ValueCallback<Object> callback) {
+        invokeNativeMethod(_channel.typeInfo.item(method), args, callback);
+    }
+
+    void invokeNativeMethod(NKScriptTypeInfoMemberInfo member, List<Object> args, android.webkit.ValueCallback<Object> callback) {
         if (proxy == null)
         {
             return;
         }
 
-        NKScriptTypeInfo.NKScriptTypeInfoMemberInfo member = _channel.typeInfo.item(method);
-        if (member != null)
-        {
-            Method mi = member.getmethod();
-
-            int arity = member.arity;
-
-            proxy.callAsync(mi, wrapArgs(args, arity), callback);
+        if (member == null) {
+            if (callback != null)
+                callback.onReceiveValue(null);
+        } else if (member.isPromise) {
+            // called without a promise from script: the plugin still gets one, settling into callback
+            invokeNativePromise(member, args, new NKScriptPromise(callback));
+        } else {
+            dispatch(member, member.binder.bind(args, this), callback);
         }
+    }
 
-        if (callback != null) callback.onReceiveValue(null);
+    Object invokeNativeMethodSync(String method, List<Object> args)  {
+        return invokeNativeMethodSync(_channel.typeInfo.item(method), args);
     }
 
-    Object invokeNativeMethodSync(String method, Object[] args)  {
+    Object invokeNativeMethodSync(NKScriptTypeInfoMemberInfo member, List<Object> args)  {
 
         if (proxy == null)
         {
             return null;
         }
 
-        NKScriptTypeInfo.NKScriptTypeInfoMemberInfo member = _channel.typeInfo.item(method);
-        if (member != null)
+        if (member != null && member.isPromise)
         {
-            Method mi = member.getmethod();
-            int arity = member.arity;
-            return proxy.call(mi, wrapArgs(args, arity));
+            NKLogging.log(String.format("NKNodeKit Promise member %s cannot be called synchronously", member.name), NKLogging.Level.Error);
+            return null;
         }
 
-        return null;
-
-    }
-
-    private Object[] wrapArgs(Object[] args, int arity) {
-
-        ArrayList<Object> result = new ArrayList<Object>();
-
-        for (Object obj : args) {
-            result.add(wrapScriptObject(obj));
+        if (member != null)
+        {
+            final NKScriptTypeInfoMemberInfo target = member;
+            final Object[] bound = member.binder.bind(args, this);
+            Executor executor = executorFor(member);
+            if (executor == null)
+                return proxy.call(target, bound);
+
+            final NKScriptInvocation invocation = proxy;
+            try {
+                return NKScriptDispatcher.callAndWait(executor, new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return invocation.call(target, bound);
+                    }
+                });
+            } catch (Exception e) {
+                NKLogging.log(e);
+                return null;
+            }
         }
 
-        if (result.size() == (arity-1))
-            result.add(this);
+        return null;
 
-        return result.toArray();
     }
 
-    @SuppressWarnings("unchecked")
-    private Object wrapScriptObject(Object obj)
-    {
-        if (obj == null)
-            return null;
-
-        if (obj instanceof Map<?,?>)
+    void invokeNativePromise(final NKScriptTypeInfoMemberInfo member, List<Object> args, final NKScriptPromise promise) {
+        if (proxy == null)
         {
-            Map<String, Object> dict = (Map<String, Object>) obj;
+            promise.reject("Plugin object has been disposed");
+            return;
+        }
 
-            if (dict.containsKey("$sig") && ((Integer)dict.get("$sig")) == 0x5857574F)
-            {
-                int num = (Integer) dict.get("$ref");
-                return new NKScriptValue(num, this.context, this);
+        final NKScriptInvocation invocation = proxy;
+        final Object[] bound = member.binder.bind(args, this, promise);
+        run(member, new Runnable() {
+            @Override
+            public void run() {
+                invocation.callPromise(member, bound, promise);
             }
+        });
+    }
 
-            if (dict.containsKey("$ns"))
-            {
-                String ns = (String) dict.get("$ns");
-                if (ns != null)
-                    return new NKScriptValue(ns, this.context, this);
+    // Runs the call on the thread chosen with @NKThread; the result goes to the callback from there
+    private void dispatch(final NKScriptTypeInfoMemberInfo member, final Object[] args, final android.webkit.ValueCallback<Object> callback) {
+        final NKScriptInvocation invocation = proxy;
+        run(member, new Runnable() {
+            @Override
+            public void run() {
+                invocation.callAsync(member, args, callback);
             }
-        }
+        });
+    }
 
-        return obj;
+    private void run(NKScriptTypeInfoMemberInfo member, Runnable call) {
+        Executor executor = executorFor(member);
+        if (executor == null)
+            call.run();
+        else
+            executor.execute(call);
     }
 
+    private Executor executorFor(NKScriptTypeInfoMemberInfo member) {
+        if (member.serialByNamespace)
+            return NKScriptDispatcher.serialQueue(_channel.ns);
+        return member.executor;
+    }
 
     // OVERRIDE METHODS IN NKScriptValue
 
-    public void invokeMethod(String method, Object[] args, android.webkit.ValueCallback<String> completionHandler) {
+    public void invokeMethod(String method, Object[] args, final android.webkit.ValueCallback<String> completionHandler) {
 
         if (proxy == null)
         {
@@ -203,13 +235,20 @@ class NKScriptValueNative extends NKScriptValue {
         }
 
         NKScriptTypeInfo.NKScriptTypeInfoMemberInfo member = _channel.typeInfo.item(method);
-        if (member != null)
-        {
-            Method mi = member.getmethod();
-            proxy.callAsync(mi, wrapArgs(args, member.arity), completionHandler);
-        }
-        else
+        if (member == null) {
             super.invokeMethod(method, args, completionHandler);
+            return;
+        }
+
+        // same contract as the script path: the result as JSON text
+        android.webkit.ValueCallback<Object> callback = (completionHandler == null) ? null : new android.webkit.ValueCallback<Object>() {
+            @Override
+            public void onReceiveValue(Object value) {
+                completionHandler.onReceiveValue(NKSerialize.serialize(value));
+            }
+        };
+
+        invokeNativeMethod(member, Arrays.asList(args), callback);
     }
 
     public void invokeMethod(String method, Object[] arguments) {
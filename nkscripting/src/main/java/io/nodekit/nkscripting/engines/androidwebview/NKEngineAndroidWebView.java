@@ -28,14 +28,19 @@ import android.webkit.WebViewClient;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import io.nodekit.nkscripting.NKScriptContext;
 import io.nodekit.nkscripting.NKScriptContextFactory;
+import io.nodekit.nkscripting.NKScriptQueueingContext;
 import io.nodekit.nkscripting.NKScriptSource;
 import io.nodekit.nkscripting.NKApplication;
 import io.nodekit.nkscripting.NKScriptValue;
 import io.nodekit.nkscripting.util.NKDisposable;
+import io.nodekit.nkscripting.util.NKJsonReader;
 import io.nodekit.nkscripting.util.NKLogging;
 import io.nodekit.nkscripting.util.NKStorage;
 import io.nodekit.nkscripting.util.NKSerialize;
@@ -45,7 +50,7 @@ import io.nodekit.nkscripting.channelbridge.NKScriptMessage;
 import io.nodekit.nkscripting.NKScriptExport.NKScriptExportType;
 import io.nodekit.nkscripting.util.NKTimer;
 
-public class NKEngineAndroidWebView extends WebViewClient implements NKScriptContext, NKScriptMessage.Controller {
+public class NKEngineAndroidWebView extends WebViewClient implements NKScriptContext, NKScriptQueueingContext, NKScriptMessage.Controller {
 
     @SuppressLint("setJavaScriptEnabled")
     public static void createContextWebView(HashMap<String, Object> options, NKScriptContextDelegate callback)
@@ -78,8 +83,24 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
     private ArrayList<NKScriptSource> _sourceList;
     protected ArrayList<NKScriptValue> _injectedPlugins;
     private HashMap<String, NKScriptMessage.Handler> _scriptMessageHandlers;
+    private HashMap<String, NKSerialize.WireFormat> _scriptMessageFormats;
+    private HashSet<String> _scriptMessageTypedArrays;
+    private NKScriptEvaluationQueue _evaluationQueue;
     private ArrayList<NKDisposable> disposables = new ArrayList<>();
 
+    // NKS.BundledBoot: boot sources evaluated as one NKScriptBootBundle script
+    private boolean _bundledBoot;
+    private int _librarySourceCount;
+    private NKScriptBootBundle _bootBundle;
+    private List<String> _bootScripts;
+    private int _bootBundleSourceCount;
+    private long _bootStarted;
+    private long _bootPrepared;
+    // counts page loads, so a bundle result arriving after the page it was evaluated in has gone
+    // is ignored instead of injecting the sources into the next page a second time
+    private int _bootGeneration;
+    private final LinkedHashMap<String, Long> _bootPhases = new LinkedHashMap<String, Long>();
+
     private Boolean isReady = false;
     private NKScriptContextDelegate callback;
 
@@ -94,26 +115,46 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
         this._sourceList = new ArrayList<NKScriptSource>();
         this._injectedPlugins = new ArrayList<NKScriptValue>();
         this._scriptMessageHandlers = new HashMap<String, NKScriptMessage.Handler>();
+        this._scriptMessageFormats = new HashMap<String, NKSerialize.WireFormat>();
+        this._scriptMessageTypedArrays = new HashSet<String>();
+        this._evaluationQueue = new NKScriptEvaluationQueue(webview);
+        this._bundledBoot = Boolean.TRUE.equals(options.get("NKS.BundledBoot"));
         NKLogging.log("NKNodeKit Renderer Android WebView E" + _id, NKLogging.Level.Info);
     }
 
     @Override
     public void onPageFinished(WebView view, String url) {
 
-        for (NKScriptSource source : _sourceList) {
-            try {
-                NKLogging.log(source.filename);
-                source.inject(this);
-            } catch (Exception e) {
-                NKLogging.log(e);
-            }
+        if (_bootPrepared != 0) {
+            recordBootPhase("load", System.nanoTime() - _bootPrepared);
+            _bootPrepared = 0;
+        }
+
+        _bootGeneration++;
+        if (!_bundledBoot || !injectBundled()) {
+            injectSources(0);
+            ready();
         }
 
+    }
+
+    // Once the sources of the first page are in, which with NKS.BundledBoot is when the bundle has run
+    private void ready() {
         if (!isReady) {
             isReady = true;
             this.callback.NKScriptEngineReady(this);
         }
+    }
 
+    private void injectSources(int from) {
+        for (NKScriptSource source : _sourceList.subList(from, _sourceList.size())) {
+            try {
+                NKLogging.log(source.filename);
+                source.inject(this);
+            } catch (Exception e) {
+                NKLogging.log(e);
+            }
+        }
     }
 
     public int id() throws Exception {
@@ -128,11 +169,15 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
         }
         disposables.clear();
 
+        _evaluationQueue.close();
+
         _webview.getSettings().setJavaScriptEnabled(false);
         _webview.stopLoading();
 
         _sourceList.clear();
         _scriptMessageHandlers.clear();
+        _scriptMessageFormats.clear();
+        _scriptMessageTypedArrays.clear();
         _injectedPlugins.clear();
 
         ViewParent parent = _webview.getParent();
@@ -154,10 +199,11 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
     public String didReceiveScriptMessageSync(String channel, String message) throws Exception {
         if (this._scriptMessageHandlers.containsKey(channel)) {
             NKScriptMessage.Handler scriptHandler = _scriptMessageHandlers.get(channel);
-            Map<String, Object> body = NKSerialize.deserialize(message);
+            NKSerialize.WireFormat format = formatForChannel(channel);
+            Map<String, Object> body = NKSerialize.deserializeMessage(message, format);
             NKScriptMessage msg = new NKScriptMessage(channel, body);
             Object result = scriptHandler.didReceiveScriptMessageSync(msg);
-            return this.serialize(result);
+            return NKSerialize.serialize(result, format, _scriptMessageTypedArrays.contains(channel));
         } else {
             return null;
         }
@@ -167,21 +213,45 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
     public void didReceiveScriptMessage(String channel, String message) throws Exception {
         if (this._scriptMessageHandlers.containsKey(channel)) {
             NKScriptMessage.Handler scriptHandler = _scriptMessageHandlers.get(channel);
-            Map<String, Object> body = NKSerialize.deserialize(message);
+            Map<String, Object> body = NKSerialize.deserializeMessage(message, formatForChannel(channel));
             NKScriptMessage msg = new NKScriptMessage(channel, body);
             scriptHandler.didReceiveScriptMessage(msg);
         }
 
     }
 
+    // Async messages queued by the script side and flushed together, in posting order
+    @JavascriptInterface
+    public void didReceiveScriptMessageBatch(String channel, String payload) throws Exception {
+        NKScriptMessage.Handler scriptHandler = _scriptMessageHandlers.get(channel);
+        if (scriptHandler == null)
+            return;
+
+        List<Object> bodies = NKSerialize.deserializeBatch(payload, formatForChannel(channel));
+        if (bodies == null)
+            return;
+
+        for (Object body : bodies) {
+            // a message that failed to decode, already logged
+            if (body == null)
+                continue;
+            try {
+                scriptHandler.didReceiveScriptMessage(new NKScriptMessage(channel, body));
+            } catch (Exception e) {
+                NKLogging.log(e);
+            }
+        }
+    }
+
     @JavascriptInterface
     public String didReceiveScriptMessageAsync(String channel, String message) throws Exception {
         if (this._scriptMessageHandlers.containsKey(channel)) {
             NKScriptMessage.Handler scriptHandler = _scriptMessageHandlers.get(channel);
-            Map<String, Object> bodyMap = NKSerialize.deserialize(message);
+            NKSerialize.WireFormat format = formatForChannel(channel);
+            Map<String, Object> bodyMap = NKSerialize.deserializeMessage(message, format);
             NKScriptMessage body = new NKScriptMessage(bodyMap);
             Object result = scriptHandler.didReceiveScriptMessageSync(body);
-            return this.serialize(result);
+            return NKSerialize.serialize(result, format, _scriptMessageTypedArrays.contains(channel));
         }
 
         return null;
@@ -189,57 +259,128 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
 
     private void prepareEnvironment() throws Exception {
 
-        _webview.addJavascriptInterface(this, "NKScriptingBridge");
-
-        String script1 = NKStorage.getResource("lib-scripting/nkscripting.js");
+        _bootStarted = System.nanoTime();
 
-        if (script1 != null && script1.isEmpty()) {
-            NKLogging.log("Failed to read provision script: nkscripting", NKLogging.Level.Error);
-            return;
-        }
-
-        this.injectJavaScript(
-                new NKScriptSource(script1, "io.nodekit.scripting/NKScripting/nkscripting.js", "nkscripting"));
-
-        String appjs = NKStorage.getResource("lib-scripting/init_androidwebview.js");
-
-        String script2 = "function loadinit(){\n" + appjs + "\n}\n" + "loadinit();" + "\n";
-
-        this.injectJavaScript(
-                new NKScriptSource(script2, "io.nodekit.scripting/init_androidwebview", "io.nodekit.scripting.init"));
-
-        String script3 = NKStorage.getResource("lib-scripting/promise.js");
+        _webview.addJavascriptInterface(this, "NKScriptingBridge");
 
-        if (script3 != null && script3.isEmpty()) {
-            NKLogging.log("Failed to read provision script: promise", NKLogging.Level.Error);
+        List<NKScriptSource> library = NKScriptBootBundle.librarySources();
+        if (library == null)
             return;
-        }
 
-        this.injectJavaScript(new NKScriptSource(script3, "io.nodekit.scripting/NKScripting/promise.js", "Promise"));
-
-        loadTimerScript();
+        for (NKScriptSource source : library)
+            this.injectJavaScript(source);
+        _librarySourceCount = library.size();
 
         NKStorage.attachTo(this);
         NKTimer.attachTo(this);
 
         callback.NKScriptEngineDidLoad(this);
 
+        _bootPrepared = System.nanoTime();
+        recordBootPhase("prepare", _bootPrepared - _bootStarted);
+
         if (_webview.getVisibility() != View.VISIBLE)
             _webview.loadDataWithBaseURL("", "<html><body>NodeKit Running</body></html>", "text/html", "UTF-8", "");
 
     }
 
-    private void loadTimerScript() throws Exception {
+    // Evaluates every injected source in one script, see NKScriptBootBundle
+    private boolean injectBundled() {
+        long started = System.nanoTime();
+
+        if (_bootBundle == null || _bootBundleSourceCount != _sourceList.size()) {
+            NKScriptBootBundle bundle = NKScriptBootBundle.withLibrary();
+            if (bundle == null)
+                return false;
+            for (int i = _librarySourceCount; i < _sourceList.size(); i++)
+                bundle.add(_sourceList.get(i));
+            _bootBundle = bundle;
+            _bootScripts = bundle.scripts();
+            _bootBundleSourceCount = _sourceList.size();
+        }
+
+        for (NKScriptSource source : _sourceList)
+            source.markInjected(this);
+
+        final NKScriptBootBundle bundle = _bootBundle;
+        final int generation = _bootGeneration;
+        final long evaluating = System.nanoTime();
+        recordBootPhase("bundle", evaluating - started);
+
+        int last = _bootScripts.size() - 1;
+        for (int i = 0; i < last; i++)
+            _evaluationQueue.evaluate(_bootScripts.get(i), null);
+        _evaluationQueue.evaluate(_bootScripts.get(last), new android.webkit.ValueCallback<String>() {
+            @Override
+            public void onReceiveValue(String value) {
+                if (generation != _bootGeneration || _webview == null)
+                    return;
+                recordBootPhase("evaluate", System.nanoTime() - evaluating);
+                recordBootResult(bundle, value);
+                ready();
+            }
+        });
 
-        String timerSource = NKStorage.getResource("lib-scripting/timer.js");
+        NKLogging.log(String.format("+E%s Injected %s (%d sources)", _id, NKScriptBootBundle.BUNDLE_URL, bundle.sections().size()));
+        return true;
+    }
 
-        if (timerSource == null || timerSource.isEmpty()) {
-            NKLogging.log("Failed to read provision script: timer", NKLogging.Level.Error);
+    @SuppressWarnings("unchecked")
+    private void recordBootResult(NKScriptBootBundle bundle, String value) {
+        Map<String, Object> result;
+        try {
+            Object parsed = (value != null) ? NKJsonReader.parse(value) : null;
+            if (!(parsed instanceof Map<?, ?>)) {
+                // the last script did not even parse, so none of its sources ran; boot those source
+                // by source instead, the ones in the scripts before it did run
+                NKLogging.log("NKNodeKit Boot bundle failed, injecting sources separately", NKLogging.Level.Error);
+                _bootBundle = null;
+                _bundledBoot = false;
+                injectSources(bundle.firstInLastScript());
+                return;
+            }
+            result = (Map<String, Object>) parsed;
+        } catch (Exception e) {
+            NKLogging.log(e);
             return;
         }
 
-        this.injectJavaScript(new NKScriptSource(timerSource, "io.nodekit.scripting/NKScripting/timer.js",
-                "io.nodekit.scripting.timer"));
+        List<NKScriptBootBundle.Section> sections = bundle.sections();
+
+        Object times = result.get("times");
+        Object start = result.get("t");
+        if (times instanceof List<?> && start instanceof Number) {
+            double previous = ((Number) start).doubleValue();
+            List<Object> list = (List<Object>) times;
+            for (int i = 0; i < list.size() && i < sections.size(); i++) {
+                // no time for a source evaluated on its own that failed
+                if (!(list.get(i) instanceof Number))
+                    continue;
+                double time = ((Number) list.get(i)).doubleValue();
+                recordBootPhase("source:" + sections.get(i).url, (long) ((time - previous) * 1000000));
+                previous = time;
+            }
+        }
+
+        Object errors = result.get("errors");
+        if (errors instanceof List<?>) {
+            for (Object error : (List<Object>) errors) {
+                List<Object> entry = (List<Object>) error;
+                int index = ((Number) entry.get(0)).intValue();
+                String url = (index >= 0 && index < sections.size()) ? sections.get(index).url : "?";
+                NKLogging.log(String.format("NKNodeKit Error in %s: %s", url, entry.get(1)), NKLogging.Level.Error);
+            }
+        }
+    }
+
+    private synchronized void recordBootPhase(String phase, long nanos) {
+        _bootPhases.put(phase, nanos);
+    }
+
+    // Duration in nanoseconds of each phase of the last boot: prepare, load, bundle and evaluate,
+    // and per source with NKS.BundledBoot
+    public synchronized Map<String, Long> bootPhases() {
+        return new LinkedHashMap<String, Long>(_bootPhases);
     }
 
     @SuppressLint("JavascriptInterface")
@@ -320,9 +461,21 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
 
     public void evaluateJavaScript(String javaScriptString, android.webkit.ValueCallback<String> callback) throws Exception {
         if (this._webview == null) {
+            if (callback != null)
+                callback.onReceiveValue(null);
             return;
         }
-        this._webview.evaluateJavascript(javaScriptString, callback);
+        _evaluationQueue.evaluate(javaScriptString, callback);
+    }
+
+    // Expressions are coalesced with others and evaluated together at the next frame, in order
+    public void queueJavaScript(String expression, android.webkit.ValueCallback<String> callback) throws Exception {
+        _evaluationQueue.enqueue(expression, callback);
+    }
+
+    // Queue depth and flush latency of the native->JS evaluations of this context
+    public NKScriptEvaluationQueue evaluationQueue() {
+        return _evaluationQueue;
     }
 
     public void injectJavaScript(NKScriptSource source) throws Exception {
@@ -338,12 +491,28 @@ public class NKEngineAndroidWebView extends WebViewClient implements NKScriptCon
         return NKSerialize.serialize(obj);
     }
 
+    private NKSerialize.WireFormat formatForChannel(String channel) {
+        NKSerialize.WireFormat format = _scriptMessageFormats.get(channel);
+        return (format != null) ? format : NKSerialize.WireFormat.JSON;
+    }
+
     public void addScriptMessageHandler(NKScriptMessage.Handler scriptMessageHandler, String name) throws Exception {
+        addScriptMessageHandler(scriptMessageHandler, name, NKSerialize.WireFormat.JSON, false);
+    }
+
+    public void addScriptMessageHandler(NKScriptMessage.Handler scriptMessageHandler, String name, NKSerialize.WireFormat format, boolean typedArrays) throws Exception {
         _scriptMessageHandlers.put(name, scriptMessageHandler);
+        _scriptMessageFormats.put(name, format);
+        if (typedArrays)
+            _scriptMessageTypedArrays.add(name);
+        else
+            _scriptMessageTypedArrays.remove(name);
     }
 
     public void removeScriptMessageHandlerForName(String name) throws Exception {
         _scriptMessageHandlers.remove(name);
+        _scriptMessageFormats.remove(name);
+        _scriptMessageTypedArrays.remove(name);
         String cleanup = "delete NKScripting.messageHandlers." + name;
         this.evaluateJavaScript(cleanup, null);
     }
@@ -0,0 +1,247 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.engines.androidwebview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import io.nodekit.nkscripting.NKScriptSource;
+import io.nodekit.nkscripting.util.NKLogging;
+import io.nodekit.nkscripting.util.NKStorage;
+
+// All boot sources of a context concatenated into as few scripts as possible, so a page boots in
+// one evaluateJavascript instead of one per source.  Each source runs in its own try block, so a
+// failing source does not stop the ones after it, and the time it finishes at is recorded.  A
+// source with a leading "use strict" or a top level let, const or class, which a block would
+// change the meaning of, is evaluated as a script of its own between the bundled ones instead.
+// The last script evaluates to { errors: [[section, error]], times: [...], t: start } and leaves
+// the same in the NKScriptingBoot global, with NKScriptingBoot.sections listing
+// [url, script, line, lines] of every source; locate() maps a line of a script back to its
+// source in the same way.
+//
+// The library sources (nkscripting, init, msgpack, promise, timer) are read from the assets and
+// bundled once per process, which never outlives the APK version, and shared by all contexts.
+public final class NKScriptBootBundle {
+
+    public static final String BUNDLE_URL = "io.nodekit.scripting/boot.js";
+
+    private static final String PROLOGUE = "var NKScriptingBoot={errors:[],times:[],t:(this.performance||Date).now()};\n";
+
+    private static final String NOW = "(this.performance||Date).now()";
+
+    // a "use strict" directive after any comments, or let, const or class at the start of a line
+    private static final Pattern STRICT = Pattern.compile("^(\\s|//[^\\n]*|/\\*[\\s\\S]*?\\*/)*['\"]use strict['\"]");
+    private static final Pattern LEXICAL = Pattern.compile("^(let|const|class)\\b", Pattern.MULTILINE);
+
+    public static final class Section {
+        public final String url;
+        public final int script;
+        public final int line;
+        public final int lines;
+
+        Section(String url, int script, int line, int lines) {
+            this.url = url;
+            this.script = script;
+            this.line = line;
+            this.lines = lines;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, String> _assets = new ConcurrentHashMap<String, String>();
+    private static NKScriptBootBundle _library;
+
+    // scripts before the one being built, which is _body
+    private final ArrayList<String> _scripts;
+    private final StringBuilder _body;
+    private final ArrayList<Section> _sections;
+    // next line of _body, the prologue being line 1 of the first script
+    private int _line;
+
+    private NKScriptBootBundle() {
+        _scripts = new ArrayList<String>();
+        _body = new StringBuilder(PROLOGUE);
+        _sections = new ArrayList<Section>();
+        _line = 2;
+    }
+
+    private NKScriptBootBundle(NKScriptBootBundle prefix) {
+        _scripts = new ArrayList<String>(prefix._scripts);
+        _body = new StringBuilder(prefix._body);
+        _sections = new ArrayList<Section>(prefix._sections);
+        _line = prefix._line;
+    }
+
+    // Fresh sources for the library scripts every context starts with, null if one is missing
+    static List<NKScriptSource> librarySources() {
+        List<NKScriptSource> sources = new ArrayList<NKScriptSource>();
+
+        String script1 = asset("lib-scripting/nkscripting.js");
+        if (script1 == null || script1.isEmpty()) {
+            NKLogging.log("Failed to read provision script: nkscripting", NKLogging.Level.Error);
+            return null;
+        }
+        sources.add(new NKScriptSource(script1, "io.nodekit.scripting/NKScripting/nkscripting.js", "nkscripting"));
+
+        String appjs = asset("lib-scripting/init_androidwebview.js");
+        String script2 = "function loadinit(){\n" + appjs + "\n}\n" + "loadinit();" + "\n";
+        sources.add(new NKScriptSource(script2, "io.nodekit.scripting/init_androidwebview", "io.nodekit.scripting.init"));
+
+        String msgpack = asset("lib-scripting/msgpack.js");
+        if (msgpack == null || msgpack.isEmpty()) {
+            NKLogging.log("Failed to read provision script: msgpack", NKLogging.Level.Error);
+            return null;
+        }
+        sources.add(new NKScriptSource(msgpack, "io.nodekit.scripting/NKScripting/msgpack.js", "NKScripting.msgpack"));
+
+        String script3 = asset("lib-scripting/promise.js");
+        if (script3 == null || script3.isEmpty()) {
+            NKLogging.log("Failed to read provision script: promise", NKLogging.Level.Error);
+            return null;
+        }
+        sources.add(new NKScriptSource(script3, "io.nodekit.scripting/NKScripting/promise.js", "Promise"));
+
+        String timerSource = asset("lib-scripting/timer.js");
+        if (timerSource == null || timerSource.isEmpty()) {
+            NKLogging.log("Failed to read provision script: timer", NKLogging.Level.Error);
+            return null;
+        }
+        sources.add(new NKScriptSource(timerSource, "io.nodekit.scripting/NKScripting/timer.js", "io.nodekit.scripting.timer"));
+
+        return sources;
+    }
+
+    // A bundle already holding the library sources, to add the context's own sources to
+    static NKScriptBootBundle withLibrary() {
+        NKScriptBootBundle library = library();
+        return (library != null) ? new NKScriptBootBundle(library) : null;
+    }
+
+    private static synchronized NKScriptBootBundle library() {
+        if (_library == null) {
+            List<NKScriptSource> sources = librarySources();
+            if (sources == null)
+                return null;
+            NKScriptBootBundle library = new NKScriptBootBundle();
+            for (NKScriptSource source : sources)
+                library.add(source);
+            _library = library;
+        }
+        return _library;
+    }
+
+    // Assets do not change while the process runs
+    private static String asset(String path) {
+        String source = _assets.get(path);
+        if (source == null) {
+            source = NKStorage.getResource(path);
+            if (source != null)
+                _assets.putIfAbsent(path, source);
+        }
+        return source;
+    }
+
+    void add(NKScriptSource source) {
+        String code = (source.code != null) ? source.code : "";
+        int index = _sections.size();
+        int lines = countLines(code) + 1;
+
+        if (needsOwnScript(code)) {
+            // errors end up on the console, the missing time marks the source as failed
+            if (_body.length() > 0)
+                endScript();
+            _sections.add(new Section(source.filename, _scripts.size(), 1, lines));
+            _scripts.add(code + "\n;NKScriptingBoot.times[" + index + "]=" + NOW + ";\n//# sourceURL=" + source.filename + "\n");
+            return;
+        }
+
+        _body.append("try{\n");
+        _sections.add(new Section(source.filename, _scripts.size(), _line + 1, lines));
+        _body.append(code).append("\n}catch(e){NKScriptingBoot.errors.push([").append(index).append(",String(e&&e.stack||e)])}\n");
+        _body.append("NKScriptingBoot.times[").append(index).append("]=").append(NOW).append(";\n");
+        _line += lines + 3;
+    }
+
+    private static boolean needsOwnScript(String code) {
+        return STRICT.matcher(code).lookingAt() || LEXICAL.matcher(code).find();
+    }
+
+    private void endScript() {
+        _body.append("//# sourceURL=").append(scriptURL(_scripts.size())).append("\n");
+        _scripts.add(_body.toString());
+        _body.setLength(0);
+        _line = 1;
+    }
+
+    private static String scriptURL(int script) {
+        return (script == 0) ? BUNDLE_URL : BUNDLE_URL + "?" + script;
+    }
+
+    // The scripts to evaluate in order; the last one evaluates to the boot result
+    List<String> scripts() {
+        StringBuilder sb = new StringBuilder(_body.length() + 64 * _sections.size() + 256);
+        sb.append(_body);
+        sb.append("NKScriptingBoot.sections=[");
+        for (int i = 0; i < _sections.size(); i++) {
+            Section section = _sections.get(i);
+            if (i > 0)
+                sb.append(',');
+            sb.append("[\"").append(section.url.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",").append(section.script).append(',').append(section.line).append(',').append(section.lines).append(']');
+        }
+        sb.append("];\n");
+        sb.append("NKScriptingBoot.sections.forEach(function(s,i){if(NKScriptingBoot.times[i]===undefined)NKScriptingBoot.errors.push([i,'did not complete, see the console'])});\n");
+        sb.append("({errors:NKScriptingBoot.errors,times:NKScriptingBoot.times,t:NKScriptingBoot.t})\n");
+        sb.append("//# sourceURL=").append(scriptURL(_scripts.size())).append("\n");
+
+        List<String> scripts = new ArrayList<String>(_scripts);
+        scripts.add(sb.toString());
+        return scripts;
+    }
+
+    // Index of the first source evaluated by the last script
+    int firstInLastScript() {
+        int first = _sections.size();
+        while (first > 0 && _sections.get(first - 1).script == _scripts.size())
+            first--;
+        return first;
+    }
+
+    public List<Section> sections() {
+        return Collections.unmodifiableList(_sections);
+    }
+
+    // "url:line" of a line of one of the scripts, or null outside every source
+    public String locate(int script, int line) {
+        for (Section section : _sections) {
+            if (section.script == script && line >= section.line && line < section.line + section.lines)
+                return section.url + ":" + (line - section.line + 1);
+        }
+        return null;
+    }
+
+    private static int countLines(String code) {
+        int lines = 0;
+        for (int i = code.indexOf('\n'); i >= 0; i = code.indexOf('\n', i + 1))
+            lines++;
+        return lines;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.engines.androidwebview;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.webkit.ValueCallback;
+import android.webkit.WebView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.nodekit.nkscripting.util.NKJsonReader;
+import io.nodekit.nkscripting.util.NKLogging;
+
+// Outbound native->JS queue of one context.  Expressions queued by NKScriptValue are merged into
+// a single evaluateJavascript per Choreographer frame, or straight away once the queue grows past
+// MAX_EXPRESSIONS / MAX_CHARS.  Choreographer has no frames while the display is off, so a
+// FRAME_FALLBACK_MILLIS timer flushes in their place, which keeps hidden WebViews running.  Each expression runs in its own try block in posting order and
+// the merged script returns the JSON result of every expression that has a completion handler,
+// which is then split back out so each handler sees what a separate evaluation would have given.
+// An expression that throws is logged to the console and its handler receives the error as
+// {"name", "message", "stack"}; the expressions after it still run.  If the merged script does not
+// parse, because one expression does not, the expressions are evaluated again one at a time.  Whole scripts go through
+// evaluate() and keep their place in the same order.  Once the queue is closed every callback,
+// queued or new, receives null.
+public final class NKScriptEvaluationQueue {
+
+    static final int MAX_EXPRESSIONS = 256;
+    static final int MAX_CHARS = 256 * 1024;
+    static final long FRAME_FALLBACK_MILLIS = 16;
+
+    private static final class Entry {
+        final String script;
+        final ValueCallback<String> callback;
+        final boolean merge;
+
+        Entry(String script, ValueCallback<String> callback, boolean merge) {
+            this.script = script;
+            this.callback = callback;
+            this.merge = merge;
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object lock = new Object();
+
+    private WebView webView;
+    private ArrayList<Entry> pending = new ArrayList<Entry>();
+    private int pendingChars;
+    private long firstQueuedAt;
+    private boolean frameScheduled;
+    private boolean flushPosted;
+
+    private int maxDepth;
+    private long flushCount;
+    private long evaluatedCount;
+    private long lastFlushLatency;
+    private long totalFlushLatency;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mainHandler.removeCallbacks(frameFallback);
+            synchronized (lock) {
+                frameScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    private final Runnable frameFallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            synchronized (lock) {
+                frameScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+            mainHandler.postDelayed(frameFallback, FRAME_FALLBACK_MILLIS);
+        }
+    };
+
+    private final Runnable flushNow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (lock) {
+                flushPosted = false;
+            }
+            flush();
+        }
+    };
+
+    NKScriptEvaluationQueue(WebView webView) {
+        this.webView = webView;
+    }
+
+    // Queues a single expression to be merged with others evaluated in the same frame
+    public void enqueue(String expression, ValueCallback<String> callback) {
+        boolean closed;
+        boolean full = false;
+        boolean schedule = false;
+
+        synchronized (lock) {
+            closed = (webView == null);
+            if (!closed) {
+                add(new Entry(expression, callback, true));
+                pendingChars += expression.length();
+                full = pending.size() >= MAX_EXPRESSIONS || pendingChars >= MAX_CHARS;
+                schedule = !frameScheduled && !full;
+                if (schedule)
+                    frameScheduled = true;
+            }
+        }
+
+        if (closed) {
+            if (callback != null)
+                callback.onReceiveValue(null);
+            return;
+        }
+
+        if (full) {
+            flushSoon();
+        } else if (schedule) {
+            if (isMainThread())
+                scheduleFrame.run();
+            else
+                mainHandler.post(scheduleFrame);
+        }
+    }
+
+    // Evaluates a whole script after everything queued before it, without waiting for a frame
+    public void evaluate(String script, ValueCallback<String> callback) {
+        if (isMainThread()) {
+            flush();
+            WebView view = webView;
+            if (view != null)
+                view.evaluateJavascript(script, callback);
+            else if (callback != null)
+                callback.onReceiveValue(null);
+            return;
+        }
+
+        boolean closed;
+        synchronized (lock) {
+            closed = (webView == null);
+            if (!closed)
+                add(new Entry(script, callback, false));
+        }
+
+        if (closed) {
+            if (callback != null)
+                callback.onReceiveValue(null);
+            return;
+        }
+        flushSoon();
+    }
+
+    // Runs on the main thread
+    public void flush() {
+        List<Entry> batch;
+        WebView view;
+        long latency;
+
+        synchronized (lock) {
+            if (pending.isEmpty())
+                return;
+            batch = pending;
+            pending = new ArrayList<Entry>();
+            pendingChars = 0;
+            view = webView;
+
+            latency = System.nanoTime() - firstQueuedAt;
+            lastFlushLatency = latency;
+            totalFlushLatency += latency;
+            flushCount++;
+            evaluatedCount += batch.size();
+        }
+
+        if (view == null) {
+            deliverNull(batch);
+            return;
+        }
+
+        int i = 0;
+        while (i < batch.size()) {
+            Entry entry = batch.get(i);
+            if (!entry.merge) {
+                view.evaluateJavascript(entry.script, entry.callback);
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            while (end < batch.size() && batch.get(end).merge)
+                end++;
+
+            evaluateMerged(view, batch.subList(i, end));
+            i = end;
+        }
+    }
+
+    void close() {
+        List<Entry> dropped;
+        synchronized (lock) {
+            webView = null;
+            dropped = pending;
+            pending = new ArrayList<Entry>();
+            pendingChars = 0;
+        }
+        deliverNull(dropped);
+    }
+
+    // Metrics
+
+    public int getDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    // Deepest the queue has been since it was created or the metrics were last reset
+    public int getMaxDepth() {
+        synchronized (lock) {
+            return maxDepth;
+        }
+    }
+
+    // Starts a new measuring period, the maximum depth starting over from the current depth
+    public void resetMetrics() {
+        synchronized (lock) {
+            maxDepth = pending.size();
+            flushCount = 0;
+            evaluatedCount = 0;
+            lastFlushLatency = 0;
+            totalFlushLatency = 0;
+        }
+    }
+
+    public long getFlushCount() {
+        synchronized (lock) {
+            return flushCount;
+        }
+    }
+
+    public long getEvaluatedCount() {
+        synchronized (lock) {
+            return evaluatedCount;
+        }
+    }
+
+    // Time from the first expression of a batch being queued to the batch being evaluated
+    public long getLastFlushLatencyNanos() {
+        synchronized (lock) {
+            return lastFlushLatency;
+        }
+    }
+
+    public long getAverageFlushLatencyNanos() {
+        synchronized (lock) {
+            return (flushCount == 0) ? 0 : totalFlushLatency / flushCount;
+        }
+    }
+
+    private void add(Entry entry) {
+        if (pending.isEmpty())
+            firstQueuedAt = System.nanoTime();
+        pending.add(entry);
+        if (pending.size() > maxDepth)
+            maxDepth = pending.size();
+    }
+
+    private void flushSoon() {
+        if (isMainThread()) {
+            flush();
+            return;
+        }
+
+        synchronized (lock) {
+            if (flushPosted)
+                return;
+            flushPosted = true;
+        }
+        mainHandler.post(flushNow);
+    }
+
+    private static void evaluateMerged(final WebView view, final List<Entry> entries) {
+        if (entries.size() == 1) {
+            Entry entry = entries.get(0);
+            view.evaluateJavascript(entry.script, entry.callback);
+            return;
+        }
+
+        final List<ValueCallback<String>> callbacks = new ArrayList<ValueCallback<String>>();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("(function(){var r=[],s=JSON.stringify,f=function(e){console.error(String(e&&e.stack||e));")
+                .append("return s({name:e&&e.name,message:String(e&&e.message||e),stack:e&&e.stack})};\n");
+        for (Entry entry : entries) {
+            if (entry.callback != null) {
+                int index = callbacks.size();
+                sb.append("try{r[").append(index).append("]=s(").append(entry.script).append("\n)}catch(e){r[")
+                        .append(index).append("]=f(e)}\n");
+                callbacks.add(entry.callback);
+            } else {
+                sb.append("try{").append(entry.script).append("\n}catch(e){f(e)}\n");
+            }
+        }
+        sb.append("return r})()");
+
+        view.evaluateJavascript(sb.toString(), new ValueCallback<String>() {
+            @Override
+            public void onReceiveValue(String value) {
+                List<?> results = null;
+                try {
+                    Object parsed = (value != null) ? NKJsonReader.parse(value) : null;
+                    if (parsed instanceof List<?>)
+                        results = (List<?>) parsed;
+                } catch (Exception e) {
+                    NKLogging.log(e);
+                }
+
+                if (results == null) {
+                    // nothing ran, so each expression gets the result, or error, it has on its own
+                    NKLogging.log("NKScriptEvaluationQueue merged script failed, evaluating " + entries.size() + " expressions separately", NKLogging.Level.Warning);
+                    for (Entry entry : entries)
+                        view.evaluateJavascript(entry.script, entry.callback);
+                    return;
+                }
+
+                for (int i = 0; i < callbacks.size(); i++) {
+                    Object result = (i < results.size()) ? results.get(i) : null;
+                    // undefined and functions come back as "null", as they would on their own
+                    callbacks.get(i).onReceiveValue((result instanceof String) ? (String) result : "null");
+                }
+            }
+        });
+    }
+
+    private static void deliverNull(List<Entry> entries) {
+        for (Entry entry : entries) {
+            if (entry.callback != null)
+                entry.callback.onReceiveValue(null);
+        }
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+}
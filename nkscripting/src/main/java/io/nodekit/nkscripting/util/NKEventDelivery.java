@@ -0,0 +1,225 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Where and how an NKEventEmitter subscription receives its events when it should not run on the
+// emitting thread.  Each subscription gets its own bounded queue: emit only appends to it, and
+// the queue drains in batches of up to BATCH_SIZE events on the given Looper or Executor, one
+// batch at a time and in emit order.  What happens when a subscriber falls capacity events
+// behind is up to its Overflow policy.
+public final class NKEventDelivery {
+
+    public enum Overflow {
+        // the new event is discarded
+        DROP,
+        // the oldest queued event is discarded to make room
+        LATEST,
+        // the emitter waits for room, except on the thread draining the queue or, for a Looper,
+        // on the Looper's own thread, where it falls back to LATEST as waiting could never end
+        BLOCK
+    }
+
+    static final int BATCH_SIZE = 64;
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static Executor _background;
+
+    final Executor executor;
+    // null unless delivering on a Looper
+    final Looper looper;
+    final int capacity;
+    final Overflow overflow;
+
+    public NKEventDelivery(Executor executor, int capacity, Overflow overflow) {
+        this(executor, null, capacity, overflow);
+    }
+
+    public NKEventDelivery(Looper looper, int capacity, Overflow overflow) {
+        this(executorFor(looper), looper, capacity, overflow);
+    }
+
+    private NKEventDelivery(Executor executor, Looper looper, int capacity, Overflow overflow) {
+        if (executor == null || overflow == null)
+            throw new IllegalArgumentException("NKEventDelivery needs an executor and an overflow policy");
+        if (capacity < 1)
+            throw new IllegalArgumentException("NKEventDelivery capacity must be at least 1");
+        this.executor = executor;
+        this.looper = looper;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    public static NKEventDelivery mainThread(Overflow overflow) {
+        return new NKEventDelivery(Looper.getMainLooper(), DEFAULT_CAPACITY, overflow);
+    }
+
+    // Shared pool of daemon threads; each subscription still receives its events one at a time
+    // and a drain never runs on the emitting thread, however many are waiting for a thread
+    public static NKEventDelivery background(Overflow overflow) {
+        return new NKEventDelivery(background(), DEFAULT_CAPACITY, overflow);
+    }
+
+    private static Executor executorFor(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    private static synchronized Executor background() {
+        if (_background == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "NKEventDelivery");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            _background = pool;
+        }
+        return _background;
+    }
+
+    // Events discarded so far by the Overflow policy of a subscription made with a delivery, 0
+    // for one that runs on the emitting thread
+    public static long dropped(NKEventEmitter.NKEventSubscription subscription) {
+        if (!(subscription instanceof NKEventEmitter.NKEventSubscriptionGeneric))
+            return 0;
+        Queue<?> queue = ((NKEventEmitter.NKEventSubscriptionGeneric<?>) subscription).queue;
+        return (queue != null) ? queue.dropped() : 0;
+    }
+
+    <T> Queue<T> newQueue(NKEventEmitter.NKHandler<T> handler) {
+        return new Queue<T>(this, handler);
+    }
+
+    // Pending events of one subscription
+    static final class Queue<T> implements Runnable {
+        private final NKEventDelivery delivery;
+        private final NKEventEmitter.NKHandler<T> handler;
+        private final ArrayDeque<Object[]> pending = new ArrayDeque<Object[]>();
+        private boolean scheduled;
+        private Thread draining;
+        private long dropped;
+
+        Queue(NKEventDelivery delivery, NKEventEmitter.NKHandler<T> handler) {
+            this.delivery = delivery;
+            this.handler = handler;
+        }
+
+        void offer(String event, T data) {
+            boolean schedule;
+            synchronized (this) {
+                if (pending.size() >= delivery.capacity) {
+                    switch (delivery.overflow) {
+                        case DROP:
+                            dropped++;
+                            return;
+                        case LATEST:
+                            pending.poll();
+                            dropped++;
+                            break;
+                        case BLOCK:
+                            if (delivery.looper != null && Looper.myLooper() == delivery.looper) {
+                                pending.poll();
+                                dropped++;
+                                break;
+                            }
+                            // a handler emitting to its own subscription cannot wait for itself
+                            while (pending.size() >= delivery.capacity && draining != Thread.currentThread()) {
+                                try {
+                                    wait();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    dropped++;
+                                    return;
+                                }
+                            }
+                            break;
+                    }
+                }
+                pending.add(new Object[] { event, data });
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule)
+                delivery.executor.execute(this);
+        }
+
+        synchronized void clear() {
+            pending.clear();
+            notifyAll();
+        }
+
+        synchronized long dropped() {
+            return dropped;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void run() {
+            Object[][] batch;
+            synchronized (this) {
+                int count = Math.min(pending.size(), BATCH_SIZE);
+                batch = new Object[count][];
+                for (int i = 0; i < count; i++)
+                    batch[i] = pending.poll();
+                draining = Thread.currentThread();
+                notifyAll();
+            }
+
+            try {
+                for (Object[] item : batch) {
+                    try {
+                        handler.invoke((String) item[0], (T) item[1]);
+                    } catch (Exception e) {
+                        NKLogging.log(e);
+                    }
+                }
+            } finally {
+                boolean more;
+                synchronized (this) {
+                    draining = null;
+                    more = !pending.isEmpty();
+                    scheduled = more;
+                }
+                // later batches go to the back of the executor so other work can interleave
+                if (more)
+                    delivery.executor.execute(this);
+            }
+        }
+    }
+}
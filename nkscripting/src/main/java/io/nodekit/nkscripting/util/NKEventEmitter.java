@@ -18,17 +18,63 @@
 
 package io.nodekit.nkscripting.util;
 
-import android.util.SparseArray;
-
-import java.util.HashMap;
-
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Listeners of each event are kept in an immutable array that on() and remove() replace
+// atomically, so emit() is a lock-free walk over whatever array it read first and can run from
+// the JavaBridge, UI and timer threads at once.  Each dispatch hands the wrapper the
+// subscription being dispatched instead of sharing it in a field.  Subscriptions made with an
+// NKEventDelivery receive their events on its Looper or Executor instead of the emitting thread.
+//
+// Event names are dot separated namespaces.  Besides exact names, on() and once() accept
+// "prefix.*", matching every event below prefix at any depth, and "*" for all events.  Those are
+// kept in a trie of name segments; the listeners an event name resolves to, exact ones first and
+// then wildcard ones from the broadest pattern down, are cached per name until a subscription
+// change invalidates them, so emitting a hot event stays a single lookup.
+//
+// Signal emitters keep the last payloads of an event emitted while nobody listened and hand them
+// to the next on() subscriber of that event, or the newest to the next once(); only the
+// MAX_UNDELIVERED_EVENTS most recently started events are kept.  setReplay() gives an event a
+// sticky ring of its last payloads instead, replayed to every later on() subscriber, with once()
+// taking the newest; see NKEventReplay.  on() subscribes and takes the replay under the lock emit
+// stores payloads under, so each payload is either replayed to a new subscription or emitted to it.
 public class NKEventEmitter   
 {
     // static fields and methods
 
     public static NKEventEmitter global = new NKEventEmitter(true);
 
-    private static int subscriptionSeq = 1;
+    private static final AtomicInteger subscriptionSeq = new AtomicInteger(1);
+
+    private static final NKEventSubscriptionGeneric[] NO_SUBSCRIPTIONS = new NKEventSubscriptionGeneric[0];
+
+    // resolved listener arrays kept before the cache is started over
+    private static final int MAX_RESOLVED = 1024;
+
+    public static final String WILDCARD = "*";
+
+    // payloads a signal emitter keeps per event while nobody listens
+    public static final int UNDELIVERED_REPLAY_COUNT = 16;
+
+    // events a signal emitter keeps undelivered payloads of, the oldest ring going first
+    public static final int MAX_UNDELIVERED_EVENTS = 256;
+
+    static boolean isWildcard(String eventType) {
+        return eventType.equals(WILDCARD) || eventType.endsWith("." + WILDCARD);
+    }
+
+    // Wildcard subscriptions of one namespace; the root holds the "*" ones
+    private static final class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+        volatile NKEventSubscriptionGeneric[] listeners = NO_SUBSCRIPTIONS;
+    }
 
     // helper classes (internal)
 
@@ -50,10 +96,15 @@ public class NKEventEmitter
             _base = base;
         }
 
-        abstract void call(String event, T obj);
+        // Runs before the wrapped handler; returning false skips it
+        abstract boolean call(NKEventSubscriptionGeneric<T> subscription, String event, T obj);
+
+        void invoke(NKEventSubscriptionGeneric<T> subscription, String event, T obj) {
+            if (call(subscription, event, obj))
+                _base.invoke(event, obj);
+        }
 
         public void invoke(String event, T obj){
-            call(event, obj);
             _base.invoke(event, obj);
         }
 
@@ -62,20 +113,59 @@ public class NKEventEmitter
     protected class NKEventSubscriptionGeneric<T>  implements NKEventSubscription
     {
         public void remove()  {
-            emitter.subscriptions.get(eventType).remove(id);
+            tryRemove();
+        }
+
+        // True only for the call that actually removed the subscription
+        boolean tryRemove() {
+            if (!removed.compareAndSet(false, true))
+                return false;
+            emitter.unsubscribe(this);
+            if (queue != null)
+                queue.clear();
+            return true;
+        }
+
+        // Wrappers run on the emitting thread; the handler itself may be delivered elsewhere
+        @SuppressWarnings("unchecked")
+        void dispatch(String event, T data) {
+            if (removed.get())
+                return;
+            NKHandler<T> target = handler;
+            if (handler instanceof NKHandlerWrapper) {
+                NKHandlerWrapper<T> wrapper = (NKHandlerWrapper<T>) handler;
+                if (!wrapper.call(this, event, data))
+                    return;
+                target = wrapper._base;
+            }
+            if (queue != null)
+                queue.offer(event, data);
+            else
+                target.invoke(event, data);
         }
 
         private NKEventEmitter emitter;
         private String eventType;
+        private final boolean wildcard;
+        private final AtomicBoolean removed = new AtomicBoolean();
         public int id;
 
         public NKHandler<T> handler;
+        NKEventDelivery.Queue<T> queue;
 
         public NKEventSubscriptionGeneric(NKEventEmitter emitter, String eventType, NKHandler<T> handler)  {
-            id = subscriptionSeq++;
+            this(emitter, eventType, handler, null);
+        }
+
+        @SuppressWarnings("unchecked")
+        NKEventSubscriptionGeneric(NKEventEmitter emitter, String eventType, NKHandler<T> handler, NKEventDelivery delivery)  {
+            id = subscriptionSeq.getAndIncrement();
             this.eventType = eventType;
+            this.wildcard = isWildcard(eventType);
             this.emitter = emitter;
             this.handler = handler;
+            if (delivery != null)
+                this.queue = delivery.newQueue((handler instanceof NKHandlerWrapper) ? ((NKHandlerWrapper<T>) handler)._base : handler);
         }
     }
 
@@ -83,19 +173,33 @@ public class NKEventEmitter
 
     protected Boolean signalEmitter;
 
-    protected HashMap<String, Object> earlyTriggers;
+    // sticky rings configured with setReplay
+    private final ConcurrentHashMap<String, NKEventReplay> replays = new ConcurrentHashMap<String, NKEventReplay>();
+
+    // on signal emitters, rings of payloads emitted while nobody listened; guarded by itself
+    private final LinkedHashMap<String, NKEventReplay> undelivered = new LinkedHashMap<String, NKEventReplay>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NKEventReplay> eldest) {
+            if (size() <= MAX_UNDELIVERED_EVENTS)
+                return false;
+            eldest.getValue().clear();
+            return true;
+        }
+    };
 
-    protected NKEventSubscription currentSubscription;
+    protected ConcurrentHashMap<String, NKEventSubscriptionGeneric[]> subscriptions = new ConcurrentHashMap<String, NKEventSubscriptionGeneric[]>();
 
-    protected HashMap<String, SparseArray<NKEventSubscription>> subscriptions = new HashMap<String, SparseArray<NKEventSubscription>>();
+    private final Node wildcards = new Node();
+    private final AtomicInteger wildcardCount = new AtomicInteger();
+    private final ConcurrentHashMap<String, NKEventSubscriptionGeneric[]> resolved = new ConcurrentHashMap<String, NKEventSubscriptionGeneric[]>();
+    // bumped after every subscription change, so a resolve racing a change is not cached
+    private final AtomicLong version = new AtomicLong();
 
     // constructors
 
     public NKEventEmitter(Boolean isSignalEmitter)
     {
         signalEmitter = isSignalEmitter;
-        if (isSignalEmitter)
-            earlyTriggers = new HashMap<String, Object>();
     }
 
     public NKEventEmitter()
@@ -106,50 +210,86 @@ public class NKEventEmitter
     // instance methods
 
     public <T>NKEventSubscription on(String eventType, NKHandler<T> handler)  {
+        return on(eventType, handler, null);
+    }
 
-        SparseArray< NKEventSubscription> eventSubscriptions = new SparseArray< NKEventSubscription>();
+    // delivery null runs the handler on the emitting thread
+    @SuppressWarnings("unchecked")
+    public <T>NKEventSubscription on(String eventType, NKHandler<T> handler, NKEventDelivery delivery)  {
 
-        if (subscriptions.containsKey(eventType))
+        NKEventSubscriptionGeneric<T> subscription = new NKEventSubscriptionGeneric<T>(this, eventType, handler, delivery);
 
-            eventSubscriptions = subscriptions.get(eventType);
+        if (subscription.wildcard) {
+            subscribeWildcard(subscription);
+            return subscription;
+        }
 
-        else
+        NKEventReplay sticky = replays.get(eventType);
+        List<Object> payloads = null;
+        synchronized ((sticky != null) ? sticky : undelivered) {
+            subscribe(eventType, subscription);
+            NKEventReplay replay = (sticky != null) ? sticky : undelivered.remove(eventType);
+            if (replay != null)
+                payloads = replay.replay();
+        }
 
-            eventSubscriptions = new SparseArray< NKEventSubscription>();
+        // outside the lock, so a handler or a full BLOCK queue cannot hold up emits on other threads
+        if (payloads != null) {
+            for (Object data : payloads)
+                subscription.dispatch(eventType, (T) data);
+        }
 
-        NKEventSubscriptionGeneric<T> subscription = new NKEventSubscriptionGeneric<T>(this, eventType, handler);
+        return subscription;
 
-        eventSubscriptions.put(subscription.id, subscription);
+    }
 
-        subscriptions.put(eventType, eventSubscriptions);
+    private void subscribe(String eventType, NKEventSubscriptionGeneric subscription) {
+        while (true) {
+            NKEventSubscriptionGeneric[] current = subscriptions.get(eventType);
+            if (current == null) {
+                if (subscriptions.putIfAbsent(eventType, new NKEventSubscriptionGeneric[] { subscription }) == null)
+                    break;
+            } else {
+                NKEventSubscriptionGeneric[] next = new NKEventSubscriptionGeneric[current.length + 1];
+                System.arraycopy(current, 0, next, 0, current.length);
+                next[current.length] = subscription;
+                if (subscriptions.replace(eventType, current, next))
+                    break;
+            }
+        }
+        invalidate(eventType);
+    }
 
-        return subscription;
 
+    public <T>void once(String eventType, NKHandler<T> handler)  {
+        once(eventType, handler, null);
     }
 
-
     @SuppressWarnings("unchecked")
-    public <T>void once(String eventType, NKHandler<T> handler)  {
+    public <T>void once(String eventType, NKHandler<T> handler, NKEventDelivery delivery)  {
 
-        if (signalEmitter && earlyTriggers.containsKey(eventType))
+        NKEventReplay replay = takeReplay(eventType);
+        if (replay != null)
         {
-            Object data = earlyTriggers.get(eventType);
-            earlyTriggers.remove(eventType);
-            handler.invoke(eventType, (T)data);
-            return ;
+            List<Object> payloads = replay.replay();
+            if (!payloads.isEmpty()) {
+                T value = (T) payloads.get(payloads.size() - 1);
+                if (delivery != null)
+                    delivery.newQueue(handler).offer(eventType, value);
+                else
+                    handler.invoke(eventType, value);
+                return ;
+            }
         }
 
         NKHandlerWrapper<T> canceler = new NKHandlerWrapper<T>(handler) {
-            void call(String event, T obj) {
-                try {
-                    currentSubscription.remove();
-                } catch (Exception e) {
-                    // ignore
-                }
+            boolean call(NKEventSubscriptionGeneric<T> subscription, String event, T obj) {
+                // concurrent emits both see the subscription; only the one removing it runs
+                return subscription.tryRemove();
             }
         };
 
-        this.on(eventType, canceler);
+        this.on(eventType, canceler, delivery);
     }
 
     @SuppressWarnings("unchecked")
@@ -160,36 +300,261 @@ public class NKEventEmitter
     @SuppressWarnings("unchecked")
     public <T>void emit(String eventType, T data, Boolean forward)  {
 
-        if (subscriptions.containsKey(eventType))
-        {
-
-            SparseArray<NKEventSubscription> sparseArray = subscriptions.get(eventType);
+        NKEventSubscriptionGeneric[] current = null;
+
+        NKEventReplay sticky = replays.get(eventType);
+        while (sticky != null) {
+            synchronized (sticky) {
+                // setReplay or clearReplay may have swapped the ring since the lookup, and a
+                // cleared ring must not take payloads back into the retained count
+                if (replays.get(eventType) == sticky) {
+                    sticky.add(data);
+                    current = listenersFor(eventType);
+                    break;
+                }
+            }
+            sticky = replays.get(eventType);
+        }
 
-            for(int i = 0; i < sparseArray.size(); i++) {
-                int key = sparseArray.keyAt(i);
-                // get the object by the key.
-                NKEventSubscription item = sparseArray.get(key);
-                currentSubscription = item;
-                ((NKEventSubscriptionGeneric<T>)item).handler.invoke(eventType, data);
+        if (sticky == null) {
+            current = listenersFor(eventType);
+            // only an event nobody listens to takes the lock, checking again under it
+            if (current == null && signalEmitter) {
+                synchronized (undelivered) {
+                    current = listenersFor(eventType);
+                    if (current == null) {
+                        NKEventReplay replay = undelivered.get(eventType);
+                        if (replay == null) {
+                            replay = new NKEventReplay(UNDELIVERED_REPLAY_COUNT, 0, false);
+                            undelivered.put(eventType, replay);
+                        }
+                        replay.add(data);
+                        return;
+                    }
+                }
             }
+        }
 
-        }  else
+        if (current != null)
         {
-            if (signalEmitter)
-                earlyTriggers.put(eventType, data);
+            for (NKEventSubscriptionGeneric item : current)
+                ((NKEventSubscriptionGeneric<T>)item).dispatch(eventType, data);
+        }
+    }
+
+    // Sticky rings stay for later subscribers, undelivered payloads go to the first one
+    private NKEventReplay takeReplay(String eventType) {
+        NKEventReplay replay = replays.get(eventType);
+        if (replay != null)
+            return replay;
+        synchronized (undelivered) {
+            return undelivered.remove(eventType);
         }
     }
 
+    // Keeps the last count payloads of eventType, each for at most maxAgeMillis when that is
+    // positive, and replays them to every later on() subscriber; once() gets the newest
+    public void setReplay(String eventType, int count, long maxAgeMillis) {
+        NKEventReplay previous = replays.put(eventType, new NKEventReplay(count, maxAgeMillis, true));
+        if (previous != null)
+            previous.clear();
+    }
+
+    // Drops the payloads kept for eventType and its replay configuration
+    public void clearReplay(String eventType) {
+        NKEventReplay previous = replays.remove(eventType);
+        if (previous != null)
+            previous.clear();
+        synchronized (undelivered) {
+            previous = undelivered.remove(eventType);
+        }
+        if (previous != null)
+            previous.clear();
+    }
+
 
+    // eventType may be a wildcard pattern, which only removes the subscriptions made with it
     public void removeAllListeners(String eventType) {
+        if (eventType == null) {
+            for (String key : subscriptions.keySet())
+                removeAllListeners(key);
+            synchronized (wildcards) {
+                clearWildcards(wildcards);
+            }
+            invalidate(null);
+        } else if (isWildcard(eventType)) {
+            synchronized (wildcards) {
+                Node node = nodeFor(eventType, false);
+                if (node != null) {
+                    NKEventSubscriptionGeneric[] current = node.listeners;
+                    node.listeners = NO_SUBSCRIPTIONS;
+                    wildcardCount.addAndGet(-current.length);
+                    markRemoved(current);
+                }
+            }
+            invalidate(null);
+        } else {
+            NKEventSubscriptionGeneric[] current = subscriptions.remove(eventType);
+            if (current != null)
+                markRemoved(current);
+            invalidate(eventType);
+        }
+    }
+
+    // Exact and wildcard listeners of an event name, null when there are none
+    private NKEventSubscriptionGeneric[] listenersFor(String eventType) {
+        if (wildcardCount.get() == 0)
+            return subscriptions.get(eventType);
+
+        NKEventSubscriptionGeneric[] listeners = resolved.get(eventType);
+        if (listeners == null) {
+            long seen = version.get();
+            listeners = resolve(eventType);
+            if (resolved.size() >= MAX_RESOLVED)
+                resolved.clear();
+            resolved.put(eventType, listeners);
+            if (version.get() != seen)
+                resolved.remove(eventType, listeners);
+        }
+        return (listeners.length > 0) ? listeners : null;
+    }
+
+    private NKEventSubscriptionGeneric[] resolve(String eventType) {
+        ArrayList<NKEventSubscriptionGeneric> listeners = new ArrayList<NKEventSubscriptionGeneric>();
+
+        NKEventSubscriptionGeneric[] exact = subscriptions.get(eventType);
+        if (exact != null) {
+            for (NKEventSubscriptionGeneric subscription : exact)
+                listeners.add(subscription);
+        }
+
+        // "a.*" matches below a only, so the last segment of the name is never a prefix
+        Node node = wildcards;
+        int start = 0;
+        while (node != null) {
+            for (NKEventSubscriptionGeneric subscription : node.listeners)
+                listeners.add(subscription);
+            int dot = eventType.indexOf('.', start);
+            if (dot < 0)
+                break;
+            node = node.children.get(eventType.substring(start, dot));
+            start = dot + 1;
+        }
+
+        return listeners.toArray(new NKEventSubscriptionGeneric[listeners.size()]);
+    }
+
+    private void invalidate(String eventType) {
+        version.incrementAndGet();
         if (eventType != null)
-            subscriptions.remove(eventType);
+            resolved.remove(eventType);
         else
-            subscriptions.clear();
+            resolved.clear();
+    }
+
+    private void subscribeWildcard(NKEventSubscriptionGeneric subscription) {
+        synchronized (wildcards) {
+            Node node = nodeFor(subscription.eventType, true);
+            NKEventSubscriptionGeneric[] current = node.listeners;
+            NKEventSubscriptionGeneric[] next = new NKEventSubscriptionGeneric[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = subscription;
+            node.listeners = next;
+            wildcardCount.incrementAndGet();
+        }
+        invalidate(null);
     }
 
+    private void unsubscribeWildcard(NKEventSubscriptionGeneric subscription) {
+        synchronized (wildcards) {
+            Node node = nodeFor(subscription.eventType, false);
+            if (node == null)
+                return;
+            NKEventSubscriptionGeneric[] current = node.listeners;
+            int index = indexOf(current, subscription);
+            if (index < 0)
+                return;
+            node.listeners = without(current, index);
+            wildcardCount.decrementAndGet();
+        }
+        invalidate(null);
+    }
 
+    // Trie node of a wildcard pattern; "*" is the root
+    private Node nodeFor(String pattern, boolean create) {
+        Node node = wildcards;
+        if (pattern.equals(WILDCARD))
+            return node;
+        for (String segment : pattern.substring(0, pattern.length() - 2).split("\\.")) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                if (!create)
+                    return null;
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        return node;
+    }
 
-}
+    private void clearWildcards(Node node) {
+        wildcardCount.addAndGet(-node.listeners.length);
+        markRemoved(node.listeners);
+        node.listeners = NO_SUBSCRIPTIONS;
+        for (Node child : node.children.values())
+            clearWildcards(child);
+        node.children.clear();
+    }
+
+    private static int indexOf(NKEventSubscriptionGeneric[] subscriptions, NKEventSubscriptionGeneric subscription) {
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] == subscription)
+                return i;
+        }
+        return -1;
+    }
+
+    private static NKEventSubscriptionGeneric[] without(NKEventSubscriptionGeneric[] subscriptions, int index) {
+        NKEventSubscriptionGeneric[] next = new NKEventSubscriptionGeneric[subscriptions.length - 1];
+        System.arraycopy(subscriptions, 0, next, 0, index);
+        System.arraycopy(subscriptions, index + 1, next, index, subscriptions.length - index - 1);
+        return next;
+    }
 
+    private void unsubscribe(NKEventSubscriptionGeneric subscription) {
+        if (subscription.wildcard) {
+            unsubscribeWildcard(subscription);
+            return;
+        }
+
+        String eventType = subscription.eventType;
+        while (true) {
+            NKEventSubscriptionGeneric[] current = subscriptions.get(eventType);
+            if (current == null)
+                return;
+
+            int index = indexOf(current, subscription);
+            if (index < 0)
+                return;
+
+            if (current.length == 1) {
+                if (subscriptions.remove(eventType, current))
+                    break;
+                continue;
+            }
+
+            if (subscriptions.replace(eventType, current, without(current, index)))
+                break;
+        }
+        invalidate(eventType);
+    }
+
+    private static void markRemoved(NKEventSubscriptionGeneric[] subscriptions) {
+        for (NKEventSubscriptionGeneric subscription : subscriptions) {
+            if (subscription.removed.compareAndSet(false, true) && subscription.queue != null)
+                subscription.queue.clear();
+        }
+    }
 
+}
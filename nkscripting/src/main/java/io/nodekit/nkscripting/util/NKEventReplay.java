@@ -0,0 +1,116 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Ring of the last payloads emitted for one event, replayed to subscribers that come later.
+// Appending is O(1) and overwrites the oldest payload once the ring is full; payloads older than
+// the age limit are skipped and released on the next append or replay.  All rings together
+// retain at most MAX_RETAINED payloads: past that, a ring can only reuse its own slots.
+final class NKEventReplay {
+
+    static final int MAX_RETAINED = 4096;
+
+    private static final AtomicInteger retained = new AtomicInteger();
+
+    // sticky rings keep their payloads after replaying them, the others hand them out once
+    final boolean sticky;
+
+    private final Object[] payloads;
+    private final long[] times;
+    private final long maxAgeNanos;
+    private int head;
+    private int size;
+
+    NKEventReplay(int capacity, long maxAgeMillis, boolean sticky) {
+        this.payloads = new Object[Math.max(1, capacity)];
+        this.times = new long[payloads.length];
+        this.maxAgeNanos = (maxAgeMillis > 0) ? TimeUnit.MILLISECONDS.toNanos(maxAgeMillis) : 0;
+        this.sticky = sticky;
+    }
+
+    static int retained() {
+        return retained.get();
+    }
+
+    synchronized void add(Object payload) {
+        long now = System.nanoTime();
+        expire(now);
+
+        if (size == payloads.length) {
+            // full: the oldest slot is reused, the global count does not change
+            payloads[head] = null;
+            head = (head + 1) % payloads.length;
+            size--;
+        } else if (retained.incrementAndGet() > MAX_RETAINED) {
+            // over the global cap: give back the count and reuse the oldest slot, if there is one
+            retained.decrementAndGet();
+            if (size == 0)
+                return;
+            payloads[head] = null;
+            head = (head + 1) % payloads.length;
+            size--;
+        }
+
+        int tail = (head + size) % payloads.length;
+        payloads[tail] = payload;
+        times[tail] = now;
+        size++;
+    }
+
+    // Retained payloads, oldest first
+    synchronized List<Object> replay() {
+        expire(System.nanoTime());
+
+        List<Object> result = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++)
+            result.add(payloads[(head + i) % payloads.length]);
+        if (!sticky)
+            clear();
+        return result;
+    }
+
+    synchronized boolean isEmpty() {
+        expire(System.nanoTime());
+        return size == 0;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < size; i++)
+            payloads[(head + i) % payloads.length] = null;
+        retained.addAndGet(-size);
+        head = 0;
+        size = 0;
+    }
+
+    private void expire(long now) {
+        if (maxAgeNanos == 0)
+            return;
+        while (size > 0 && now - times[head] > maxAgeNanos) {
+            payloads[head] = null;
+            head = (head + 1) % payloads.length;
+            size--;
+            retained.decrementAndGet();
+        }
+    }
+}
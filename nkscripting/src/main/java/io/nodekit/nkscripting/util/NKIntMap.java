@@ -0,0 +1,201 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Concurrent map from primitive int keys to objects, used for instance and request ids.
+// Open addressed with linear probing over a power of two table, so lookups are a hash, a few
+// array reads and no boxing.  Reads never lock and never allocate; writes are serialized on the
+// map and only ever touch one slot, or publish a freshly built table when it has to grow.
+//
+// A slot is bound to its key the first time it is used and keeps it until the next rebuild.
+// Removal leaves a tombstone in place, so a reader that loaded a slot's key can trust it.
+public final class NKIntMap<V> {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table {
+        final int[] keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<Object>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    private volatile int size;
+
+    // slots holding a key, live or removed; only read and written under the lock
+    private int used;
+
+    public NKIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public NKIntMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Table t = table;
+        int i = hash(key) & t.mask;
+        while (true) {
+            // the value is read first; the key written before it is then visible
+            Object value = t.values.get(i);
+            if (value == null)
+                return null;
+            if (t.keys[i] == key)
+                return (value == TOMBSTONE) ? null : (V) value;
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Snapshot of the live values; entries changed meanwhile may or may not be in it
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        Table t = table;
+        List<V> values = new ArrayList<V>(size);
+        for (int i = 0; i < t.keys.length; i++) {
+            Object value = t.values.get(i);
+            if (value != null && value != TOMBSTONE)
+                values.add((V) value);
+        }
+        return values;
+    }
+
+    // Returns the previous value, if any
+    public synchronized V put(int key, V value) {
+        if (value == null)
+            return remove(key);
+
+        Table t = table;
+        int i = slotFor(t, key);
+        @SuppressWarnings("unchecked")
+        V previous = (V) t.values.get(i);
+        if (previous == null) {
+            t.keys[i] = key;
+            used++;
+        }
+        t.values.set(i, value);
+
+        if (previous == null || previous == TOMBSTONE) {
+            size++;
+            if (used > (t.keys.length >> 1) + (t.keys.length >> 2))
+                rebuild();
+            return null;
+        }
+        return previous;
+    }
+
+    // Returns the current value when there is one, otherwise stores value and returns null
+    public synchronized V putIfAbsent(int key, V value) {
+        V current = get(key);
+        if (current != null)
+            return current;
+        put(key, value);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key) {
+        Table t = table;
+        int i = slotFor(t, key);
+        Object previous = t.values.get(i);
+        if (previous == null || previous == TOMBSTONE)
+            return null;
+        t.values.set(i, TOMBSTONE);
+        size--;
+        return (V) previous;
+    }
+
+    // Removes key only while it still maps to value
+    public synchronized boolean remove(int key, V value) {
+        if (value == null || get(key) != value)
+            return false;
+        remove(key);
+        return true;
+    }
+
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        used = 0;
+        size = 0;
+    }
+
+    // Slot holding key, or the empty slot ending its probe sequence
+    private static int slotFor(Table t, int key) {
+        int i = hash(key) & t.mask;
+        while (true) {
+            if (t.values.get(i) == null || t.keys[i] == key)
+                return i;
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // Copies the live entries into a table sized for them, dropping tombstones
+    private void rebuild() {
+        Table old = table;
+        Table t = new Table(capacityFor(size));
+        for (int i = 0; i < old.keys.length; i++) {
+            Object value = old.values.get(i);
+            if (value == null || value == TOMBSTONE)
+                continue;
+            int j = slotFor(t, old.keys[i]);
+            t.keys[j] = old.keys[i];
+            t.values.set(j, value);
+        }
+        used = size;
+        table = t;
+    }
+
+    // Smallest power of two keeping expectedSize under half full
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (1 << 30) && capacity < expectedSize * 2)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    // Ids are sequential, so spread them before masking
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// JSON object whose scalar members are decoded up front while nested objects and arrays are
+// kept as slices of the source text and only decoded the first time they are read.  Used for
+// bridge message envelopes so $opcode / $target can be routed before $operand is materialized.
+// The envelope is read on the JavaBridge thread and its members later on the main thread or a
+// plugin's own, so every access to the member table is synchronized on the object.
+public final class NKJsonLazyObject extends AbstractMap<String, Object> {
+
+    private static final class Slice {
+        final int start;
+        final int end;
+
+        Slice(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final String source;
+    private final HashMap<String, Object> members = new HashMap<String, Object>();
+    private int pending = 0;
+
+    NKJsonLazyObject(String source) {
+        this.source = source;
+    }
+
+    synchronized void putSlice(String key, int start, int end) {
+        if (!(members.put(key, new Slice(start, end)) instanceof Slice))
+            pending++;
+    }
+
+    @Override
+    public synchronized Object get(Object key) {
+        Object value = members.get(key);
+        if (value instanceof Slice)
+            value = resolve((String) key, (Slice) value);
+        return value;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return members.containsKey(key);
+    }
+
+    @Override
+    public synchronized int size() {
+        return members.size();
+    }
+
+    @Override
+    public synchronized Object put(String key, Object value) {
+        Object previous = members.put(key, value);
+        if (previous instanceof Slice) {
+            pending--;
+            previous = decode((Slice) previous);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        Object previous = members.remove(key);
+        if (previous instanceof Slice) {
+            pending--;
+            previous = decode((Slice) previous);
+        }
+        return previous;
+    }
+
+    // Raw JSON text of a member that has not been decoded yet, or null
+    public synchronized String getRaw(String key) {
+        Object value = members.get(key);
+        if (value instanceof Slice)
+            return source.substring(((Slice) value).start, ((Slice) value).end);
+        return null;
+    }
+
+    @Override
+    public synchronized Set<Map.Entry<String, Object>> entrySet() {
+        if (pending > 0) {
+            for (Map.Entry<String, Object> entry : members.entrySet()) {
+                if (entry.getValue() instanceof Slice) {
+                    entry.setValue(decode((Slice) entry.getValue()));
+                    pending--;
+                }
+            }
+        }
+        return members.entrySet();
+    }
+
+    private Object resolve(String key, Slice slice) {
+        Object value = decode(slice);
+        members.put(key, value);
+        pending--;
+        return value;
+    }
+
+    private Object decode(Slice slice) {
+        try {
+            NKJsonReader reader = new NKJsonReader(source, slice.start, slice.end);
+            return reader.nextLazyValue();
+        } catch (NKJsonReader.ParseException e) {
+            // the slice was validated when the envelope was scanned, so this is not expected
+            NKLogging.log(e);
+            return null;
+        }
+    }
+}
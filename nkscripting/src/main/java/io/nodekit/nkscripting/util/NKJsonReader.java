@@ -0,0 +1,522 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Single pass pull parser that builds HashMap / ArrayList / boxed values straight from the
+// message text.  Numbers are boxed the same way org.json does (Integer, then Long, then Double)
+// so existing casts on decoded messages keep working.
+public final class NKJsonReader {
+
+    public static class ParseException extends Exception {
+        ParseException(String message, int position) {
+            super(message + " at character " + position);
+        }
+    }
+
+    private static final int KEY_CACHE_SIZE = 256;
+
+    // Most keys on the bridge repeat on every message; keep them so they are not re-allocated
+    private static final String[] COMMON_KEYS = {
+            "$opcode", "$op", "$target", "$operand", "$sig", "$ref", "$ns", "$nk.sync", "$id", "name", "body"
+    };
+
+    private static final ThreadLocal<String[]> keyCache = new ThreadLocal<String[]>() {
+        @Override
+        protected String[] initialValue() {
+            String[] cache = new String[KEY_CACHE_SIZE];
+            for (String key : COMMON_KEYS)
+                cache[hash(key, 0, key.length()) & (KEY_CACHE_SIZE - 1)] = key;
+            return cache;
+        }
+    };
+
+    private final String in;
+    private final int length;
+    private final String[] keys;
+    private int pos;
+    private StringBuilder scratch;
+
+    NKJsonReader(String json) {
+        this(json, 0, json.length());
+    }
+
+    NKJsonReader(String json, int start, int end) {
+        this.in = json;
+        this.pos = start;
+        this.length = end;
+        this.keys = keyCache.get();
+    }
+
+    public static Object parse(String json) throws ParseException {
+        NKJsonReader reader = new NKJsonReader(json);
+        Object value = reader.nextValue();
+        reader.skipWhitespace();
+        if (reader.pos < reader.length)
+            throw reader.error("Unexpected trailing content");
+        return value;
+    }
+
+    Object nextValue() throws ParseException {
+        skipWhitespace();
+        if (pos >= length)
+            throw error("Unexpected end of input");
+
+        char c = in.charAt(pos);
+        switch (c) {
+            case '{':
+                pos++;
+                return readObject();
+            case '[':
+                pos++;
+                return readArray();
+            case '"':
+                pos++;
+                return readString();
+            case 't':
+                expectLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectLiteral("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                    return readNumber();
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    // Parses a top level object, keeping nested objects and arrays as raw slices until first read
+    public static Object parseLazy(String json) throws ParseException {
+        NKJsonReader reader = new NKJsonReader(json);
+        Object value = reader.nextLazyValue();
+        reader.skipWhitespace();
+        if (reader.pos < reader.length)
+            throw reader.error("Unexpected trailing content");
+        return value;
+    }
+
+    // Parses a top level array of message objects, each kept lazy as in parseLazy
+    public static List<Object> parseLazyArray(String json) throws ParseException {
+        NKJsonReader reader = new NKJsonReader(json);
+        List<Object> list = new ArrayList<Object>();
+
+        reader.skipWhitespace();
+        if (reader.peek() != '[')
+            throw reader.error("Expected array");
+        reader.pos++;
+
+        reader.skipWhitespace();
+        if (reader.peek() == ']') {
+            reader.pos++;
+        } else {
+            while (true) {
+                list.add(reader.nextLazyValue());
+
+                reader.skipWhitespace();
+                char c = reader.peek();
+                reader.pos++;
+                if (c == ']')
+                    break;
+                if (c != ',')
+                    throw reader.error("Unterminated array");
+            }
+        }
+
+        reader.skipWhitespace();
+        if (reader.pos < reader.length)
+            throw reader.error("Unexpected trailing content");
+        return list;
+    }
+
+    Object nextLazyValue() throws ParseException {
+        skipWhitespace();
+        if (peek() != '{')
+            return nextValue();
+
+        pos++;
+        return readLazyObject();
+    }
+
+    NKJsonLazyObject readLazyObject() throws ParseException {
+        NKJsonLazyObject map = new NKJsonLazyObject(in);
+
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return map;
+        }
+
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"')
+                throw error("Expected name");
+            pos++;
+            String key = readKey();
+
+            skipWhitespace();
+            if (peek() != ':')
+                throw error("Expected ':' after " + key);
+            pos++;
+
+            skipWhitespace();
+            char c = peek();
+            if (c == '{' || c == '[') {
+                int start = pos;
+                skipValue();
+                map.putSlice(key, start, pos);
+            } else {
+                map.put(key, nextValue());
+            }
+
+            skipWhitespace();
+            c = peek();
+            pos++;
+            if (c == '}')
+                return map;
+            if (c != ',')
+                throw error("Unterminated object");
+        }
+    }
+
+    // Steps over one complete value without materializing it, checking it is well formed on the
+    // way so a bad slice fails the envelope here rather than when it is first read
+    void skipValue() throws ParseException {
+        skipWhitespace();
+        switch (peek()) {
+            case '{':
+                pos++;
+                skipObject();
+                break;
+            case '[':
+                pos++;
+                skipArray();
+                break;
+            case '"':
+                pos++;
+                skipString();
+                break;
+            default:
+                nextValue();
+        }
+    }
+
+    private void skipObject() throws ParseException {
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"')
+                throw error("Expected name");
+            pos++;
+            skipString();
+
+            skipWhitespace();
+            if (peek() != ':')
+                throw error("Expected ':'");
+            pos++;
+
+            skipValue();
+
+            skipWhitespace();
+            char c = peek();
+            pos++;
+            if (c == '}')
+                return;
+            if (c != ',')
+                throw error("Unterminated object");
+        }
+    }
+
+    private void skipArray() throws ParseException {
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+
+        while (true) {
+            skipValue();
+
+            skipWhitespace();
+            char c = peek();
+            pos++;
+            if (c == ']')
+                return;
+            if (c != ',')
+                throw error("Unterminated array");
+        }
+    }
+
+    private void skipString() throws ParseException {
+        while (pos < length) {
+            char c = in.charAt(pos++);
+            if (c == '"')
+                return;
+            if (c != '\\')
+                continue;
+            if (pos >= length)
+                break;
+            if (in.charAt(pos++) == 'u') {
+                if (pos + 4 > length)
+                    throw error("Unterminated escape sequence");
+                readHex4();
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Map<String, Object> readObject() throws ParseException {
+        Map<String, Object> map = new HashMap<String, Object>();
+
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return map;
+        }
+
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"')
+                throw error("Expected name");
+            pos++;
+            String key = readKey();
+
+            skipWhitespace();
+            if (peek() != ':')
+                throw error("Expected ':' after " + key);
+            pos++;
+
+            map.put(key, nextValue());
+
+            skipWhitespace();
+            char c = peek();
+            pos++;
+            if (c == '}')
+                return map;
+            if (c != ',')
+                throw error("Unterminated object");
+        }
+    }
+
+    private List<Object> readArray() throws ParseException {
+        List<Object> list = new ArrayList<Object>();
+
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return list;
+        }
+
+        while (true) {
+            list.add(nextValue());
+
+            skipWhitespace();
+            char c = peek();
+            pos++;
+            if (c == ']')
+                return list;
+            if (c != ',')
+                throw error("Unterminated array");
+        }
+    }
+
+    // Keys without escapes are looked up in the per-thread cache before a String is allocated
+    private String readKey() throws ParseException {
+        int start = pos;
+        while (pos < length) {
+            char c = in.charAt(pos);
+            if (c == '"') {
+                int end = pos++;
+                int slot = hash(in, start, end) & (KEY_CACHE_SIZE - 1);
+                String cached = keys[slot];
+                if (cached != null && cached.length() == end - start && in.regionMatches(start, cached, 0, end - start))
+                    return cached;
+                String key = in.substring(start, end);
+                keys[slot] = key;
+                return key;
+            }
+            if (c == '\\')
+                break;
+            pos++;
+        }
+        pos = start;
+        return readString();
+    }
+
+    private String readString() throws ParseException {
+        int start = pos;
+
+        // fast path, no escapes
+        while (pos < length) {
+            char c = in.charAt(pos);
+            if (c == '"')
+                return in.substring(start, pos++);
+            if (c == '\\')
+                break;
+            pos++;
+        }
+
+        if (scratch == null)
+            scratch = new StringBuilder();
+        StringBuilder sb = scratch;
+        sb.setLength(0);
+        sb.append(in, start, pos);
+
+        while (pos < length) {
+            char c = in.charAt(pos++);
+            if (c == '"')
+                return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= length)
+                break;
+            char e = in.charAt(pos++);
+            switch (e) {
+                case 'b': sb.append('\b'); break;
+                case 't': sb.append('\t'); break;
+                case 'n': sb.append('\n'); break;
+                case 'f': sb.append('\f'); break;
+                case 'r': sb.append('\r'); break;
+                case 'u':
+                    if (pos + 4 > length)
+                        throw error("Unterminated escape sequence");
+                    sb.append((char) readHex4());
+                    break;
+                default:
+                    // covers \" \\ \/ and is lenient about anything else, like org.json
+                    sb.append(e);
+            }
+        }
+
+        throw error("Unterminated string");
+    }
+
+    private int readHex4() throws ParseException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(in.charAt(pos++), 16);
+            if (digit < 0)
+                throw error("Invalid escape sequence");
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private Object readNumber() throws ParseException {
+        int start = pos;
+        boolean negative = false;
+        boolean integral = true;
+        long value = 0;
+        int digits = 0;
+
+        if (in.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+
+        while (pos < length) {
+            char c = in.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+                pos++;
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                integral = false;
+                pos++;
+            } else {
+                break;
+            }
+        }
+
+        if (pos == start || (negative && pos == start + 1))
+            throw error("Invalid number");
+
+        if (integral && digits <= 18) {
+            if (negative)
+                value = -value;
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+                return (int) value;
+            return value;
+        }
+
+        try {
+            String text = in.substring(start, pos);
+            if (integral) {
+                try {
+                    return Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    // too large for a long, fall through to double
+                }
+            }
+            return Double.valueOf(text);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    private void expectLiteral(String literal) throws ParseException {
+        if (!in.startsWith(literal, pos) || pos + literal.length() > length)
+            throw error("Unexpected token");
+        pos += literal.length();
+    }
+
+    private char peek() throws ParseException {
+        if (pos >= length)
+            throw error("Unexpected end of input");
+        return in.charAt(pos);
+    }
+
+    void skipWhitespace() {
+        while (pos < length) {
+            char c = in.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+                return;
+            pos++;
+        }
+    }
+
+    int position() {
+        return pos;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message, pos);
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + s.charAt(i);
+        return h ^ (h >>> 16);
+    }
+}
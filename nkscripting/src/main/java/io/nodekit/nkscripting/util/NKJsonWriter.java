@@ -0,0 +1,570 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+// Streaming JSON writer used by NKSerialize; every nested value is appended straight
+// into one growable char buffer which is pooled per thread and reused across calls
+public final class NKJsonWriter implements Appendable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Buffers that grew past this are dropped on recycle so one huge payload is not retained forever
+    private static final int MAX_POOLED_CAPACITY = 256 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // How byte, short, int, float and double arrays are written; by default as plain JSON arrays.
+    // SCRIPT writes a NKScripting.typedArray(...) call for script text passed to evaluateJavascript,
+    // JSON writes a {"$nkta":..,"$data":..} object which NKScripting.reviver turns into a typed array.
+    // Both carry the little-endian element bytes as base64.
+    public static final int TYPED_ARRAYS_OFF = 0;
+    public static final int TYPED_ARRAYS_SCRIPT = 1;
+    public static final int TYPED_ARRAYS_JSON = 2;
+
+    // Replacement text for each ASCII char that must be escaped inside a JSON string, null if none
+    private static final String[] ESCAPES = new String[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = "\\u00" + HEX[c >> 4] + HEX[c & 0xF];
+        }
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+        ESCAPES['/'] = "\\/";
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\r'] = "\\r";
+    }
+
+    private static final ThreadLocal<NKJsonWriter> pool = new ThreadLocal<NKJsonWriter>();
+
+    private char[] buf;
+    private int count;
+    private boolean inUse;
+    private int typedArrays = TYPED_ARRAYS_OFF;
+    private SimpleDateFormat dateFormatter;
+
+    private NKJsonWriter() {
+        buf = new char[INITIAL_CAPACITY];
+    }
+
+    // Returns the pooled writer for this thread, or a fresh one if it is already in use further up the stack
+    public static NKJsonWriter obtain() {
+        NKJsonWriter writer = pool.get();
+        if (writer == null) {
+            writer = new NKJsonWriter();
+            pool.set(writer);
+        } else if (writer.inUse) {
+            writer = new NKJsonWriter();
+        }
+        writer.inUse = true;
+        writer.count = 0;
+        writer.typedArrays = TYPED_ARRAYS_OFF;
+        return writer;
+    }
+
+    public NKJsonWriter typedArrays(int mode) {
+        this.typedArrays = mode;
+        return this;
+    }
+
+    public void recycle() {
+        count = 0;
+        inUse = false;
+        if (buf.length > MAX_POOLED_CAPACITY)
+            buf = new char[INITIAL_CAPACITY];
+    }
+
+    // Returns the buffer contents and hands the writer back to the pool
+    public String toStringAndRecycle() {
+        String result = toString();
+        recycle();
+        return result;
+    }
+
+    public static String serialize(@Nullable Object obj) {
+        NKJsonWriter writer = obtain();
+        writer.value(obj);
+        return writer.toStringAndRecycle();
+    }
+
+    public static String serialize(@Nullable Object obj, int typedArrays) {
+        NKJsonWriter writer = obtain();
+        writer.typedArrays(typedArrays).value(obj);
+        return writer.toStringAndRecycle();
+    }
+
+    public static String serializeArgs(Object[] list) {
+        NKJsonWriter writer = obtain();
+        writer.args(list);
+        return writer.toStringAndRecycle();
+    }
+
+    // Comma separated list of values, without enclosing brackets
+    public NKJsonWriter args(Object[] list) {
+        if (list == null)
+            return this;
+
+        for (int i = 0; i < list.length; i++) {
+            if (i > 0)
+                append(',');
+            value(list[i]);
+        }
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public NKJsonWriter value(@Nullable Object obj) {
+
+        if (null == obj) {
+            return raw("undefined");
+        }
+
+        int mark = count;
+
+        try {
+
+            Class type = obj.getClass();
+
+            if (obj instanceof String) {
+                return string((String) obj);
+            } else if (NKSerialize.isNumberType(type)) {
+                return raw(obj.toString());
+            } else if (type == Boolean.class) {
+                return raw(((Boolean) obj) ? "true" : "false");
+            } else if (type == Date.class) {
+                append('"');
+                raw(dateFormatter().format((Date) obj));
+                return append('"');
+            } else if (type.isArray() && type.getComponentType().isPrimitive()) {
+                return primitiveArray(obj);
+            } else if (obj instanceof Buffer) {
+                return buffer((Buffer) obj);
+            } else if (type.isArray()) {
+                append('[');
+                final int arrayLength = Array.getLength(obj);
+                for (int i = 0; i < arrayLength; i++) {
+                    if (i > 0)
+                        append(',');
+                    value(Array.get(obj, i));
+                }
+                return append(']');
+            } else if (obj instanceof Collection<?>) {
+                append('[');
+                boolean started = false;
+                for (Object child : (Collection<?>) obj) {
+                    if (started)
+                        append(',');
+                    started = true;
+                    value(child);
+                }
+                return append(']');
+            } else if (obj instanceof Map<?, ?>) {
+                append('{');
+                boolean started = false;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
+                    Object child = entry.getValue();
+                    if (child == null)
+                        continue;
+                    if (started)
+                        append(',');
+                    started = true;
+                    string(String.valueOf(entry.getKey()));
+                    append(':');
+                    value(child);
+                }
+                return append('}');
+            }
+        }
+        catch (Exception e)
+        {
+            NKLogging.log(e);
+        }
+
+        // discard anything partially written for this value
+        count = mark;
+
+        NKLogging.log("NKNodeKit WARNING:  COULD NOT SERIALIZE " + obj.toString(), NKLogging.Level.Warning);
+
+        return raw(obj.toString());
+    }
+
+    // Primitive arrays are written element by element without boxing
+    private NKJsonWriter primitiveArray(Object array) {
+        if (array instanceof byte[]) {
+            byte[] a = (byte[]) array;
+            if (typedArrays != TYPED_ARRAYS_OFF)
+                return typedArray("u8", a, 0, a.length);
+            append('[');
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0)
+                    append(',');
+                number(a[i]);
+            }
+            return append(']');
+        } else if (array instanceof short[]) {
+            short[] a = (short[]) array;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(a.length * 2);
+                bytes.asShortBuffer().put(a);
+                return typedArray("i16", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0)
+                    append(',');
+                number(a[i]);
+            }
+            return append(']');
+        } else if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(a.length * 4);
+                bytes.asIntBuffer().put(a);
+                return typedArray("i32", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0)
+                    append(',');
+                number(a[i]);
+            }
+            return append(']');
+        } else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            append('[');
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0)
+                    append(',');
+                number(a[i]);
+            }
+            return append(']');
+        } else if (array instanceof float[]) {
+            float[] a = (float[]) array;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(a.length * 4);
+                bytes.asFloatBuffer().put(a);
+                return typedArray("f32", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0)
+                    append(',');
+                raw(Float.toString(a[i]));
+            }
+            return append(']');
+        } else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(a.length * 8);
+                bytes.asDoubleBuffer().put(a);
+                return typedArray("f64", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0)
+                    append(',');
+                raw(Double.toString(a[i]));
+            }
+            return append(']');
+        } else if (array instanceof boolean[]) {
+            boolean[] a = (boolean[]) array;
+            append('[');
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0)
+                    append(',');
+                raw(a[i] ? "true" : "false");
+            }
+            return append(']');
+        }
+
+        // char[] has no JSON form of its own
+        append('[');
+        final int arrayLength = Array.getLength(array);
+        for (int i = 0; i < arrayLength; i++) {
+            if (i > 0)
+                append(',');
+            value(Array.get(array, i));
+        }
+        return append(']');
+    }
+
+    // java.nio buffers are written like the matching primitive array, from position to limit
+    private NKJsonWriter buffer(Buffer buffer) {
+        if (buffer instanceof ByteBuffer) {
+            ByteBuffer b = (ByteBuffer) buffer;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                if (b.hasArray())
+                    return typedArray("u8", b.array(), b.arrayOffset() + b.position(), b.remaining());
+                byte[] bytes = new byte[b.remaining()];
+                b.duplicate().get(bytes);
+                return typedArray("u8", bytes, 0, bytes.length);
+            }
+            append('[');
+            for (int i = b.position(); i < b.limit(); i++) {
+                if (i > b.position())
+                    append(',');
+                number(b.get(i));
+            }
+            return append(']');
+        } else if (buffer instanceof ShortBuffer) {
+            ShortBuffer b = (ShortBuffer) buffer;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(b.remaining() * 2);
+                bytes.asShortBuffer().put(b.duplicate());
+                return typedArray("i16", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = b.position(); i < b.limit(); i++) {
+                if (i > b.position())
+                    append(',');
+                number(b.get(i));
+            }
+            return append(']');
+        } else if (buffer instanceof IntBuffer) {
+            IntBuffer b = (IntBuffer) buffer;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(b.remaining() * 4);
+                bytes.asIntBuffer().put(b.duplicate());
+                return typedArray("i32", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = b.position(); i < b.limit(); i++) {
+                if (i > b.position())
+                    append(',');
+                number(b.get(i));
+            }
+            return append(']');
+        } else if (buffer instanceof LongBuffer) {
+            LongBuffer b = (LongBuffer) buffer;
+            append('[');
+            for (int i = b.position(); i < b.limit(); i++) {
+                if (i > b.position())
+                    append(',');
+                number(b.get(i));
+            }
+            return append(']');
+        } else if (buffer instanceof FloatBuffer) {
+            FloatBuffer b = (FloatBuffer) buffer;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(b.remaining() * 4);
+                bytes.asFloatBuffer().put(b.duplicate());
+                return typedArray("f32", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = b.position(); i < b.limit(); i++) {
+                if (i > b.position())
+                    append(',');
+                raw(Float.toString(b.get(i)));
+            }
+            return append(']');
+        } else if (buffer instanceof DoubleBuffer) {
+            DoubleBuffer b = (DoubleBuffer) buffer;
+            if (typedArrays != TYPED_ARRAYS_OFF) {
+                ByteBuffer bytes = littleEndian(b.remaining() * 8);
+                bytes.asDoubleBuffer().put(b.duplicate());
+                return typedArray("f64", bytes.array(), 0, bytes.capacity());
+            }
+            append('[');
+            for (int i = b.position(); i < b.limit(); i++) {
+                if (i > b.position())
+                    append(',');
+                raw(Double.toString(b.get(i)));
+            }
+            return append(']');
+        }
+
+        // CharBuffer
+        return string(buffer.toString());
+    }
+
+    private NKJsonWriter typedArray(String type, byte[] bytes, int offset, int length) {
+        if (typedArrays == TYPED_ARRAYS_SCRIPT) {
+            raw("NKScripting.typedArray(\"").raw(type).raw("\",\"");
+            base64(bytes, offset, length);
+            return raw("\")");
+        }
+        raw("{\"$nkta\":\"").raw(type).raw("\",\"$data\":\"");
+        base64(bytes, offset, length);
+        return raw("\"}");
+    }
+
+    private static ByteBuffer littleEndian(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void base64(byte[] bytes, int offset, int length) {
+        ensureCapacity(count + (length + 2) / 3 * 4);
+        final char[] buf = this.buf;
+        int n = count;
+        int end = offset + length - length % 3;
+        int i = offset;
+        for (; i < end; i += 3) {
+            int v = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+            buf[n++] = BASE64[v >>> 18];
+            buf[n++] = BASE64[(v >>> 12) & 0x3f];
+            buf[n++] = BASE64[(v >>> 6) & 0x3f];
+            buf[n++] = BASE64[v & 0x3f];
+        }
+        int rest = offset + length - i;
+        if (rest > 0) {
+            int v = (bytes[i] & 0xff) << 16;
+            if (rest == 2)
+                v |= (bytes[i + 1] & 0xff) << 8;
+            buf[n++] = BASE64[v >>> 18];
+            buf[n++] = BASE64[(v >>> 12) & 0x3f];
+            buf[n++] = (rest == 2) ? BASE64[(v >>> 6) & 0x3f] : '=';
+            buf[n++] = '=';
+        }
+        count = n;
+    }
+
+    // Decimal digits written straight into the buffer
+    private void number(long v) {
+        if (v == Long.MIN_VALUE) {
+            raw(Long.toString(v));
+            return;
+        }
+        ensureCapacity(count + 20);
+        if (v < 0) {
+            buf[count++] = '-';
+            v = -v;
+        }
+        int start = count;
+        do {
+            buf[count++] = (char) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            char c = buf[i];
+            buf[i] = buf[j];
+            buf[j] = c;
+        }
+    }
+
+    public NKJsonWriter string(String s) {
+        final int length = s.length();
+        ensureCapacity(count + length + 2);
+        buf[count++] = '"';
+
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            String replacement;
+            if (c < 128) {
+                replacement = ESCAPES[c];
+                if (replacement == null)
+                    continue;
+            } else if (c == 0x2028) {
+                replacement = "\\u2028";
+            } else if (c == 0x2029) {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+            if (start < i)
+                raw(s, start, i);
+            raw(replacement);
+            start = i + 1;
+        }
+        if (start < length)
+            raw(s, start, length);
+
+        return append('"');
+    }
+
+    // Appends already encoded script text
+    public NKJsonWriter raw(String s) {
+        return raw(s, 0, s.length());
+    }
+
+    private NKJsonWriter raw(String s, int start, int end) {
+        int len = end - start;
+        ensureCapacity(count + len);
+        s.getChars(start, end, buf, count);
+        count += len;
+        return this;
+    }
+
+    @Override
+    public NKJsonWriter append(CharSequence csq) {
+        return raw(String.valueOf(csq));
+    }
+
+    @Override
+    public NKJsonWriter append(CharSequence csq, int start, int end) {
+        return raw(String.valueOf(csq), start, end);
+    }
+
+    @Override
+    public NKJsonWriter append(char c) {
+        ensureCapacity(count + 1);
+        buf[count++] = c;
+        return this;
+    }
+
+    public int length() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= buf.length)
+            return;
+
+        int newCapacity = buf.length << 1;
+        if (newCapacity < minCapacity)
+            newCapacity = minCapacity;
+
+        char[] newBuf = new char[newCapacity];
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        buf = newBuf;
+    }
+
+    private SimpleDateFormat dateFormatter() {
+        if (dateFormatter == null)
+            dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        return dateFormatter;
+    }
+}
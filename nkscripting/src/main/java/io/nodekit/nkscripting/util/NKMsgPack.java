@@ -0,0 +1,610 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// MessagePack codec for script channels opened with the "msgpack" format, matching
+// lib-scripting/msgpack.js.  Payloads cross the bridge as base64 text.
+//
+// One extension to plain MessagePack: map keys are strings the first time they appear in a
+// message and afterwards are written as an unsigned int index into the keys seen so far, so
+// arrays of similar objects do not repeat every property name.
+//
+// Messages posted from script start with MESSAGE_MARKER before the base64, which can never
+// begin JSON text, so a channel tells the two formats apart without guessing.
+public final class NKMsgPack {
+
+    public static final char MESSAGE_MARKER = '@';
+
+    private static final byte EXT_TIMESTAMP = -1;
+
+    private byte[] buf;
+    private int count;
+    private HashMap<String, Integer> keys;
+    // keys in index order, so the ones added by a value that fails can be taken back
+    private ArrayList<String> keyOrder;
+
+    private NKMsgPack(byte[] buf) {
+        this.buf = buf;
+    }
+
+    public static byte[] encode(@Nullable Object obj) {
+        NKMsgPack packer = new NKMsgPack(new byte[256]);
+        packer.value(obj);
+        byte[] result = new byte[packer.count];
+        System.arraycopy(packer.buf, 0, result, 0, packer.count);
+        return result;
+    }
+
+    public static String encodeToString(@Nullable Object obj) {
+        NKMsgPack packer = new NKMsgPack(new byte[256]);
+        packer.value(obj);
+        return Base64.encodeToString(packer.buf, 0, packer.count, Base64.NO_WRAP);
+    }
+
+    public static Object decode(byte[] data) throws NKJsonReader.ParseException {
+        NKMsgPack unpacker = new NKMsgPack(data);
+        unpacker.count = data.length;
+        return unpacker.nextValue();
+    }
+
+    public static Object decodeString(String base64) throws NKJsonReader.ParseException {
+        byte[] data;
+        try {
+            data = Base64.decode(base64, Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            throw new NKJsonReader.ParseException("Invalid base64 payload", 0);
+        }
+        return decode(data);
+    }
+
+    // ENCODING
+
+    @SuppressWarnings("unchecked")
+    private void value(@Nullable Object obj) {
+
+        if (obj == null) {
+            writeByte(0xc0);
+            return;
+        }
+
+        int mark = count;
+        int keyMark = (keyOrder != null) ? keyOrder.size() : 0;
+
+        try {
+
+            Class type = obj.getClass();
+
+            if (obj instanceof String) {
+                string((String) obj);
+                return;
+            } else if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class) {
+                integer(((Number) obj).longValue());
+                return;
+            } else if (type == Double.class) {
+                writeByte(0xcb);
+                writeLong(Double.doubleToLongBits((Double) obj));
+                return;
+            } else if (type == Float.class) {
+                writeByte(0xca);
+                writeInt(Float.floatToIntBits((Float) obj));
+                return;
+            } else if (type == Boolean.class) {
+                writeByte(((Boolean) obj) ? 0xc3 : 0xc2);
+                return;
+            } else if (type == Date.class) {
+                timestamp((Date) obj);
+                return;
+            } else if (type == byte[].class) {
+                binary((byte[]) obj);
+                return;
+            } else if (obj instanceof ByteBuffer) {
+                ByteBuffer b = (ByteBuffer) obj;
+                binaryHeader(b.remaining());
+                ensureCapacity(count + b.remaining());
+                b.duplicate().get(buf, count, b.remaining());
+                count += b.remaining();
+                return;
+            } else if (obj instanceof Buffer) {
+                buffer((Buffer) obj);
+                return;
+            } else if (type.isArray() && type.getComponentType().isPrimitive() && type != char[].class) {
+                primitiveArray(obj);
+                return;
+            } else if (type.isArray()) {
+                final int arrayLength = Array.getLength(obj);
+                arrayHeader(arrayLength);
+                for (int i = 0; i < arrayLength; i++)
+                    value(Array.get(obj, i));
+                return;
+            } else if (obj instanceof Collection<?>) {
+                Collection<?> collection = (Collection<?>) obj;
+                arrayHeader(collection.size());
+                for (Object child : collection)
+                    value(child);
+                return;
+            } else if (obj instanceof Map<?, ?>) {
+                Map<?, ?> map = (Map<?, ?>) obj;
+                int size = 0;
+                for (Object child : map.values()) {
+                    if (child != null)
+                        size++;
+                }
+                mapHeader(size);
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (entry.getValue() == null)
+                        continue;
+                    key(String.valueOf(entry.getKey()));
+                    value(entry.getValue());
+                }
+                return;
+            }
+        }
+        catch (Exception e)
+        {
+            NKLogging.log(e);
+        }
+
+        // discard anything partially written for this value, including the keys it introduced
+        count = mark;
+        while (keyOrder != null && keyOrder.size() > keyMark)
+            keys.remove(keyOrder.remove(keyOrder.size() - 1));
+
+        NKLogging.log("NKNodeKit WARNING:  COULD NOT SERIALIZE " + obj.toString(), NKLogging.Level.Warning);
+
+        string(obj.toString());
+    }
+
+    private void key(String key) {
+        if (keys == null) {
+            keys = new HashMap<String, Integer>();
+            keyOrder = new ArrayList<String>();
+        }
+
+        Integer index = keys.get(key);
+        if (index != null) {
+            integer(index);
+        } else {
+            keys.put(key, keys.size());
+            keyOrder.add(key);
+            string(key);
+        }
+    }
+
+    private void integer(long v) {
+        if (v >= 0) {
+            if (v < 0x80) {
+                writeByte((int) v);
+            } else if (v < 0x100) {
+                writeByte(0xcc);
+                writeByte((int) v);
+            } else if (v < 0x10000) {
+                writeByte(0xcd);
+                writeShort((int) v);
+            } else if (v < 0x100000000L) {
+                writeByte(0xce);
+                writeInt((int) v);
+            } else {
+                writeByte(0xcf);
+                writeLong(v);
+            }
+        } else {
+            if (v >= -32) {
+                writeByte((int) v & 0xff);
+            } else if (v >= Byte.MIN_VALUE) {
+                writeByte(0xd0);
+                writeByte((int) v);
+            } else if (v >= Short.MIN_VALUE) {
+                writeByte(0xd1);
+                writeShort((int) v);
+            } else if (v >= Integer.MIN_VALUE) {
+                writeByte(0xd2);
+                writeInt((int) v);
+            } else {
+                writeByte(0xd3);
+                writeLong(v);
+            }
+        }
+    }
+
+    private void string(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        if (length < 32) {
+            writeByte(0xa0 | length);
+        } else if (length < 0x100) {
+            writeByte(0xd9);
+            writeByte(length);
+        } else if (length < 0x10000) {
+            writeByte(0xda);
+            writeShort(length);
+        } else {
+            writeByte(0xdb);
+            writeInt(length);
+        }
+        writeBytes(bytes, 0, length);
+    }
+
+    // Primitive arrays are written element by element without boxing
+    private void primitiveArray(Object array) {
+        if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            arrayHeader(a.length);
+            for (int v : a)
+                integer(v);
+        } else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            arrayHeader(a.length);
+            for (long v : a)
+                integer(v);
+        } else if (array instanceof short[]) {
+            short[] a = (short[]) array;
+            arrayHeader(a.length);
+            for (short v : a)
+                integer(v);
+        } else if (array instanceof float[]) {
+            float[] a = (float[]) array;
+            arrayHeader(a.length);
+            ensureCapacity(count + a.length * 5);
+            for (float v : a) {
+                buf[count++] = (byte) 0xca;
+                writeInt(Float.floatToIntBits(v));
+            }
+        } else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            arrayHeader(a.length);
+            ensureCapacity(count + a.length * 9);
+            for (double v : a) {
+                buf[count++] = (byte) 0xcb;
+                writeLong(Double.doubleToLongBits(v));
+            }
+        } else if (array instanceof boolean[]) {
+            boolean[] a = (boolean[]) array;
+            arrayHeader(a.length);
+            for (boolean v : a)
+                writeByte(v ? 0xc3 : 0xc2);
+        }
+    }
+
+    // The other java.nio buffers are written like the matching primitive array, from position to
+    // limit, a CharBuffer as its text
+    private void buffer(Buffer buffer) {
+        if (buffer instanceof ShortBuffer) {
+            ShortBuffer b = (ShortBuffer) buffer;
+            arrayHeader(b.remaining());
+            for (int i = b.position(); i < b.limit(); i++)
+                integer(b.get(i));
+        } else if (buffer instanceof IntBuffer) {
+            IntBuffer b = (IntBuffer) buffer;
+            arrayHeader(b.remaining());
+            for (int i = b.position(); i < b.limit(); i++)
+                integer(b.get(i));
+        } else if (buffer instanceof LongBuffer) {
+            LongBuffer b = (LongBuffer) buffer;
+            arrayHeader(b.remaining());
+            for (int i = b.position(); i < b.limit(); i++)
+                integer(b.get(i));
+        } else if (buffer instanceof FloatBuffer) {
+            FloatBuffer b = (FloatBuffer) buffer;
+            arrayHeader(b.remaining());
+            ensureCapacity(count + b.remaining() * 5);
+            for (int i = b.position(); i < b.limit(); i++) {
+                buf[count++] = (byte) 0xca;
+                writeInt(Float.floatToIntBits(b.get(i)));
+            }
+        } else if (buffer instanceof DoubleBuffer) {
+            DoubleBuffer b = (DoubleBuffer) buffer;
+            arrayHeader(b.remaining());
+            ensureCapacity(count + b.remaining() * 9);
+            for (int i = b.position(); i < b.limit(); i++) {
+                buf[count++] = (byte) 0xcb;
+                writeLong(Double.doubleToLongBits(b.get(i)));
+            }
+        } else {
+            string(buffer.toString());
+        }
+    }
+
+    private void binary(byte[] bytes) {
+        binaryHeader(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    private void binaryHeader(int length) {
+        if (length < 0x100) {
+            writeByte(0xc4);
+            writeByte(length);
+        } else if (length < 0x10000) {
+            writeByte(0xc5);
+            writeShort(length);
+        } else {
+            writeByte(0xc6);
+            writeInt(length);
+        }
+    }
+
+    // timestamp 96 extension: uint32 nanoseconds followed by int64 seconds
+    private void timestamp(Date date) {
+        long millis = date.getTime();
+        long seconds = millis / 1000;
+        long nanos = (millis % 1000) * 1000000;
+        if (nanos < 0) {
+            seconds--;
+            nanos += 1000000000;
+        }
+        writeByte(0xc7);
+        writeByte(12);
+        writeByte(EXT_TIMESTAMP);
+        writeInt((int) nanos);
+        writeLong(seconds);
+    }
+
+    private void arrayHeader(int size) {
+        if (size < 16) {
+            writeByte(0x90 | size);
+        } else if (size < 0x10000) {
+            writeByte(0xdc);
+            writeShort(size);
+        } else {
+            writeByte(0xdd);
+            writeInt(size);
+        }
+    }
+
+    private void mapHeader(int size) {
+        if (size < 16) {
+            writeByte(0x80 | size);
+        } else if (size < 0x10000) {
+            writeByte(0xde);
+            writeShort(size);
+        } else {
+            writeByte(0xdf);
+            writeInt(size);
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    private void writeShort(int v) {
+        ensureCapacity(count + 2);
+        buf[count++] = (byte) (v >> 8);
+        buf[count++] = (byte) v;
+    }
+
+    private void writeInt(int v) {
+        ensureCapacity(count + 4);
+        buf[count++] = (byte) (v >> 24);
+        buf[count++] = (byte) (v >> 16);
+        buf[count++] = (byte) (v >> 8);
+        buf[count++] = (byte) v;
+    }
+
+    private void writeLong(long v) {
+        writeInt((int) (v >> 32));
+        writeInt((int) v);
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= buf.length)
+            return;
+
+        int newCapacity = buf.length << 1;
+        if (newCapacity < minCapacity)
+            newCapacity = minCapacity;
+
+        byte[] newBuf = new byte[newCapacity];
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        buf = newBuf;
+    }
+
+    // DECODING
+    // buf / count double as the input and its length, pos is the read cursor
+
+    private int pos;
+    private ArrayList<String> keyTable;
+
+    private Object nextValue() throws NKJsonReader.ParseException {
+        int b = readByte();
+
+        if (b <= 0x7f)
+            return b;
+        if (b >= 0xe0)
+            return (int) (byte) b;
+        if ((b & 0xe0) == 0xa0)
+            return readString(b & 0x1f);
+        if ((b & 0xf0) == 0x90)
+            return readArray(b & 0x0f);
+        if ((b & 0xf0) == 0x80)
+            return readMap(b & 0x0f);
+
+        switch (b) {
+            case 0xc0: return null;
+            case 0xc2: return Boolean.FALSE;
+            case 0xc3: return Boolean.TRUE;
+            case 0xc4: return readBinary(readByte());
+            case 0xc5: return readBinary(readShort());
+            case 0xc6: return readBinary(readLength());
+            case 0xc7: return readExt(readByte());
+            case 0xc8: return readExt(readShort());
+            case 0xc9: return readExt(readLength());
+            case 0xca: return (double) Float.intBitsToFloat(readInt());
+            case 0xcb: return Double.longBitsToDouble(readLong());
+            case 0xcc: return readByte();
+            case 0xcd: return readShort();
+            case 0xce: return box(readInt() & 0xffffffffL);
+            case 0xcf: {
+                long v = readLong();
+                if (v >= 0)
+                    return box(v);
+                // beyond a signed long, same as the JSON reader does for oversized integers
+                return (double) (v >>> 1) * 2.0 + (v & 1);
+            }
+            case 0xd0: return (int) (byte) readByte();
+            case 0xd1: return (int) (short) readShort();
+            case 0xd2: return readInt();
+            case 0xd3: return box(readLong());
+            case 0xd4: return readExt(1);
+            case 0xd5: return readExt(2);
+            case 0xd6: return readExt(4);
+            case 0xd7: return readExt(8);
+            case 0xd8: return readExt(16);
+            case 0xd9: return readString(readByte());
+            case 0xda: return readString(readShort());
+            case 0xdb: return readString(readLength());
+            case 0xdc: return readArray(readShort());
+            case 0xdd: return readArray(readLength());
+            case 0xde: return readMap(readShort());
+            case 0xdf: return readMap(readLength());
+            default:
+                throw error("Unexpected type 0x" + Integer.toHexString(b));
+        }
+    }
+
+    private List<Object> readArray(int size) throws NKJsonReader.ParseException {
+        List<Object> list = new ArrayList<Object>(Math.min(size, count - pos));
+        for (int i = 0; i < size; i++)
+            list.add(nextValue());
+        return list;
+    }
+
+    private Map<String, Object> readMap(int size) throws NKJsonReader.ParseException {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            Object key = nextValue();
+            if (key instanceof String) {
+                if (keyTable == null)
+                    keyTable = new ArrayList<String>();
+                keyTable.add((String) key);
+            } else if (key instanceof Integer && keyTable != null && (Integer) key < keyTable.size()) {
+                key = keyTable.get((Integer) key);
+            } else {
+                throw error("Invalid map key");
+            }
+            map.put((String) key, nextValue());
+        }
+        return map;
+    }
+
+    private String readString(int length) throws NKJsonReader.ParseException {
+        require(length);
+        String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    private byte[] readBinary(int length) throws NKJsonReader.ParseException {
+        require(length);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buf, pos, bytes, 0, length);
+        pos += length;
+        return bytes;
+    }
+
+    private Object readExt(int length) throws NKJsonReader.ParseException {
+        byte type = (byte) readByte();
+        require(length);
+        int end = pos + length;
+
+        Object result;
+        if (type == EXT_TIMESTAMP && length == 4) {
+            result = new Date((readInt() & 0xffffffffL) * 1000);
+        } else if (type == EXT_TIMESTAMP && length == 8) {
+            long v = readLong();
+            result = new Date((v & 0x3ffffffffL) * 1000 + (v >>> 34) / 1000000);
+        } else if (type == EXT_TIMESTAMP && length == 12) {
+            long nanos = readInt() & 0xffffffffL;
+            result = new Date(readLong() * 1000 + nanos / 1000000);
+        } else {
+            // unknown extension types are handed through as their raw bytes
+            result = readBinary(length);
+        }
+
+        pos = end;
+        return result;
+    }
+
+    private int readByte() throws NKJsonReader.ParseException {
+        require(1);
+        return buf[pos++] & 0xff;
+    }
+
+    private int readShort() throws NKJsonReader.ParseException {
+        require(2);
+        return ((buf[pos++] & 0xff) << 8) | (buf[pos++] & 0xff);
+    }
+
+    private int readInt() throws NKJsonReader.ParseException {
+        require(4);
+        return ((buf[pos++] & 0xff) << 24) | ((buf[pos++] & 0xff) << 16) | ((buf[pos++] & 0xff) << 8) | (buf[pos++] & 0xff);
+    }
+
+    private long readLong() throws NKJsonReader.ParseException {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    private int readLength() throws NKJsonReader.ParseException {
+        int length = readInt();
+        if (length < 0)
+            throw error("Length out of range");
+        return length;
+    }
+
+    private void require(int length) throws NKJsonReader.ParseException {
+        if (length < 0 || pos + length > count)
+            throw error("Unexpected end of input");
+    }
+
+    private NKJsonReader.ParseException error(String message) {
+        return new NKJsonReader.ParseException(message, pos);
+    }
+
+    // Same boxing as the JSON reader, Integer when it fits and Long otherwise
+    private static Object box(long v) {
+        if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+            return (int) v;
+        return v;
+    }
+}
@@ -24,23 +24,22 @@ import android.support.annotation.Nullable;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
-import java.lang.reflect.Array;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.annotation.Retention;
@@ -56,18 +55,101 @@ public class NKSerialize {
     @Nullable
     public static <T> T deserialize(String json) {
         try {
-            Object jsonTest = new JSONTokener(json).nextValue();
-            if(jsonTest == JSONObject.NULL) {
-                return null;
-            } else if (jsonTest instanceof JSONObject)
-            {
-                JSONObject jsonObject = new JSONObject(json);
-                return (T)NKSerialize.toMap(jsonObject);
-            }
-            else if (jsonTest instanceof JSONArray) {
-                 JSONArray jsonArray = new JSONArray(json);
-                return (T)NKSerialize.toList(jsonArray);
+            Object value = NKJsonReader.parse(json);
+            if ((value instanceof Map<?, ?>) || (value instanceof List<?>))
+                return (T) value;
+        }  catch (Exception e) {
+            NKLogging.log(e);
+        }
+
+        return null;
+    }
+
+    // Like deserialize, but nested objects and arrays of a top level object are only decoded when first read
+    @Nullable
+    public static <T> T deserializeLazy(String json) {
+        try {
+            Object value = NKJsonReader.parseLazy(json);
+            if ((value instanceof Map<?, ?>) || (value instanceof List<?>))
+                return (T) value;
+        }  catch (Exception e) {
+            NKLogging.log(e);
+        }
+
+        return null;
+    }
+
+    // Encoding used on a script channel, selected with the "format" option of loadPlugin
+    public enum WireFormat {
+        JSON,
+        MSGPACK;
+
+        public static WireFormat fromOption(@Nullable Object option) {
+            if (option instanceof WireFormat)
+                return (WireFormat) option;
+            if (option != null && "msgpack".equalsIgnoreCase(option.toString()))
+                return MSGPACK;
+            return JSON;
+        }
+    }
+
+    public static String serialize(@Nullable Object obj, WireFormat format) {
+        return serialize(obj, format, false);
+    }
+
+    // typedArrays sends byte / short / int / float / double arrays as base64 that NKScripting
+    // revives into typed arrays; MessagePack already carries byte[] as binary
+    public static String serialize(@Nullable Object obj, WireFormat format, boolean typedArrays) {
+        if (format == WireFormat.MSGPACK && obj != null)
+            return NKMsgPack.encodeToString(obj);
+        if (typedArrays)
+            return NKJsonWriter.serialize(obj, NKJsonWriter.TYPED_ARRAYS_JSON);
+        return serialize(obj);
+    }
+
+    // Decodes a message body received on a channel; JSON text is accepted on any channel, and
+    // MessagePack on msgpack channels when it carries NKMsgPack.MESSAGE_MARKER
+    @Nullable
+    public static <T> T deserializeMessage(String message, WireFormat format) {
+        if (!isMsgPackMessage(message, format))
+            return deserializeLazy(message);
+
+        try {
+            Object value = NKMsgPack.decodeString(message.substring(1));
+            if ((value instanceof Map<?, ?>) || (value instanceof List<?>))
+                return (T) value;
+        }  catch (Exception e) {
+            NKLogging.log(e);
+        }
+
+        return null;
+    }
+
+    private static boolean isMsgPackMessage(String message, WireFormat format) {
+        return format == WireFormat.MSGPACK && !message.isEmpty() && message.charAt(0) == NKMsgPack.MESSAGE_MARKER;
+    }
+
+    // Decodes a batch of message bodies: a JSON array of messages, or on MessagePack channels a
+    // JSON array of the base64 MessagePack encoded messages.  A message that does not decode is
+    // logged and left null, the others are still delivered.
+    @Nullable
+    public static List<Object> deserializeBatch(String payload, WireFormat format) {
+        try {
+            List<Object> messages = NKJsonReader.parseLazyArray(payload);
+            if (format == WireFormat.MSGPACK) {
+                for (int i = 0; i < messages.size(); i++) {
+                    Object message = messages.get(i);
+                    if ((message instanceof String) && isMsgPackMessage((String) message, format)) {
+                        try {
+                            messages.set(i, NKMsgPack.decodeString(((String) message).substring(1)));
+                        } catch (Exception e) {
+                            NKLogging.log(e);
+                            messages.set(i, null);
+                        }
+                    }
+                }
             }
+            return messages;
         }  catch (Exception e) {
             NKLogging.log(e);
         }
@@ -78,17 +160,15 @@ public class NKSerialize {
     @Nullable
     public static Object deserialize(String json, Class type) {
         try {
-            Object jsonTest = new JSONTokener(json).nextValue();
-            if (jsonTest instanceof JSONObject)
+            Object value = NKJsonReader.parse(json);
+            if (value instanceof Map<?, ?>)
             {
                 //you have an object
-                JSONObject jsonObject = new JSONObject(json);
-                return NKSerialize.jsonToNative(jsonObject, type);
+                return NKSerialize.jsonToNative((Map<String, Object>) value, type);
             }
-            else if (jsonTest instanceof JSONArray) {
+            else if (value instanceof List<?>) {
                 //you have an array
-                JSONArray jsonArray = new JSONArray(json);
-                return NKSerialize.jsonArrayToNativeList(jsonArray, type);
+                return NKSerialize.jsonArrayToNativeList((List<Object>) value, type);
             }
         }  catch (Exception e) {
             NKLogging.log(e);
@@ -153,119 +233,11 @@ public class NKSerialize {
     }
 
     public static String serialize(@Nullable Object obj) {
-
-        if (null == obj) {
-            return "undefined";
-        }
-
-        try {
-
-
-            Class type = obj.getClass();
-
-            if (obj instanceof String) {
-                return JSONObject.quote((String) obj);
-            } else if (isNumberType(type)) {
-                return obj.toString();
-            } else if (type == Boolean.class) {
-                return ((Boolean) obj) ? "true" : "false";
-            } else if (type == Date.class) {
-                SimpleDateFormat formatter;
-
-                formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-                return "\"" + formatter.format((Date) obj) + "\"";
-            } else if (type.isArray()) {
-                StringBuilder sb = new StringBuilder();
-                Boolean started = false;
-
-                final int arrayLength = Array.getLength(obj);
-                started = Boolean.valueOf(false);
-                for (int i = 0; i < arrayLength; i++) {
-                    if (!started) {
-                        sb.append("[");
-                        started = true;
-                    } else {
-                        sb.append(",");
-                    }
-                    sb.append(NKSerialize.serialize(Array.get(obj, i)));
-                }
-                if (started) {
-                    sb.append("]");
-                } else {
-                    sb.append("[]");
-                }
-                return sb.toString();
-
-            } else if (obj instanceof Collection<?>) {
-                List<?> list = (List<?>) obj;
-                StringBuilder sb = new StringBuilder();
-                Boolean started = false;
-                for (Object child : list) {
-                    if (!started) {
-                        sb.append("[");
-                        started = true;
-                    } else {
-                        sb.append(",");
-                    }
-                    sb.append(NKSerialize.serialize(child));
-
-                }
-                if (started) {
-                    sb.append("]");
-                } else {
-                    sb.append("[]");
-                }
-                return sb.toString();
-            } else if (obj instanceof Map<?, ?>) {
-                Map<String, ?> map = (Map<String, ?>) obj;
-                StringBuilder sb = new StringBuilder();
-                Boolean started = false;
-                for (String key : map.keySet()) {
-                    if (map.get(key) != null) {
-                        if (!started) {
-                            sb.append("{");
-                            started = true;
-                        } else {
-                            sb.append(",");
-                        }
-
-                        sb.append(NKSerialize.serialize(key)).append(": ").append(NKSerialize.serialize(map.get(key)));
-                    }
-                }
-                if (started) {
-                    sb.append("}");
-                } else {
-                    sb.append("{}");
-                }
-                return sb.toString();
-            }
-        }
-        catch (Exception e)
-        {
-            NKLogging.log(e);
-        }
-
-        NKLogging.log("NKNodeKit WARNING:  COULD NOT SERIALIZE " + obj.toString(), NKLogging.Level.Warning);
-
-        return obj.toString();
-
+        return NKJsonWriter.serialize(obj);
     }
 
     public static String serializeArgs(Object[] list) {
-        StringBuilder sb = new StringBuilder();
-        Boolean started = false;
-        for (Object child : list) {
-            if (!started)
-            {
-                started = true;
-            } else
-            {
-                sb.append(",");
-            }
-            sb.append(NKSerialize.serialize(child));
-
-        }
-        return sb.toString();
+        return NKJsonWriter.serializeArgs(list);
     }
 
     protected static final Set<Class> NUMBER_TYPES = new HashSet(Arrays.asList(
@@ -298,13 +270,26 @@ public class NKSerialize {
         T deserialization(String s);
     }
 
+    // Implemented by the <Class>_NKCodec classes generated by nkscripting-processor, and
+    // by the reflection based fallback for classes without a generated codec
+    public interface Codec<T> {
+        T newInstance();
+        void decode(Map<String, Object> jsonObject, T t);
+        JSONObject encode(T t);
+    }
+
 
     protected static <T> T fromJson(JSONObject jsonObject, Class type) {
-        return NKSerialize.jsonToNative(jsonObject, type);
+        return NKSerialize.jsonToNative(toMap(jsonObject), type);
     }
 
     protected static <T> Collection<T> fromJsonArray(JSONArray array, Class type) {
-        return NKSerialize.jsonArrayToNativeList(array,type);
+        try {
+            return NKSerialize.jsonArrayToNativeList(toList(array), type);
+        } catch (JSONException e) {
+            NKLogging.log(e);
+            return new ArrayList<T>();
+        }
     }
 
     protected static <T> JSONObject toJson(T t){
@@ -320,29 +305,20 @@ public class NKSerialize {
 
 
     @Nullable
-    private static <T> T jsonToNative(JSONObject jsonObject, Class type) {
-        T t = null;
-        try {
-            t = (T) type.newInstance();
-        } catch (Exception e) {
-            NKLogging.log(e);
-        }
+    private static <T> T jsonToNative(Map<String, Object> jsonObject, Class type) {
+        Codec codec = codecFor(type);
+        T t = (T) codec.newInstance();
         if (null != t) {
-            t = parseEntity(jsonObject, t);
+            codec.decode(jsonObject, t);
             return t;
         }
         return null;
     }
 
-    private static <T> Collection<T> jsonArrayToNativeList(JSONArray array, Class type) {
+    private static <T> Collection<T> jsonArrayToNativeList(List<Object> array, Class type) {
         Collection collection = new ArrayList<>();
-        BasicType basicType = isBasicType(type);
         try {
-            if (basicType != BasicType.OTHER_TYPE) {
-                collection = setCollectionBasicValue(collection, array, type);
-            } else {
-                collection = setCollectionCustomValue(collection, array, type);
-            }
+            decodeCollection(collection, array, type, isBasicType(type));
         } catch (Exception e) {
             // ignore
         }
@@ -350,16 +326,138 @@ public class NKSerialize {
     }
 
     private static <T> JSONObject nativeToJson(T t) {
-        JSONObject jsonObject = new JSONObject();
-        Field[] fields = t.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if (field.isAnnotationPresent(SerializeIgnore.class)) {
-                continue;
+        return codecFor(t.getClass()).encode(t);
+    }
+
+    // PER CLASS CODECS
+
+    // Generated codecs are preferred; otherwise reflection results (fields, basic types, collection
+    // initializers, Serializer instances) are resolved once per class and reused for every object
+    private static final ConcurrentHashMap<Class, Codec> codecs = new ConcurrentHashMap<Class, Codec>();
+
+    static final String GENERATED_CODEC_SUFFIX = "_NKCodec";
+
+    private static Codec codecFor(Class type) {
+        Codec codec = codecs.get(type);
+        if (codec == null) {
+            codec = generatedCodec(type);
+            if (codec == null)
+                codec = new ClassCodec(type);
+            Codec existing = codecs.putIfAbsent(type, codec);
+            if (existing != null)
+                codec = existing;
+        }
+        return codec;
+    }
+
+    @Nullable
+    private static Codec generatedCodec(Class type) {
+        try {
+            Class codecClass = Class.forName(type.getName().replace('$', '_') + GENERATED_CODEC_SUFFIX, true, type.getClassLoader());
+            Constructor ctor = codecClass.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            return (Codec) ctor.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            NKLogging.log(e);
+            return null;
+        }
+    }
+
+    // Helpers called from generated codecs
+    public static final class CodecSupport {
+
+        private CodecSupport() {}
+
+        public static int toInt(Object value) {
+            return (Integer) basicValue(value, BasicType.INT);
+        }
+
+        public static long toLong(Object value) {
+            return (Long) basicValue(value, BasicType.LONG);
+        }
+
+        public static double toDouble(Object value) {
+            return (Double) basicValue(value, BasicType.DOUBLE);
+        }
+
+        public static float toFloat(Object value) {
+            return (Float) basicValue(value, BasicType.FLOAT);
+        }
+
+        public static boolean toBoolean(Object value) {
+            return (Boolean) basicValue(value, BasicType.BOOLEAN);
+        }
+
+        public static String toString(Object value) {
+            return (String) basicValue(value, BasicType.STRING);
+        }
+
+        @Nullable
+        public static <T> T decodeObject(Object value, Class<T> type) {
+            if (!(value instanceof Map<?, ?>))
+                return null;
+            Codec codec = codecFor(type);
+            T t = (T) codec.newInstance();
+            if (t != null)
+                codec.decode((Map<String, Object>) value, t);
+            return t;
+        }
+
+        @Nullable
+        public static <C extends Collection> C decodeCollection(C collection, Object value, Class elementType) {
+            if (!(value instanceof List<?>))
+                return null;
+            return (C) NKSerialize.decodeCollection(collection, (List<Object>) value, elementType, isBasicType(elementType));
+        }
+
+        public static JSONObject encodeObject(Object value) {
+            return nativeToJson(value);
+        }
+
+        @Nullable
+        public static Object decodeArray(Object value, Class elementType) {
+            if (!(value instanceof List<?>))
+                return null;
+            List<Object> list = (List<Object>) value;
+            BasicType basicType = isBasicType(elementType);
+            Object array = Array.newInstance(elementType, list.size());
+            for (int i = 0; i < list.size(); i++) {
+                Object item = list.get(i);
+                if (item == null)
+                    continue;
+                Array.set(array, i, basicType != BasicType.OTHER_TYPE ? basicValue(item, basicType) : decodeObject(item, elementType));
             }
-            field.setAccessible(true);
-            String name = field.getName();
+            return array;
+        }
+
+        @Nullable
+        public static JSONArray encodeArray(Object array) {
+            if (array == null)
+                return null;
+            boolean basic = isBasicType(array.getClass().getComponentType()) != BasicType.OTHER_TYPE;
+            JSONArray jsonArray = new JSONArray();
+            int length = Array.getLength(array);
+            for (int i = 0; i < length; i++) {
+                Object o = Array.get(array, i);
+                jsonArray.put((basic || o == null) ? o : nativeToJson(o));
+            }
+            return jsonArray;
+        }
+
+        public static JSONArray encodeCollection(Collection collection, Class elementType) {
+            boolean basic = isBasicType(elementType) != BasicType.OTHER_TYPE;
+            JSONArray jsonArray = new JSONArray();
+            for (Object o : collection) {
+                jsonArray.put(basic ? o : nativeToJson(o));
+            }
+            return jsonArray;
+        }
+
+        // Same empty-value convention as the reflection codec
+        public static void put(JSONObject jsonObject, String name, Object value) {
             try {
-                Object value = parseFieldValue(field, t);
                 if (null == value || value.equals("null")) {
                     jsonObject.put(name, "");
                 } else {
@@ -369,149 +467,230 @@ public class NKSerialize {
                 // ignore
             }
         }
-        return jsonObject;
     }
 
+    private static final class ClassCodec implements Codec<Object> {
+
+        private final Class type;
+        private final Constructor constructor;
+        private final FieldCodec[] fields;
 
-    private static <T> T parseEntity(JSONObject jsonObject, T t) {
-        Field[] fields = t.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if (!field.isAnnotationPresent(SerializeIgnore.class)) {
-                parseField(field, jsonObject, t);
+        ClassCodec(Class type) {
+            this.type = type;
+
+            Constructor ctor = null;
+            try {
+                ctor = type.getDeclaredConstructor();
+                ctor.setAccessible(true);
+            } catch (Exception e) {
+                // no default constructor; instances of this class can only be encoded
             }
+            this.constructor = ctor;
+
+            List<FieldCodec> list = new ArrayList<FieldCodec>();
+            for (Field field : type.getDeclaredFields()) {
+                if (field.isAnnotationPresent(SerializeIgnore.class) || field.isSynthetic() || Modifier.isStatic(field.getModifiers()))
+                    continue;
+                list.add(new FieldCodec(field));
+            }
+            this.fields = list.toArray(new FieldCodec[list.size()]);
         }
-        return t;
-    }
 
-    private static <T> void parseField(Field field, JSONObject jsonObject, T t) {
-        field.setAccessible(true);
-        Type fieldType = field.getType();
-        Type fieldGenericType = field.getGenericType();
-        String fieldName = field.getName();
-        try {
-            if (field.isAnnotationPresent(SerializeBy.class)) {
-                Class s = field.getAnnotation(SerializeBy.class).value();
-                Serializer serializer = (Serializer) s.newInstance();
-                field.set(t, serializer.deserialization(jsonObject.getString(fieldName)));
-                return;
+        @Nullable
+        public Object newInstance() {
+            try {
+                if (constructor != null)
+                    return constructor.newInstance();
+                return type.newInstance();
+            } catch (Exception e) {
+                NKLogging.log(e);
+                return null;
             }
-            if (fieldType == fieldGenericType) {
-                BasicType basicType = isBasicType(fieldType);
-                if (basicType != BasicType.OTHER_TYPE) {
-                    setBasicValue(field, jsonObject, t, fieldName, basicType);
-                } else {
-                    setCustomValue(field, jsonObject, t, fieldType, fieldName);
-                }
-            } else {
-                ParameterizedType integerListType = (ParameterizedType) fieldGenericType;
-                Type genericType = integerListType.getActualTypeArguments()[0];
-                BasicType basicType = isBasicType(genericType);
-                Collection collection = null;
-                if (field.isAnnotationPresent(SerializeCollectionInitBy.class)) {
-                    Class c = field.getAnnotation(SerializeCollectionInitBy.class).value();
-                    collection = (Collection) c.newInstance();
+        }
+
+        public void decode(Map<String, Object> jsonObject, Object t) {
+            for (FieldCodec field : fields) {
+                Object value = jsonObject.get(field.name);
+                if (value == null)
+                    continue;
+                try {
+                    field.decode(value, t);
+                } catch (InstantiationException e) {
+                    throw new RuntimeException(new Exception("@SerializeCollectionInitBy must specific a collection implementation subclass "));
+                } catch (Exception e) {
+                    // ignore
                 }
-                if (collection == null){
-                    collection = new ArrayList();
+            }
+        }
+
+        public JSONObject encode(Object t) {
+            JSONObject jsonObject = new JSONObject();
+            for (FieldCodec field : fields) {
+                try {
+                    CodecSupport.put(jsonObject, field.name, field.encode(t));
+                } catch (Exception e) {
+                    // ignore
                 }
-                JSONArray jsonArray = jsonObject.getJSONArray(fieldName);
-                if (basicType != BasicType.OTHER_TYPE) {
-                    collection = setCollectionBasicValue(collection, jsonArray, genericType);
-                    field.set(t, collection);
-                } else {
-                    collection = setCollectionCustomValue(collection, jsonArray, genericType);
-                    field.set(t, collection);
+            }
+            return jsonObject;
+        }
+    }
+
+    private enum FieldKind {
+        SERIALIZER, BASIC, CUSTOM, COLLECTION, ARRAY, UNSUPPORTED
+    }
+
+    // Arrays of basic types or of plain model classes; nkscripting-processor accepts the same
+    private static boolean isSupportedArrayType(Class type) {
+        Class component = type.getComponentType();
+        return isBasicType(component) != BasicType.OTHER_TYPE || !(component.isPrimitive() || component.isArray());
+    }
+
+    private static final class FieldCodec {
+
+        final Field field;
+        final String name;
+        final FieldKind kind;
+        final BasicType basicType;
+        final Class valueType;
+        final Serializer serializer;
+        final Class collectionType;
+
+        FieldCodec(Field field) {
+            field.setAccessible(true);
+            this.field = field;
+            this.name = field.getName();
+
+            Class fieldType = field.getType();
+            Type fieldGenericType = field.getGenericType();
+
+            Serializer fieldSerializer = null;
+            Class fieldCollectionType = null;
+            Class fieldValueType = fieldType;
+            FieldKind fieldKind;
+
+            if (field.isAnnotationPresent(SerializeBy.class)) {
+                fieldKind = FieldKind.SERIALIZER;
+                try {
+                    fieldSerializer = (Serializer) field.getAnnotation(SerializeBy.class).value().newInstance();
+                } catch (Exception e) {
+                    NKLogging.log(e);
+                    fieldKind = FieldKind.UNSUPPORTED;
                 }
+            } else if (fieldType.isArray()) {
+                fieldKind = (fieldType == fieldGenericType && isSupportedArrayType(fieldType)) ? FieldKind.ARRAY : FieldKind.UNSUPPORTED;
+                fieldValueType = fieldType.getComponentType();
+            } else if (fieldType == fieldGenericType) {
+                fieldKind = isBasicType(fieldType) != BasicType.OTHER_TYPE ? FieldKind.BASIC : FieldKind.CUSTOM;
+            } else if (fieldGenericType instanceof ParameterizedType && Collection.class.isAssignableFrom(fieldType)) {
+                Type genericType = ((ParameterizedType) fieldGenericType).getActualTypeArguments()[0];
+                fieldKind = genericType instanceof Class ? FieldKind.COLLECTION : FieldKind.UNSUPPORTED;
+                if (genericType instanceof Class)
+                    fieldValueType = (Class) genericType;
+                if (field.isAnnotationPresent(SerializeCollectionInitBy.class))
+                    fieldCollectionType = field.getAnnotation(SerializeCollectionInitBy.class).value();
+            } else {
+                fieldKind = FieldKind.UNSUPPORTED;
             }
-        } catch (Exception e) {
-            if (e instanceof InstantiationException) {
-                throw new RuntimeException(new Exception("@SerializeCollectionInitBy must specific a collection implementation subclass "));
+
+            this.kind = fieldKind;
+            this.valueType = fieldValueType;
+            this.basicType = isBasicType(fieldValueType);
+            this.serializer = fieldSerializer;
+            this.collectionType = fieldCollectionType;
+        }
+
+        void decode(Object value, Object t) throws Exception {
+            switch (kind) {
+                case SERIALIZER:
+                    field.set(t, serializer.deserialization(String.valueOf(value)));
+                    break;
+                case BASIC:
+                    field.set(t, basicValue(value, basicType));
+                    break;
+                case CUSTOM:
+                    if (value instanceof Map<?, ?>)
+                        field.set(t, CodecSupport.decodeObject(value, valueType));
+                    break;
+                case COLLECTION:
+                    if (value instanceof List<?>) {
+                        Collection collection = collectionType != null ? (Collection) collectionType.newInstance() : new ArrayList();
+                        field.set(t, decodeCollection(collection, (List<Object>) value, valueType, basicType));
+                    }
+                    break;
+                case ARRAY:
+                    if (value instanceof List<?>)
+                        field.set(t, CodecSupport.decodeArray(value, valueType));
+                    break;
+                default:
+                    break;
             }
         }
-    }
 
-    private static  Collection setCollectionCustomValue(
-            Collection collection, JSONArray jsonArray, Type genericType) throws JSONException {
-        for (int i = 0; i < jsonArray.length(); i++) {
-            JSONObject jsonObject = jsonArray.getJSONObject(i);
-            Object o = ((Class) genericType).cast(generateInstance(genericType));
-            o = parseEntity(jsonObject, o);
-            collection.add(o);
+        Object encode(Object t) throws Exception {
+            switch (kind) {
+                case SERIALIZER:
+                    return serializer.serialization(field.get(t));
+                case BASIC:
+                    return field.get(t);
+                case CUSTOM:
+                    return nativeToJson(field.get(t));
+                case COLLECTION:
+                    return CodecSupport.encodeCollection((Collection) field.get(t), valueType);
+                case ARRAY:
+                    return CodecSupport.encodeArray(field.get(t));
+                default:
+                    return null;
+            }
         }
-        return collection;
     }
 
-    private static  Collection setCollectionBasicValue(
-            Collection collection, JSONArray jsonArray, Type genericType) throws JSONException {
-        for (int i = 0; i < jsonArray.length(); i++) {
-            collection.add(((Class) genericType).cast(jsonArray.get(i)));
+    private static Collection decodeCollection(Collection collection, List<Object> jsonArray, Class type, BasicType basicType) {
+        if (basicType != BasicType.OTHER_TYPE) {
+            for (Object value : jsonArray) {
+                collection.add(basicValue(value, basicType));
+            }
+        } else {
+            Codec codec = codecFor(type);
+            for (Object value : jsonArray) {
+                Object o = codec.newInstance();
+                if (value instanceof Map<?, ?>)
+                    codec.decode((Map<String, Object>) value, o);
+                collection.add(o);
+            }
         }
         return collection;
     }
 
-    private static <T> void setCustomValue(Field field, JSONObject jsonObject, T t,
-                                    Type fieldType, String fieldName) throws Exception {
-        JSONObject value = jsonObject.getJSONObject(fieldName);
-        Object o = generateInstance(fieldType);
-        o = parseEntity(value, o);
-        field.set(t, o);
-    }
-
-    private static <T> void setBasicValue(Field field, JSONObject jsonObject,
-                                   T t, String fieldName, BasicType basicType) throws Exception {
-        Object value = null;
+    // Coerces a decoded JSON value the same way org.json's typed getters do
+    private static Object basicValue(Object value, BasicType basicType) {
         switch (basicType) {
             case INT:
-                value = jsonObject.getInt(fieldName);
-                break;
+                return value instanceof Number ? ((Number) value).intValue() : (int) Double.parseDouble(value.toString());
             case LONG:
-                value = jsonObject.getLong(fieldName);
-                break;
+                return value instanceof Number ? ((Number) value).longValue() : (long) Double.parseDouble(value.toString());
             case DOUBLE:
-                value = jsonObject.getDouble(fieldName);
-                break;
+                return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
             case FLOAT:
-                value = (float) jsonObject.getDouble(fieldName);
-                break;
+                return value instanceof Number ? ((Number) value).floatValue() : (float) Double.parseDouble(value.toString());
             case BOOLEAN:
-                value = jsonObject.getBoolean(fieldName);
-                break;
+                if (value instanceof Boolean)
+                    return value;
+                if ("true".equalsIgnoreCase(value.toString()))
+                    return true;
+                if ("false".equalsIgnoreCase(value.toString()))
+                    return false;
+                throw new ClassCastException("Value " + value + " is not a boolean");
             case STRING:
-                value = jsonObject.getString(fieldName);
-                break;
+                return String.valueOf(value);
             default:
-                value = field.getType()
-                        .cast(jsonObject.get(fieldName));
-        }
-        field.set(t, value);
-
-    }
-
-    @Nullable
-    private static Object generateInstance(Type type) {
-        Class<?> genericsType = null;
-        try {
-            genericsType = Class.forName(getClassName(type));
-            Object o = genericsType.newInstance();
-            return o;
-        } catch (Exception e) {
-            NKLogging.log(e);
-            return null;
+                return value;
         }
     }
 
     protected static String CLASS_PREFIX = "class ";
     protected static String INTERFACE_PREFIX = "interface ";
 
-    private static String getClassName(Type type) {
-        String fullName = type.toString();
-        if (fullName.startsWith(CLASS_PREFIX))
-            return fullName.substring(CLASS_PREFIX.length());
-        if (fullName.startsWith(INTERFACE_PREFIX))
-            return fullName.substring(INTERFACE_PREFIX.length());
-        return fullName;
-    }
-
     private static BasicType isBasicType(Type type) {
         if (type == int.class || type == Integer.class) {
             return BasicType.INT;
@@ -539,41 +718,4 @@ public class NKSerialize {
         INT, LONG, BOOLEAN, DOUBLE,
         FLOAT, STRING, OTHER_TYPE
     }
-
-    private static <T> Object parseFieldValue(Field field, T t) throws Exception {
-        if (field.isAnnotationPresent(SerializeBy.class)) {
-            Class s = field.getAnnotation(SerializeBy.class).value();
-            Serializer serializer = (Serializer) s.newInstance();
-            return serializer.serialization(field.get(t));
-        }
-        Type fieldType = field.getType();
-        Type fieldGenericType = field.getGenericType();
-
-        if (fieldType == fieldGenericType) {
-            BasicType basicType = isBasicType(fieldType);
-            if (basicType != BasicType.OTHER_TYPE) {
-                return field.get(t);
-            } else {
-                return nativeToJson(field.get(t));
-            }
-        } else {
-            ParameterizedType integerListType = (ParameterizedType) fieldGenericType;
-            Type genericType = integerListType.getActualTypeArguments()[0];
-            BasicType basicType = isBasicType(genericType);
-
-            JSONArray jsonArray = new JSONArray();
-            if (basicType != BasicType.OTHER_TYPE) {
-                List o = (List) field.get(t);
-                for (int i = 0; i < o.size(); i++) {
-                    jsonArray.put(o.get(i));
-                }
-            } else {
-                List o = (List) field.get(t);
-                for (int i = 0; i < o.size(); i++) {
-                    jsonArray.put(nativeToJson(o.get(i)));
-                }
-            }
-            return jsonArray;
-        }
-    }
 }
@@ -60,6 +60,11 @@ public class NKStorage implements NKScriptExport {
         }
     }
 
+    // Last modified time of the installed APK, changes with every install or update
+    public static long getInstalledTimeStamp() {
+        return installedTimeStamp;
+    }
+
     // NKScriptExport
     public static void attachTo( NKScriptContext context) throws Exception
     {
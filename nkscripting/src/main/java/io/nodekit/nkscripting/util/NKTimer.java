@@ -18,19 +18,12 @@
 
 package io.nodekit.nkscripting.util;
 
-import android.os.Handler;
 import android.webkit.JavascriptInterface;
 
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import io.nodekit.nkscripting.NKApplication;
 import io.nodekit.nkscripting.NKScriptContext;
 import io.nodekit.nkscripting.NKScriptExport;
 import io.nodekit.nkscripting.NKScriptValue;
@@ -40,9 +33,10 @@ public class NKTimer implements NKScriptExport, NKDisposable {
 
     private static String JS_NAMPESPACE = "NodeKitTimer";
 
-    private ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(100);
+    // ids start at 1, so a cleared 0, null or undefined handle never matches
+    private final AtomicInteger lastId = new AtomicInteger();
 
-    private Map<String, NKTimerTask> tasks = new HashMap<>();
+    private NKIntMap<NKTimerTask> tasks = new NKIntMap<>();
 
     public static void attachTo( NKScriptContext context) throws Exception {
         HashMap<String,Object> options = new HashMap<String, Object>();
@@ -53,49 +47,19 @@ public class NKTimer implements NKScriptExport, NKDisposable {
     }
 
     @JavascriptInterface
-    public String setTimeoutSync(NKScriptValue callback, Number milliseconds) {
+    public int setTimeoutSync(NKScriptValue callback, Number milliseconds) {
 
-        Long delay = milliseconds.longValue();
-
-        final String uuid = newUUID();
-
-        ScheduledFuture<?> future = executor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                handlerTaskFire(uuid);
-            }
-        }, delay, TimeUnit.MILLISECONDS);
-
-        NKTimerTask task = new NKTimerTask(future, callback, false);
-
-        tasks.put(uuid, task);
-
-        return uuid;
+        return schedule(callback, milliseconds, false);
     }
 
     @JavascriptInterface
-    public String setIntervalSync(NKScriptValue callback, Number milliseconds) {
-
-        Long delay = milliseconds.longValue();
+    public int setIntervalSync(NKScriptValue callback, Number milliseconds) {
 
-        final String uuid = newUUID();
-
-        ScheduledFuture<?> future = executor.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                handlerTaskFire(uuid);
-            }
-        }, delay, delay, TimeUnit.MILLISECONDS);
-
-        NKTimerTask task = new NKTimerTask(future, callback, true);
-
-        tasks.put(uuid, task);
-
-        return uuid;
+        return schedule(callback, milliseconds, true);
     }
 
     @JavascriptInterface
-    public void clearTimeoutSync(String identifier) {
+    public void clearTimeoutSync(int identifier) {
 
         NKTimerTask task = tasks.remove(identifier);
 
@@ -108,60 +72,42 @@ public class NKTimer implements NKScriptExport, NKDisposable {
     @Override
     public void dispose() {
         clearAllTimers();
-        tasks = new HashMap<>();
+        tasks = new NKIntMap<>();
     }
 
     void clearAllTimers() {
 
-        Collection<NKTimerTask> tasks = this.tasks.values();
-
-        for (NKTimerTask task : tasks) {
+        for (NKTimerTask task : tasks.values()) {
 
             task.cancel();
         }
     }
 
-    private void handlerTaskFire(String identifier) {
+    // A timeout that ran is no longer cancellable
+    void finished(NKTimerTask task) {
 
-        final NKTimerTask task = tasks.get(identifier);
-
-        if (task == null) {
-
-            return;
-        }
-
-        final NKScriptValue callback = task.getCallback();
-
-        if (!task.isRepeating()) {
-
-            clearTimeoutSync(identifier);
-        }
-
-        Handler mainHandler = new Handler(NKApplication.getAppContext().getMainLooper());
+        tasks.remove(task.getId(), task);
+    }
 
-        Runnable myRunnable = new Runnable() {
-            @Override
-            public void run() {
+    private int schedule(NKScriptValue callback, Number milliseconds, boolean repeating) {
 
-                Object[] args = new Object[0];
+        long delay = (milliseconds != null) ? Math.max(0, milliseconds.longValue()) : 0;
 
-                callback.callWithArguments(args, null);
-            }
-        };
-        mainHandler.post(myRunnable);
-    }
+        // an interval fires at most once per tick
+        long period = repeating ? Math.max(delay, NKTimerWheel.TICK_MILLIS) : 0;
 
-    private String newUUID() {
+        int id = lastId.incrementAndGet();
 
-        String uuid;
+        NKTimerWheel wheel = NKTimerWheel.shared();
 
-        do {
+        NKTimerTask task = new NKTimerTask(wheel, this, id, callback, wheel.deadlineAfter(repeating ? period : delay),
+                TimeUnit.MILLISECONDS.toNanos(period));
 
-            uuid = UUID.randomUUID().toString();
+        tasks.put(id, task);
 
-        } while (tasks.get(uuid) != null);
+        wheel.schedule(task);
 
-        return uuid;
+        return id;
     }
 
     @Override
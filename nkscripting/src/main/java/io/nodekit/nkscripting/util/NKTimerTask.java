@@ -19,34 +19,91 @@
 package io.nodekit.nkscripting.util;
 
 import android.support.annotation.NonNull;
-import java.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 import io.nodekit.nkscripting.NKScriptValue;
 
-public class NKTimerTask {
+public class NKTimerTask implements Runnable {
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1;
+    private static final int CANCELLED = 2;
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final NKTimerWheel wheel;
+    private final NKTimer timer;
+    private final int id;
+    private final NKScriptValue callback;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    // set while posted to the main Looper and not yet run
+    private volatile boolean queued;
 
-    private ScheduledFuture<?> future;
-    private NKScriptValue callback;
-    private boolean isRepeating;
+    // wheel state, only touched by the NKTimerWheel driver thread
+    final long period;
+    long deadline;
+    long rounds;
+    int bucket = -1;
+    NKTimerTask prev;
+    NKTimerTask next;
 
-    NKTimerTask(@NonNull ScheduledFuture<?> future, @NonNull NKScriptValue callback, boolean isRepeating) {
-        this.future = future;
+    NKTimerTask(@NonNull NKTimerWheel wheel, @NonNull NKTimer timer, int id, @NonNull NKScriptValue callback, long deadline, long period) {
+        this.wheel = wheel;
+        this.timer = timer;
+        this.id = id;
         this.callback = callback;
-        this.isRepeating = isRepeating;
+        this.deadline = deadline;
+        this.period = period;
     }
 
     public @NonNull NKScriptValue getCallback() {
         return callback;
     }
 
+    int getId() {
+        return id;
+    }
+
     boolean isRepeating() {
-        return isRepeating;
+        return period > 0;
+    }
+
+    boolean isCancelled() {
+        return state.get() == CANCELLED;
     }
 
     void cancel() {
 
-        if (future != null) {
-            future.cancel(true);
-            future = null;
+        if (state.compareAndSet(PENDING, CANCELLED))
+            wheel.cancel(this);
+    }
+
+    // Called by the wheel when the deadline passes; true when the task should be scheduled again
+    boolean fire() {
+
+        if (state.get() != PENDING)
+            return false;
+
+        if (!queued) {
+            queued = true;
+            wheel.post(this);
         }
+
+        return isRepeating();
+    }
+
+    @Override
+    public void run() {
+
+        queued = false;
+
+        if (isRepeating() ? state.get() != PENDING : !state.compareAndSet(PENDING, DONE))
+            return;
+
+        if (!isRepeating())
+            timer.finished(this);
+
+        callback.callWithArguments(NO_ARGS, null);
     }
 }
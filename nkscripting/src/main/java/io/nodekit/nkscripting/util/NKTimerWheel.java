@@ -0,0 +1,232 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timer wheel shared by the NKTimer of every context, driven by one daemon thread.
+// The wheel has WHEEL_SIZE buckets of TICK_MILLIS each; a task lands in the bucket of its
+// deadline tick and counts down the full turns still ahead of it, so scheduling and cancelling
+// are O(1) however many timers are pending.  Callers only append to the added and cancelled
+// queues; the buckets are intrusive lists of NKTimerTask and belong to the driver thread.  The
+// driver skips empty buckets: it parks until the tick of the next occupied one is over, or for
+// good while nothing is pending, and is woken early only by a task due before that.
+//
+// Expired tasks are handed, themselves being the Runnable, to the main thread executor, which
+// for the shared wheel posts them to the main Looper.  A repeating task still waiting there is
+// not posted again, so a busy main thread delays intervals instead of queueing them up.
+final class NKTimerWheel implements Runnable {
+
+    static final long TICK_MILLIS = 4;
+    static final int WHEEL_SIZE = 512;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private static NKTimerWheel _shared;
+
+    private final ConcurrentLinkedQueue<NKTimerTask> added = new ConcurrentLinkedQueue<NKTimerTask>();
+    private final ConcurrentLinkedQueue<NKTimerTask> cancelled = new ConcurrentLinkedQueue<NKTimerTask>();
+    private final long start = System.nanoTime();
+    private final Executor mainThread;
+    private final Thread driver;
+    // wheel time the parked driver wakes at, MAX_VALUE when idle and 0 while it is running
+    private volatile long wakeAt;
+
+    // owned by the driver thread
+    private final NKTimerTask[] heads = new NKTimerTask[WHEEL_SIZE];
+    private final NKTimerTask[] tails = new NKTimerTask[WHEEL_SIZE];
+    private long tick;
+    private int pending;
+
+    NKTimerWheel(Executor mainThread) {
+        this.mainThread = mainThread;
+        driver = new Thread(this, "NKTimer");
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    static synchronized NKTimerWheel shared() {
+        if (_shared == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            _shared = new NKTimerWheel(new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    handler.post(task);
+                }
+            });
+        }
+        return _shared;
+    }
+
+    // Deadline, in wheel time, of a task due delayMillis from now
+    long deadlineAfter(long delayMillis) {
+        return System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    }
+
+    void schedule(NKTimerTask task) {
+        added.add(task);
+        if (task.deadline < wakeAt)
+            LockSupport.unpark(driver);
+    }
+
+    void cancel(NKTimerTask task) {
+        cancelled.add(task);
+    }
+
+    void post(NKTimerTask task) {
+        mainThread.execute(task);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                transfer();
+                if (pending == 0) {
+                    idle();
+                    continue;
+                }
+
+                long next = nextOccupiedTick();
+                long wait = (next + 1) * TICK_NANOS - (System.nanoTime() - start);
+                if (wait > 0) {
+                    // a task scheduled after wakeAt is set and due earlier unparks us, one
+                    // scheduled before it is in added
+                    wakeAt = (next + 1) * TICK_NANOS;
+                    if (added.isEmpty())
+                        LockSupport.parkNanos(this, wait);
+                    wakeAt = 0;
+                    continue;
+                }
+
+                // the ticks skipped over had empty buckets, nothing to expire or count down
+                tick = next;
+                NKTimerTask repeating = expire(heads[(int) (tick & MASK)]);
+                tick++;
+                // put back once the tick is over, a short period would otherwise land in the
+                // bucket just expired and wait a whole turn
+                while (repeating != null) {
+                    NKTimerTask following = repeating.next;
+                    if (!repeating.isCancelled())
+                        insert(repeating);
+                    repeating = following;
+                }
+            } catch (Exception e) {
+                NKLogging.log(e);
+            }
+        }
+    }
+
+    private void idle() {
+        wakeAt = Long.MAX_VALUE;
+        // a task added before wakeAt was set is seen here, one added after it unparks us
+        while (added.isEmpty())
+            LockSupport.park(this);
+        wakeAt = 0;
+        // nothing was pending, so the ticks slept through had nothing to expire
+        tick = Math.max(tick, (System.nanoTime() - start) / TICK_NANOS);
+    }
+
+    // First tick from the current one whose bucket holds a task; each bucket is visited once per
+    // turn, so one with tasks rounds ahead still counts them down in time
+    private long nextOccupiedTick() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            if (heads[(int) ((tick + i) & MASK)] != null)
+                return tick + i;
+        }
+        return tick + WHEEL_SIZE;
+    }
+
+    private void transfer() {
+        for (NKTimerTask task = added.poll(); task != null; task = added.poll()) {
+            if (!task.isCancelled())
+                insert(task);
+        }
+        for (NKTimerTask task = cancelled.poll(); task != null; task = cancelled.poll()) {
+            if (task.bucket >= 0)
+                unlink(task);
+        }
+    }
+
+    private void insert(NKTimerTask task) {
+        long due = task.deadline / TICK_NANOS;
+        task.rounds = (due - tick) / WHEEL_SIZE;
+        int bucket = (int) (Math.max(due, tick) & MASK);
+
+        task.bucket = bucket;
+        task.prev = tails[bucket];
+        task.next = null;
+        if (tails[bucket] == null)
+            heads[bucket] = task;
+        else
+            tails[bucket].next = task;
+        tails[bucket] = task;
+        pending++;
+    }
+
+    private void unlink(NKTimerTask task) {
+        int bucket = task.bucket;
+        if (task.prev == null)
+            heads[bucket] = task.next;
+        else
+            task.prev.next = task.next;
+        if (task.next == null)
+            tails[bucket] = task.prev;
+        else
+            task.next.prev = task.prev;
+        task.prev = null;
+        task.next = null;
+        task.bucket = -1;
+        pending--;
+    }
+
+    // Fires the due tasks of a bucket, returning the repeating ones in order, chained through next
+    private NKTimerTask expire(NKTimerTask task) {
+        NKTimerTask repeating = null;
+        NKTimerTask last = null;
+        long now = System.nanoTime() - start;
+
+        while (task != null) {
+            NKTimerTask next = task.next;
+            if (task.rounds <= 0) {
+                unlink(task);
+                if (task.fire()) {
+                    // fixed rate, but never catching up on missed periods
+                    task.deadline = Math.max(task.deadline + task.period, now);
+                    if (last == null)
+                        repeating = task;
+                    else
+                        last.next = task;
+                    last = task;
+                }
+            } else {
+                task.rounds--;
+            }
+            task = next;
+        }
+        return repeating;
+    }
+}
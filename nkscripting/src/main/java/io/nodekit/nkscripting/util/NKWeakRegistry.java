@@ -0,0 +1,210 @@
+/*
+* nodekit.io
+*
+* Copyright (c) 2016 OffGrid Networks. All Rights Reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package io.nodekit.nkscripting.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process wide lookup tables between native objects, namespaces, ids and their script side
+// counterparts.  Values are held weakly, and with identityKeys() so are the keys, so a registry
+// never keeps a plugin, channel or context alive by itself; whoever owns the value (a channel's
+// instance table, the engine's message handlers) decides its lifetime and cleared entries are
+// expunged on the next write.  Reads never lock.
+//
+// Every registration gets a generation number from a counter shared by the registry;
+// remove(key, generation) only removes that registration, so a late cleanup of an old object
+// cannot drop a newer registration made under the same key.
+public final class NKWeakRegistry<K, V> {
+
+    private interface Key {
+        Object referent();
+    }
+
+    // Stored key for identityKeys(), cleared when the key object is collected
+    private static final class WeakKey extends WeakReference<Object> implements Key {
+        private final int hash;
+
+        WeakKey(Object key, ReferenceQueue<Object> queue) {
+            super(key, queue);
+            this.hash = System.identityHashCode(key);
+        }
+
+        public Object referent() {
+            return get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Object referent = get();
+            return referent != null && referent == ((Key) o).referent();
+        }
+    }
+
+    // Short lived probe used for lookups, so a get does not allocate a WeakReference
+    private static final class IdentityProbe implements Key {
+        private final Object key;
+
+        IdentityProbe(Object key) {
+            this.key = key;
+        }
+
+        public Object referent() {
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Key) && ((Key) o).referent() == key;
+        }
+    }
+
+    private static final class Entry<V> extends WeakReference<V> {
+        final Object key;
+        final long generation;
+
+        Entry(Object key, V value, long generation, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+
+    private final boolean identity;
+    private final ConcurrentHashMap<Object, Entry<V>> entries = new ConcurrentHashMap<Object, Entry<V>>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private final AtomicLong generations = new AtomicLong();
+
+    private NKWeakRegistry(boolean identity) {
+        this.identity = identity;
+    }
+
+    // Keys compared by identity and held weakly: native objects, classes, contexts
+    public static <K, V> NKWeakRegistry<K, V> identityKeys() {
+        return new NKWeakRegistry<K, V>(true);
+    }
+
+    // Keys compared with equals and held strongly: namespaces, ids
+    public static <K, V> NKWeakRegistry<K, V> equalityKeys() {
+        return new NKWeakRegistry<K, V>(false);
+    }
+
+    public V get(K key) {
+        if (key == null)
+            return null;
+        Entry<V> entry = entries.get(probe(key));
+        return (entry != null) ? entry.get() : null;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    // Returns the generation of the new registration
+    public long put(K key, V value) {
+        if (value == null) {
+            remove(key);
+            return 0;
+        }
+
+        expunge();
+        long generation = generations.incrementAndGet();
+        Object stored = identity ? new WeakKey(key, queue) : key;
+        entries.put(stored, new Entry<V>(stored, value, generation, queue));
+        return generation;
+    }
+
+    public V remove(K key) {
+        if (key == null)
+            return null;
+        expunge();
+        Entry<V> entry = entries.remove(probe(key));
+        if (entry == null)
+            return null;
+        generations.incrementAndGet();
+        return entry.get();
+    }
+
+    // Removes the registration only if it is still the one made with this generation
+    public boolean remove(K key, long generation) {
+        if (key == null)
+            return false;
+        expunge();
+        Object probe = probe(key);
+        Entry<V> entry = entries.get(probe);
+        if (entry == null || entry.generation != generation)
+            return false;
+        if (!entries.remove(probe, entry))
+            return false;
+        generations.incrementAndGet();
+        return true;
+    }
+
+    // Generation of the current registration of key, 0 when there is none
+    public long generationOf(K key) {
+        if (key == null)
+            return 0;
+        Entry<V> entry = entries.get(probe(key));
+        return (entry != null && entry.get() != null) ? entry.generation : 0;
+    }
+
+    // Increases with every registration and removal
+    public long generation() {
+        return generations.get();
+    }
+
+    public int size() {
+        expunge();
+        return entries.size();
+    }
+
+    private Object probe(Object key) {
+        return identity ? new IdentityProbe(key) : key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = queue.poll()) != null) {
+            if (ref instanceof Entry) {
+                Entry<V> entry = (Entry<V>) ref;
+                entries.remove(entry.key, entry);
+            } else {
+                // a cleared WeakKey only equals itself now
+                entries.remove(ref);
+            }
+        }
+    }
+}